@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that with write-ahead logging the forecast list query runs to the end while a sync
+    holds its write transaction open, and sees the forecast as it was before the sync.
+
+    The benchmark has one thread ingest forecasts the way a sync does, transaction after
+    transaction, while reader threads run the forecast list query, first against a rollback
+    journal, the way the database used to be opened, then with write-ahead logging.  It only
+    reports the readers' latency, which depends too much on the device to assert on.
+ */
+public class TestDbContention extends AndroidTestCase {
+    public static final String LOG_TAG = TestDbContention.class.getSimpleName();
+
+    static final String DATABASE_NAME = "contention_test.db";
+    static final int LOCATION_COUNT = 20;
+    static final int DAYS = 14;
+    static final int READERS = 4;
+    static final long DURATION_MILLIS = 3000;
+    // Only there to fail instead of hanging, should a reader ever be blocked
+    static final long TIMEOUT_SECONDS = 10;
+
+    // What the forecast list asks WeatherProvider for, weather/{location}?date=today
+    static final String LIST_QUERY = "SELECT " +
+            WeatherContract.WeatherEntry.TABLE_NAME + "." +
+            WeatherContract.WeatherEntry._ID + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID +
+            " FROM " + WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+            WeatherContract.LocationEntry.TABLE_NAME + " ON " +
+            WeatherContract.WeatherEntry.TABLE_NAME + "." +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = " +
+            WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry._ID +
+            " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?" +
+            " ORDER BY " + WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    static final String INSERT_WEATHER = "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME +
+            " (" + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES +
+            ") VALUES (?, ?, 'Clear', 800, ?, ?, 60, 1010, 2.5, 270)";
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLoggingIsOn() {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME, true);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+            assertEquals(WeatherDbHelper.JOURNAL_SIZE_LIMIT_BYTES,
+                    DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testReadersDuringWriteTransaction() throws Throwable {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME, true);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final long locationId = insertLocations(db, 1)[0];
+        final long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        SQLiteStatement insert = db.compileStatement(INSERT_WEATHER);
+        bindDay(insert, locationId, today, 0);
+        insert.executeInsert();
+        insert.close();
+
+        final CountDownLatch inTransaction = new CountDownLatch(1);
+        final CountDownLatch readDone = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                SQLiteStatement insert = db.compileStatement(INSERT_WEATHER);
+                db.beginTransactionNonExclusive();
+                try {
+                    for (int day = 1; day < DAYS; day++) {
+                        bindDay(insert, locationId, today, day);
+                        insert.executeInsert();
+                    }
+                    inTransaction.countDown();
+                    // Holds the transaction open until the reader is done, or gives up
+                    readDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    db.setTransactionSuccessful();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                } finally {
+                    db.endTransaction();
+                    insert.close();
+                }
+            }
+        };
+        final int[] days = {-1};
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Cursor cursor = db.rawQuery(LIST_QUERY,
+                            new String[]{Integer.toString(94000), Long.toString(today)});
+                    days[0] = cursor.getCount();
+                    cursor.close();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                } finally {
+                    readDone.countDown();
+                }
+            }
+        };
+
+        try {
+            writer.start();
+            assertTrue(inTransaction.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            reader.start();
+            assertTrue("Error: the reader was blocked by the open write transaction",
+                    readDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            writer.join();
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            assertEquals("Error: the reader should only see what was committed", 1, days[0]);
+
+            Cursor cursor = db.rawQuery(LIST_QUERY,
+                    new String[]{Integer.toString(94000), Long.toString(today)});
+            assertEquals(DAYS, cursor.getCount());
+            cursor.close();
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testBenchmarkReadersDuringIngest() throws Throwable {
+        long[] journal = run(false);
+        long[] wal = run(true);
+
+        Log.d(LOG_TAG, "rollback journal: reader p50 " + percentile(journal, 0.5) / 1000
+                + "us, p99 " + percentile(journal, 0.99) / 1000 + "us over " + journal.length
+                + " queries");
+        Log.d(LOG_TAG, "write-ahead log: reader p50 " + percentile(wal, 0.5) / 1000
+                + "us, p99 " + percentile(wal, 0.99) / 1000 + "us over " + wal.length
+                + " queries");
+    }
+
+    /**
+     * @return the row IDs of count locations, with the settings 94000 on.
+     */
+    static long[] insertLocations(SQLiteDatabase db, int count) {
+        long[] locationIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues location = new ContentValues();
+            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    Integer.toString(94000 + i));
+            location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "City " + i);
+            location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 37.4);
+            location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -122.1);
+            locationIds[i] = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+        }
+        return locationIds;
+    }
+
+    static void bindDay(SQLiteStatement insert, long locationId, long today, int day) {
+        insert.bindLong(1, locationId);
+        insert.bindLong(2, today + day * DateUtils.DAY_IN_MILLIS);
+        insert.bindDouble(3, 5 + day);
+        insert.bindDouble(4, 15 + day);
+    }
+
+    static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    /**
+     * @return the readers' query latencies, in nanoseconds, sorted.
+     */
+    long[] run(boolean writeAheadLogging) throws Throwable {
+        mContext.deleteDatabase(DATABASE_NAME);
+        WeatherDbHelper helper =
+                new WeatherDbHelper(mContext, DATABASE_NAME, writeAheadLogging);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final long[] locationIds = insertLocations(db, LOCATION_COUNT);
+        final long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        final AtomicBoolean done = new AtomicBoolean();
+        final Throwable[] failure = new Throwable[1];
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                SQLiteStatement insert = db.compileStatement(INSERT_WEATHER);
+                try {
+                    while (!done.get()) {
+                        db.beginTransactionNonExclusive();
+                        try {
+                            for (long locationId : locationIds) {
+                                for (int day = 0; day < DAYS; day++) {
+                                    bindDay(insert, locationId, today, day);
+                                    insert.executeInsert();
+                                }
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                } finally {
+                    insert.close();
+                }
+            }
+        };
+
+        final long[][] latencies = new long[READERS][];
+        final AtomicInteger[] counts = new AtomicInteger[READERS];
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            latencies[reader] = new long[1024];
+            counts[reader] = new AtomicInteger();
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(reader);
+                    String[] args = {null, Long.toString(today)};
+                    try {
+                        while (!done.get()) {
+                            args[0] = Integer.toString(94000 + random.nextInt(LOCATION_COUNT));
+                            long start = System.nanoTime();
+                            Cursor cursor = db.rawQuery(LIST_QUERY, args);
+                            cursor.getCount();
+                            cursor.close();
+                            int count = counts[reader].get();
+                            if (count == latencies[reader].length) {
+                                latencies[reader] = Arrays.copyOf(latencies[reader], count * 2);
+                            }
+                            latencies[reader][count] = System.nanoTime() - start;
+                            counts[reader].set(count + 1);
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(DURATION_MILLIS);
+        done.set(true);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        helper.close();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        int total = 0;
+        for (AtomicInteger count : counts) {
+            total += count.get();
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int r = 0; r < READERS; r++) {
+            System.arraycopy(latencies[r], 0, all, offset, counts[r].get());
+            offset += counts[r].get();
+        }
+        assertTrue("Error: the readers never got to query", total > 0);
+        Arrays.sort(all);
+        return all;
+    }
+}
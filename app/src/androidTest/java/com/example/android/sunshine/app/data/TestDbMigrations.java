@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+    Builds a database the way each past release created it, with rows in it, and checks that
+    the migrations take it to the schema of the next release, and on to the current one, without
+    losing a row.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    static final String DATABASE_NAME = "migrations_test.db";
+    static final String EXPECTED_DATABASE_NAME = "migrations_expected.db";
+
+    static final int CURRENT_VERSION = 7;
+    static final int DAYS = 3;
+
+    // The weather table hasn't changed since version 2
+    static final String CREATE_WEATHER = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    static final String CREATE_LOCATION_V2 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL );";
+
+    static final String CREATE_LOCATION_V3 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL, " +
+            "payload_hash TEXT  );";
+
+    static final String CREATE_METRICS_V4 = "CREATE TABLE sync_metrics (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "started INTEGER NOT NULL, " +
+            "outcome INTEGER NOT NULL, " +
+            "locations INTEGER NOT NULL, " +
+            "requests INTEGER NOT NULL, " +
+            "total_millis INTEGER NOT NULL, " +
+            "connect_millis INTEGER NOT NULL, " +
+            "first_byte_millis INTEGER NOT NULL, " +
+            "download_millis INTEGER NOT NULL, " +
+            "parse_millis INTEGER NOT NULL, " +
+            "write_millis INTEGER NOT NULL, " +
+            "delete_millis INTEGER NOT NULL, " +
+            "fan_out_millis INTEGER, " +
+            "bytes INTEGER NOT NULL, " +
+            "rows_written INTEGER NOT NULL, " +
+            "rows_deleted INTEGER NOT NULL );";
+
+    static final String CREATE_METRICS_V5 = "CREATE TABLE sync_metrics (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "started INTEGER NOT NULL, " +
+            "outcome INTEGER NOT NULL, " +
+            "locations INTEGER NOT NULL, " +
+            "requests INTEGER NOT NULL, " +
+            "total_millis INTEGER NOT NULL, " +
+            "connect_millis INTEGER NOT NULL, " +
+            "first_byte_millis INTEGER NOT NULL, " +
+            "download_millis INTEGER NOT NULL, " +
+            "parse_millis INTEGER NOT NULL, " +
+            "write_millis INTEGER NOT NULL, " +
+            "delete_millis INTEGER NOT NULL, " +
+            "fan_out_millis INTEGER, " +
+            "bytes INTEGER NOT NULL, " +
+            "rows_written INTEGER NOT NULL, " +
+            "rows_deleted INTEGER NOT NULL, " +
+            "throttle_millis INTEGER NOT NULL, " +
+            "throttled INTEGER NOT NULL, " +
+            "rate_tokens REAL );";
+
+    static final String CREATE_METRICS_RING = "CREATE TRIGGER sync_metrics_ring " +
+            "AFTER INSERT ON sync_metrics BEGIN DELETE FROM sync_metrics " +
+            "WHERE _id <= NEW._id - 500; END;";
+
+    static final String CREATE_HOURLY_V6 = "CREATE TABLE hourly (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_id INTEGER NOT NULL, " +
+            "date_time INTEGER NOT NULL, " +
+            "weather_id INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "temp REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (location_id, date_time) ON CONFLICT REPLACE);";
+
+    static final String CREATE_HOURLY_COVERING_V6 = "CREATE INDEX hourly_covering ON hourly (" +
+            "location_id, date_time, weather_id, short_desc, temp, humidity, pressure, wind, " +
+            "degrees);";
+
+    static final String CREATE_WEATHER_COVERING_V7 = "CREATE INDEX weather_covering ON weather (" +
+            "location_id, date, short_desc, weather_id, min, max, humidity, pressure, wind, " +
+            "degrees);";
+
+    /**
+     * @return the statements a release with the given database version ran in onCreate.
+     */
+    static String[] fixture(int version) {
+        switch (version) {
+            case 2:
+                return new String[] {CREATE_LOCATION_V2, CREATE_WEATHER};
+            case 3:
+                return new String[] {CREATE_LOCATION_V3, CREATE_WEATHER};
+            case 4:
+                return new String[] {CREATE_LOCATION_V3, CREATE_WEATHER,
+                        CREATE_METRICS_V4, CREATE_METRICS_RING};
+            case 5:
+                return new String[] {CREATE_LOCATION_V3, CREATE_WEATHER,
+                        CREATE_METRICS_V5, CREATE_METRICS_RING};
+            case 6:
+                return new String[] {CREATE_LOCATION_V3, CREATE_WEATHER, CREATE_HOURLY_V6,
+                        CREATE_HOURLY_COVERING_V6, CREATE_METRICS_V5, CREATE_METRICS_RING};
+            case 7:
+                return new String[] {CREATE_LOCATION_V3, CREATE_WEATHER, CREATE_WEATHER_COVERING_V7,
+                        CREATE_HOURLY_V6, CREATE_HOURLY_COVERING_V6, CREATE_METRICS_V5,
+                        CREATE_METRICS_RING};
+            default:
+                throw new IllegalArgumentException("No fixture for version " + version);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteDatabases();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDatabases();
+        super.tearDown();
+    }
+
+    void deleteDatabases() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(EXPECTED_DATABASE_NAME);
+    }
+
+    public void testFixtureOfCurrentVersionMatchesOnCreate() {
+        SQLiteDatabase fixture = createAt(DATABASE_NAME, CURRENT_VERSION, CURRENT_VERSION);
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, EXPECTED_DATABASE_NAME, true);
+        try {
+            assertEquals("Error: the current schema has no fixture, add one for version " +
+                    CURRENT_VERSION, schema(helper.getReadableDatabase()), schema(fixture));
+        } finally {
+            helper.close();
+            fixture.close();
+        }
+    }
+
+    public void testEachStepKeepsRows() {
+        for (int version = WeatherDbMigrations.OLDEST_VERSION; version < CURRENT_VERSION;
+                version++) {
+            SQLiteDatabase db = createAt(DATABASE_NAME, version, version);
+            SQLiteDatabase expected = createAt(EXPECTED_DATABASE_NAME, version + 1, version + 1);
+            try {
+                String[] tables = tables(db);
+                long[] before = counts(db, tables);
+
+                db.beginTransaction();
+                try {
+                    WeatherDbMigrations.migrate(db, version);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                assertEquals("Error: migrating from version " + version +
+                        " doesn't give the schema of version " + (version + 1),
+                        schema(expected), schema(db));
+                for (int i = 0; i < tables.length; i++) {
+                    assertEquals("Error: migrating from version " + version + " lost rows of " +
+                            tables[i], before[i], counts(db, tables)[i]);
+                }
+            } finally {
+                db.close();
+                expected.close();
+                deleteDatabases();
+            }
+        }
+    }
+
+    public void testUpgradeFromEveryVersionKeepsForecasts() {
+        WeatherDbHelper expectedHelper =
+                new WeatherDbHelper(mContext, EXPECTED_DATABASE_NAME, true);
+        Set<String> expected = schema(expectedHelper.getReadableDatabase());
+        expectedHelper.close();
+
+        for (int version = WeatherDbMigrations.OLDEST_VERSION; version < CURRENT_VERSION;
+                version++) {
+            createAt(DATABASE_NAME, version, version).close();
+
+            WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME, true);
+            try {
+                SQLiteDatabase db = helper.getReadableDatabase();
+                assertEquals(CURRENT_VERSION, db.getVersion());
+                assertEquals("Error: upgrading from version " + version +
+                        " doesn't give the schema onCreate does", expected, schema(db));
+                assertEquals("Error: upgrading from version " + version + " lost the location",
+                        1, DatabaseUtils.queryNumEntries(db,
+                                WeatherContract.LocationEntry.TABLE_NAME));
+                assertEquals("Error: upgrading from version " + version + " lost forecasts",
+                        DAYS, DatabaseUtils.queryNumEntries(db,
+                                WeatherContract.WeatherEntry.TABLE_NAME));
+                assertEquals("Error: the location's setting changed upgrading from version " +
+                        version, TestUtilities.TEST_LOCATION, DatabaseUtils.stringForQuery(db,
+                        "SELECT location_setting FROM location", null));
+            } finally {
+                helper.close();
+                mContext.deleteDatabase(DATABASE_NAME);
+            }
+        }
+    }
+
+    public void testUpgradeOfUnknownVersionStartsOver() {
+        // Version 1 had no release with a known schema; pretend it looked like version 2
+        createAt(DATABASE_NAME, WeatherDbMigrations.OLDEST_VERSION, 1).close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME, true);
+        try {
+            SQLiteDatabase db = helper.getReadableDatabase();
+            assertEquals(CURRENT_VERSION, db.getVersion());
+            assertEquals(0, DatabaseUtils.queryNumEntries(db,
+                    WeatherContract.WeatherEntry.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testFailedUpgradeLeavesOldVersion() {
+        // Someone already created the metrics table by hand, so the step creating it fails
+        SQLiteDatabase db = createAt(DATABASE_NAME, 3, 3);
+        db.execSQL("CREATE TABLE sync_metrics (_id INTEGER PRIMARY KEY)");
+        db.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME, true);
+        try {
+            helper.getWritableDatabase();
+            fail("Error: the upgrade should have failed");
+        } catch (RuntimeException expected) {
+            // The step's SQLException
+        } finally {
+            helper.close();
+        }
+
+        db = SQLiteDatabase.openDatabase(mContext.getDatabasePath(DATABASE_NAME).getPath(),
+                null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            assertEquals("Error: a failed upgrade should roll back", 3, db.getVersion());
+            assertEquals(DAYS, DatabaseUtils.queryNumEntries(db,
+                    WeatherContract.WeatherEntry.TABLE_NAME));
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Creates a database with the schema of the given version, a location and a few days of
+     * forecast, and a sync's metrics if the version has them, and marks it as userVersion.
+     */
+    SQLiteDatabase createAt(String name, int schemaVersion, int userVersion) {
+        mContext.deleteDatabase(name);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(name, 0, null);
+        for (String sql : fixture(schemaVersion)) {
+            db.execSQL(sql);
+        }
+        db.execSQL("INSERT INTO location (_id, location_setting, city_name, coord_lat, " +
+                "coord_long) VALUES (1, ?, 'North Pole', 64.7488, -147.353)",
+                new Object[] {TestUtilities.TEST_LOCATION});
+        for (int day = 0; day < DAYS; day++) {
+            db.execSQL("INSERT INTO weather (location_id, date, short_desc, weather_id, min, " +
+                    "max, humidity, pressure, wind, degrees) VALUES (1, ?, 'Asteroids', 321, " +
+                    "65, 75, 1.2, 1.3, 5.5, 1.1)",
+                    new Object[] {TestUtilities.TEST_DATE + day * 86400000L});
+        }
+        if (schemaVersion >= 4) {
+            db.execSQL("INSERT INTO sync_metrics (started, outcome, locations, requests, " +
+                    "total_millis, connect_millis, first_byte_millis, download_millis, " +
+                    "parse_millis, write_millis, delete_millis, bytes, rows_written, " +
+                    "rows_deleted" + (schemaVersion >= 5 ? ", throttle_millis, throttled" : "") +
+                    ") VALUES (1419033600000, 0, 1, 1, 900, 120, 300, 200, 40, 30, 5, 8192, " +
+                    DAYS + ", 0" + (schemaVersion >= 5 ? ", 0, 0" : "") + ")");
+        }
+        if (schemaVersion >= 6) {
+            db.execSQL("INSERT INTO hourly (location_id, date_time, weather_id, short_desc, " +
+                    "temp, humidity, pressure, wind, degrees) VALUES (1, ?, 800, 'Clear', " +
+                    "12.5, 60, 1010, 2.5, 270)", new Object[] {TestUtilities.TEST_DATE});
+        }
+        db.setVersion(userVersion);
+        return db;
+    }
+
+    /**
+     * @return the app's tables, leaving out the ones SQLite and Android keep.
+     */
+    static String[] tables(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND " +
+                "name NOT LIKE 'sqlite_%' AND name != 'android_metadata' ORDER BY name", null);
+        try {
+            String[] tables = new String[c.getCount()];
+            while (c.moveToNext()) {
+                tables[c.getPosition()] = c.getString(0);
+            }
+            return tables;
+        } finally {
+            c.close();
+        }
+    }
+
+    static long[] counts(SQLiteDatabase db, String[] tables) {
+        long[] counts = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            counts[i] = DatabaseUtils.queryNumEntries(db, tables[i]);
+        }
+        return counts;
+    }
+
+    /**
+     * Describes the schema as a set of lines, one per column, index and trigger, so two
+     * databases can be compared whatever order their columns were added in.
+     */
+    static Set<String> schema(SQLiteDatabase db) {
+        Set<String> schema = new TreeSet<String>();
+        for (String table : tables(db)) {
+            Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                while (c.moveToNext()) {
+                    schema.add(table + "." + c.getString(c.getColumnIndex("name")) + " " +
+                            c.getString(c.getColumnIndex("type")) +
+                            (c.getInt(c.getColumnIndex("notnull")) != 0 ? " NOT NULL" : "") +
+                            (c.getInt(c.getColumnIndex("pk")) != 0 ? " PRIMARY KEY" : ""));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Cursor c = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master " +
+                "WHERE type IN ('index', 'trigger') AND name NOT LIKE 'sqlite_%'", null);
+        try {
+            while (c.moveToNext()) {
+                schema.add(c.getString(0) + " " + c.getString(1) + " ON " + c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+        return schema;
+    }
+}
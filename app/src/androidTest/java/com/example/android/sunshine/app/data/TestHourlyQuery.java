@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.Arrays;
+
+/*
+    Stores five days of 3-hour steps for fifty locations, then reads "the next 24 hours" of one
+    of them back over and over, the way the detail view does, and checks it comes off the
+    covering index in under a millisecond.
+ */
+public class TestHourlyQuery extends AndroidTestCase {
+    public static final String LOG_TAG = TestHourlyQuery.class.getSimpleName();
+
+    static final int LOCATION_COUNT = 50;
+    static final int STEP_COUNT = 5 * 8;
+    static final long START = 1450828800000L;  // December 23rd, 2015, 00:00 UTC
+    static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    static final int WARM_UP_QUERIES = 20;
+    static final int TIMED_QUERIES = 200;
+    static final long MAX_MEDIAN_NANOS = 1000 * 1000;
+
+    static final String[] HOURLY_COLUMNS = {
+            HourlyEntry.COLUMN_DATE_TIME,
+            HourlyEntry.COLUMN_WEATHER_ID,
+            HourlyEntry.COLUMN_SHORT_DESC,
+            HourlyEntry.COLUMN_TEMP,
+            HourlyEntry.COLUMN_HUMIDITY,
+            HourlyEntry.COLUMN_PRESSURE,
+            HourlyEntry.COLUMN_WIND_SPEED,
+            HourlyEntry.COLUMN_DEGREES
+    };
+
+    long[] mLocationIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mLocationIds = new long[LOCATION_COUNT];
+        HourlyRows[] forecasts = new HourlyRows[LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            mLocationIds[i] = insertLocation(getSetting(i));
+            forecasts[i] = new HourlyRows(STEP_COUNT);
+            for (int step = 0; step < STEP_COUNT; step++) {
+                forecasts[i].add(START + step * HourlyEntry.STEP_MILLIS, i % 30 - 5 + step * 0.25,
+                        1000 + step, 50 + step, step % 10, step * 9, "Clouds", 800 + step % 4);
+            }
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(WeatherContract.EXTRA_LOCATION_IDS, new long[0]);
+        extras.putParcelableArray(WeatherContract.EXTRA_FORECASTS, new ForecastRows[0]);
+        extras.putStringArray(WeatherContract.EXTRA_PAYLOAD_HASHES, new String[0]);
+        extras.putLongArray(WeatherContract.EXTRA_HOURLY_LOCATION_IDS, mLocationIds);
+        extras.putParcelableArray(WeatherContract.EXTRA_HOURLY_FORECASTS, forecasts);
+        Bundle stored = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_STORE_FORECASTS, null, extras);
+        assertEquals(LOCATION_COUNT * STEP_COUNT,
+                stored.getInt(WeatherContract.EXTRA_HOURLY_ROW_COUNT));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    void deleteAllRecords() {
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    static String getSetting(int location) {
+        return Integer.toString(10000 + location);
+    }
+
+    long insertLocation(String setting) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, "City " + setting);
+        values.put(LocationEntry.COLUMN_COORD_LAT, 37.386051);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -122.083847);
+        return ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, values));
+    }
+
+    public void testNextDayOfOneLocation() {
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationBetween(getSetting(7), START, START + DAY_MILLIS),
+                HOURLY_COLUMNS, null, null, null);
+        assertEquals(8, cursor.getCount());
+        long expected = START;
+        while (cursor.moveToNext()) {
+            assertEquals("Error: steps should come back in order", expected, cursor.getLong(0));
+            assertEquals(7 % 30 - 5 + (expected - START) / HourlyEntry.STEP_MILLIS * 0.25,
+                    cursor.getDouble(3), 0.001);
+            expected += HourlyEntry.STEP_MILLIS;
+        }
+        cursor.close();
+    }
+
+    void storeHourly(long locationId, HourlyRows rows, long pruneBefore) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(WeatherContract.EXTRA_LOCATION_IDS, new long[0]);
+        extras.putParcelableArray(WeatherContract.EXTRA_FORECASTS, new ForecastRows[0]);
+        extras.putStringArray(WeatherContract.EXTRA_PAYLOAD_HASHES, new String[0]);
+        extras.putLongArray(WeatherContract.EXTRA_HOURLY_LOCATION_IDS, new long[]{locationId});
+        extras.putParcelableArray(WeatherContract.EXTRA_HOURLY_FORECASTS, new HourlyRows[]{rows});
+        extras.putLong(WeatherContract.EXTRA_HOURLY_PRUNE_BEFORE, pruneBefore);
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_STORE_FORECASTS, null, extras);
+    }
+
+    int countSteps(int location) {
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(getSetting(location)), HOURLY_COLUMNS,
+                null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testStoringAgainReplacesSteps() {
+        HourlyRows rows = new HourlyRows(1);
+        rows.add(START, 30, 1000, 10, 1, 90, "Clear", 800);
+        storeHourly(mLocationIds[0], rows, -1);
+        assertEquals(STEP_COUNT, countSteps(0));
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationBetween(getSetting(0), START,
+                        START + HourlyEntry.STEP_MILLIS), HOURLY_COLUMNS, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(30, cursor.getDouble(3), 0.001);
+        assertEquals("Clear", cursor.getString(2));
+        cursor.close();
+
+        storeHourly(mLocationIds[0], new HourlyRows(0), START + DAY_MILLIS);
+        assertEquals("Error: the steps before the prune time should be gone",
+                STEP_COUNT - 8, countSteps(0));
+        assertEquals(STEP_COUNT - 8, countSteps(LOCATION_COUNT - 1));
+    }
+
+    public void testQueryUsesCoveringIndex() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN SELECT " +
+                        HourlyEntry.COLUMN_DATE_TIME + ", " + HourlyEntry.COLUMN_TEMP + ", " +
+                        HourlyEntry.COLUMN_SHORT_DESC + " FROM " + HourlyEntry.TABLE_NAME +
+                        " INNER JOIN " + LocationEntry.TABLE_NAME + " ON " +
+                        HourlyEntry.TABLE_NAME + "." + HourlyEntry.COLUMN_LOC_KEY + " = " +
+                        LocationEntry.TABLE_NAME + "." + LocationEntry._ID + " WHERE " +
+                        LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                        HourlyEntry.COLUMN_DATE_TIME + " >= ? AND " +
+                        HourlyEntry.COLUMN_DATE_TIME + " < ? ORDER BY " +
+                        HourlyEntry.COLUMN_DATE_TIME + " ASC",
+                new String[]{getSetting(7), Long.toString(START),
+                        Long.toString(START + DAY_MILLIS)});
+        int detailIndex = plan.getColumnIndex("detail");
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(detailIndex)).append('\n');
+        }
+        plan.close();
+        db.close();
+        Log.d(LOG_TAG, "Query plan:\n" + details);
+        assertTrue("Error: the steps should be read off the covering index\n" + details,
+                details.indexOf("COVERING INDEX " + HourlyEntry.TABLE_NAME + "_covering") != -1);
+        assertTrue("Error: the steps should already be in order in the index\n" + details,
+                details.indexOf("TEMP B-TREE") == -1);
+    }
+
+    public void testNextDayQueryTime() {
+        long[] nanos = new long[TIMED_QUERIES];
+        for (int i = 0; i < WARM_UP_QUERIES + TIMED_QUERIES; i++) {
+            int location = i % LOCATION_COUNT;
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    HourlyEntry.buildHourlyLocationBetween(getSetting(location), START,
+                            START + DAY_MILLIS),
+                    HOURLY_COLUMNS, null, null, null);
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getDouble(3);
+                count++;
+            }
+            cursor.close();
+            if (i >= WARM_UP_QUERIES) {
+                nanos[i - WARM_UP_QUERIES] = System.nanoTime() - start;
+            }
+            assertEquals(8, count);
+        }
+        Arrays.sort(nanos);
+        long median = nanos[TIMED_QUERIES / 2];
+        Log.d(LOG_TAG, "Next 24 hours of one of " + LOCATION_COUNT + " locations: p50 "
+                + median / 1000 + " us, p95 " + nanos[TIMED_QUERIES * 95 / 100] / 1000 + " us");
+        assertTrue("Error: median query took " + median / 1000 + " us",
+                median < MAX_MEDIAN_NANOS);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Registers observers the way the forecast list and the detail view do, on weather/{location}
+    and weather/{location}/{date}, for two locations, and checks that each write only reaches
+    the observers of the rows it touched.
+ */
+public class TestNotificationScope extends AndroidTestCase {
+
+    static final String PARIS = "75001";
+    static final String BERLIN = "10115";
+    static final long TUESDAY = TestReplaceForecast.TODAY;
+    static final long WEDNESDAY = TUESDAY + DateUtils.DAY_IN_MILLIS;
+    static final int DAYS = 7;
+
+    // Every observer below hears it, and the provider never notifies it
+    static final Uri MARKER = WeatherContract.BASE_CONTENT_URI;
+
+    long mParisId;
+    long mBerlinId;
+    TestUtilities.TestContentObserver mParisList;
+    TestUtilities.TestContentObserver mParisTuesday;
+    TestUtilities.TestContentObserver mBerlinList;
+    TestUtilities.TestContentObserver mBerlinTuesday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        TestReplaceForecast helper = new TestReplaceForecast();
+        helper.setContext(mContext);
+        mParisId = helper.insertLocation(PARIS);
+        mBerlinId = helper.insertLocation(BERLIN);
+        helper.replace(mParisId, TestReplaceForecast.forecast(TUESDAY, DAYS, 0), -1);
+        helper.replace(mBerlinId, TestReplaceForecast.forecast(TUESDAY, DAYS, 0), -1);
+
+        mParisList = observe(WeatherEntry.buildWeatherLocation(PARIS));
+        mParisTuesday = observe(WeatherEntry.buildWeatherLocationWithDate(PARIS, TUESDAY));
+        mBerlinList = observe(WeatherEntry.buildWeatherLocation(BERLIN));
+        mBerlinTuesday = observe(WeatherEntry.buildWeatherLocationWithDate(BERLIN, TUESDAY));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        for (TestUtilities.TestContentObserver observer : new TestUtilities.TestContentObserver[]{
+                mParisList, mParisTuesday, mBerlinList, mBerlinTuesday}) {
+            resolver.unregisterContentObserver(observer);
+            observer.mHT.quit();
+        }
+        resolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    // As a cursor's notification URI registers
+    TestUtilities.TestContentObserver observe(Uri uri) {
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    List<Uri> changes(TestUtilities.TestContentObserver observer) {
+        return observer.takeChangesOrFail(mContext.getContentResolver(), MARKER);
+    }
+
+    void assertNotified(String error, TestUtilities.TestContentObserver observer) {
+        assertEquals("Error: " + error, 1, changes(observer).size());
+    }
+
+    void assertNotNotified(String error, TestUtilities.TestContentObserver observer) {
+        List<Uri> changes = changes(observer);
+        assertTrue("Error: " + error + " " + changes, changes.isEmpty());
+    }
+
+    static ContentValues dayValues(long locationId, long date, double high) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Rain");
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 500);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, 5);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 80);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1000);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 4);
+        values.put(WeatherEntry.COLUMN_DEGREES, 180);
+        return values;
+    }
+
+    static String[] dayArgs(long locationId, long date) {
+        return new String[]{Long.toString(locationId),
+                Long.toString(WeatherContract.normalizeDate(date))};
+    }
+
+    static final String DAY_SELECTION =
+            WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?";
+
+    public void testForecastOfOtherLocationNotifiesOnlyIt() {
+        TestReplaceForecast helper = new TestReplaceForecast();
+        helper.setContext(mContext);
+        helper.replace(mBerlinId, TestReplaceForecast.forecast(TUESDAY, DAYS, 1), -1);
+
+        assertNotified("Berlin's list should be told of Berlin's forecast", mBerlinList);
+        assertNotified("Berlin's Tuesday should be told of Berlin's forecast", mBerlinTuesday);
+        assertNotNotified("Paris's list shouldn't be told of Berlin's forecast", mParisList);
+        assertNotNotified("Paris's Tuesday shouldn't be told of Berlin's forecast",
+                mParisTuesday);
+    }
+
+    public void testUpdateOfOneDayNotifiesThatDay() {
+        int rows = mContext.getContentResolver().update(WeatherEntry.CONTENT_URI,
+                dayValues(mParisId, WEDNESDAY, 30), DAY_SELECTION, dayArgs(mParisId, WEDNESDAY));
+        assertEquals(1, rows);
+
+        List<Uri> changes = changes(mParisList);
+        assertEquals("Error: Paris's list shows Wednesday " + changes,
+                WeatherEntry.buildWeatherLocationWithDate(PARIS, WEDNESDAY), changes.get(0));
+        assertNotNotified("Paris's Tuesday shouldn't be told of Wednesday", mParisTuesday);
+        assertNotNotified("Berlin shouldn't be told of Paris", mBerlinList);
+    }
+
+    public void testInsertOfOneDayNotifiesThatDay() {
+        ContentValues tuesday = dayValues(mParisId, TUESDAY, 31);
+        // The insert replaces the stored Tuesday
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, tuesday);
+
+        assertNotified("Paris's Tuesday should be told of the new Tuesday", mParisTuesday);
+        assertNotified("Paris's list shows Tuesday", mParisList);
+        assertNotNotified("Berlin's Tuesday shouldn't be told of Paris's", mBerlinTuesday);
+    }
+
+    public void testBulkInsertNotifiesOncePerLocation() {
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            values[day] = dayValues(mParisId, TUESDAY + day * DateUtils.DAY_IN_MILLIS, 20 + day);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+
+        List<Uri> changes = changes(mParisList);
+        assertEquals("Error: a week of Paris should be one notification " + changes,
+                1, changes.size());
+        assertEquals(WeatherEntry.buildWeatherLocation(PARIS), changes.get(0));
+        assertNotified("Paris's Tuesday was in the week", mParisTuesday);
+        assertNotNotified("Berlin shouldn't be told of Paris", mBerlinList);
+    }
+
+    public void testDeleteNotifiesTheRowsDeleted() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(mBerlinId)});
+
+        assertNotified("Berlin's list should be told its days are gone", mBerlinList);
+        assertNotified("Berlin's Tuesday should be told it is gone", mBerlinTuesday);
+        assertNotNotified("Paris's list shouldn't be told of Berlin", mParisList);
+    }
+
+    public void testDeleteOfNothingNotifiesNobody() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " < ?", new String[]{Long.toString(TUESDAY)});
+
+        assertNotNotified("nothing was deleted", mParisList);
+        assertNotNotified("nothing was deleted", mBerlinList);
+    }
+
+    public void testDeleteAllNotifiesEveryone() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        assertNotified("Paris's list should be told its days are gone", mParisList);
+        assertNotified("Paris's Tuesday should be told it is gone", mParisTuesday);
+        assertNotified("Berlin's list should be told its days are gone", mBerlinList);
+        assertNotified("Berlin's Tuesday should be told it is gone", mBerlinTuesday);
+    }
+
+    public void testBatchNotifiesOncePerLocation() throws Exception {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int day = 1; day < 4; day++) {
+            long date = TUESDAY + day * DateUtils.DAY_IN_MILLIS;
+            operations.add(ContentProviderOperation.newUpdate(WeatherEntry.CONTENT_URI)
+                    .withValue(WeatherEntry.COLUMN_MAX_TEMP, 25 + day)
+                    .withSelection(DAY_SELECTION, dayArgs(mParisId, date))
+                    .build());
+        }
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        List<Uri> changes = changes(mParisList);
+        assertEquals("Error: a batch over Paris should be one notification " + changes,
+                1, changes.size());
+        assertEquals(WeatherEntry.buildWeatherLocation(PARIS), changes.get(0));
+        assertNotNotified("Berlin shouldn't be told of Paris", mBerlinList);
+    }
+
+    public void testSyncNotifiesOnlyLocationsStored() {
+        android.os.Bundle extras = new android.os.Bundle();
+        extras.putLongArray(WeatherContract.EXTRA_LOCATION_IDS, new long[]{mParisId});
+        extras.putParcelableArray(WeatherContract.EXTRA_FORECASTS, new ForecastRows[]{
+                TestReplaceForecast.forecast(WEDNESDAY, DAYS, 2)});
+        extras.putStringArray(WeatherContract.EXTRA_PAYLOAD_HASHES, new String[]{null});
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_STORE_FORECASTS, null, extras);
+
+        assertNotified("Paris's list should be told of the sync", mParisList);
+        assertNotNotified("Berlin wasn't synced", mBerlinList);
+        assertNotNotified("Berlin wasn't synced", mBerlinTuesday);
+    }
+}
@@ -28,6 +28,7 @@ import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /*
@@ -56,11 +57,21 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                MetricsEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +171,19 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/metrics/
+        type = mContext.getContentResolver().getType(MetricsEntry.CONTENT_URI);
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/metrics
+        assertEquals("Error: the MetricsEntry CONTENT_URI should return MetricsEntry.CONTENT_TYPE",
+                MetricsEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(
+                WeatherContract.HourlyEntry.buildHourlyLocation(testLocation));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/hourly
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location should return HourlyEntry.CONTENT_TYPE",
+                WeatherContract.HourlyEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +536,91 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    static ContentValues createMetricsValues(long started, long totalMillis, Long fanOutMillis) {
+        ContentValues values = new ContentValues();
+        values.put(MetricsEntry.COLUMN_STARTED, started);
+        values.put(MetricsEntry.COLUMN_OUTCOME, 0);
+        values.put(MetricsEntry.COLUMN_LOCATIONS, 1);
+        values.put(MetricsEntry.COLUMN_REQUESTS, 1);
+        values.put(MetricsEntry.COLUMN_TOTAL_MILLIS, totalMillis);
+        values.put(MetricsEntry.COLUMN_CONNECT_MILLIS, 10);
+        values.put(MetricsEntry.COLUMN_FIRST_BYTE_MILLIS, 20);
+        values.put(MetricsEntry.COLUMN_DOWNLOAD_MILLIS, 30);
+        values.put(MetricsEntry.COLUMN_PARSE_MILLIS, 5);
+        values.put(MetricsEntry.COLUMN_WRITE_MILLIS, 15);
+        values.put(MetricsEntry.COLUMN_DELETE_MILLIS, 1);
+        values.put(MetricsEntry.COLUMN_FAN_OUT_MILLIS, fanOutMillis);
+        values.put(MetricsEntry.COLUMN_BYTES, 4096);
+        values.put(MetricsEntry.COLUMN_ROWS_WRITTEN, 14);
+        values.put(MetricsEntry.COLUMN_ROWS_DELETED, 1);
+        values.put(MetricsEntry.COLUMN_THROTTLE_MILLIS, 0);
+        values.put(MetricsEntry.COLUMN_THROTTLED, 0);
+        values.put(MetricsEntry.COLUMN_RATE_TOKENS, 9.5);
+        return values;
+    }
+
+    // The metrics table keeps only the most recent syncs.
+    public void testMetricsRingBuffer() {
+        int extra = 10;
+        for (int i = 0; i < MetricsEntry.MAX_ROWS + extra; i++) {
+            mContext.getContentResolver().insert(MetricsEntry.CONTENT_URI,
+                    createMetricsValues(i, 100, null));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(MetricsEntry.CONTENT_URI,
+                new String[]{MetricsEntry.COLUMN_STARTED}, null, null,
+                MetricsEntry.COLUMN_STARTED + " ASC");
+        assertEquals("Error: the metrics table should be bounded",
+                MetricsEntry.MAX_ROWS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest syncs should have been dropped",
+                extra, cursor.getLong(0));
+        cursor.close();
+    }
+
+    public void testMetricsSummary() {
+        // Total times of 1 to 100 ms; only every other sync fanned out
+        for (int i = 1; i <= 100; i++) {
+            mContext.getContentResolver().insert(MetricsEntry.CONTENT_URI,
+                    createMetricsValues(i, i, i % 2 == 0 ? Long.valueOf(i * 10) : null));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(MetricsEntry.buildSummaryUri(),
+                null, null, null, null);
+        assertEquals(MetricsEntry.SUMMARY_METRICS.length, cursor.getCount());
+        int metricIndex = cursor.getColumnIndex(MetricsEntry.COLUMN_METRIC);
+        int samplesIndex = cursor.getColumnIndex(MetricsEntry.COLUMN_SAMPLES);
+        int p50Index = cursor.getColumnIndex(MetricsEntry.COLUMN_P50);
+        int p95Index = cursor.getColumnIndex(MetricsEntry.COLUMN_P95);
+        boolean sawTotal = false;
+        boolean sawFanOut = false;
+        while (cursor.moveToNext()) {
+            String metric = cursor.getString(metricIndex);
+            if (MetricsEntry.COLUMN_TOTAL_MILLIS.equals(metric)) {
+                sawTotal = true;
+                assertEquals(100, cursor.getInt(samplesIndex));
+                assertEquals(50, cursor.getLong(p50Index));
+                assertEquals(95, cursor.getLong(p95Index));
+            } else if (MetricsEntry.COLUMN_FAN_OUT_MILLIS.equals(metric)) {
+                sawFanOut = true;
+                // Syncs without a fan-out aren't counted as zero
+                assertEquals(50, cursor.getInt(samplesIndex));
+                assertEquals(500, cursor.getLong(p50Index));
+                assertEquals(960, cursor.getLong(p95Index));
+            }
+        }
+        cursor.close();
+        assertTrue(sawTotal);
+        assertTrue(sawFanOut);
+
+        // The selection picks the syncs the percentiles are taken over
+        cursor = mContext.getContentResolver().query(MetricsEntry.buildSummaryUri(),
+                null, MetricsEntry.COLUMN_STARTED + " > ?", new String[]{"90"}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(MetricsEntry.COLUMN_TOTAL_MILLIS, cursor.getString(metricIndex));
+        assertEquals(10, cursor.getInt(samplesIndex));
+        assertEquals(95, cursor.getLong(p50Index));
+        cursor.close();
+    }
 }
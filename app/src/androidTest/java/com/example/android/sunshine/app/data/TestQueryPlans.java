@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Runs EXPLAIN QUERY PLAN on every query shape WeatherProvider builds, against half a year of
+    history for a few dozen locations, and fails if any of them scans a whole table or index,
+    or sorts its rows, instead of searching an index for the one location asked for.
+
+    The sync_metrics table is left out: it is a ring buffer of at most MetricsEntry.MAX_ROWS rows
+    and is only ever read whole.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    static final String DATABASE_NAME = "query_plans_test.db";
+    static final int LOCATION_COUNT = 36;
+    static final int DAYS = 180;
+    static final long START = 1435708800000L;  // July 1st, 2015, 00:00 UTC
+
+    // As ForecastFragment.FORECAST_COLUMNS
+    static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // As DetailFragment.DETAIL_COLUMNS
+    static final String[] DETAIL_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    static final String[] HOURLY_COLUMNS = {
+            HourlyEntry.COLUMN_DATE_TIME,
+            HourlyEntry.COLUMN_WEATHER_ID,
+            HourlyEntry.COLUMN_SHORT_DESC,
+            HourlyEntry.COLUMN_TEMP
+    };
+
+    static final String DATE_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    WeatherDbHelper mHelper;
+    SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new WeatherDbHelper(mContext, DATABASE_NAME, true);
+        mDb = mHelper.getWritableDatabase();
+        SQLiteStatement insertWeather = mDb.compileStatement(TestDbContention.INSERT_WEATHER);
+        SQLiteStatement insertHourly = mDb.compileStatement("INSERT INTO " +
+                HourlyEntry.TABLE_NAME + " (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_DATE_TIME + ", " + HourlyEntry.COLUMN_WEATHER_ID + ", " +
+                HourlyEntry.COLUMN_SHORT_DESC + ", " + HourlyEntry.COLUMN_TEMP + ", " +
+                HourlyEntry.COLUMN_HUMIDITY + ", " + HourlyEntry.COLUMN_PRESSURE + ", " +
+                HourlyEntry.COLUMN_WIND_SPEED + ", " + HourlyEntry.COLUMN_DEGREES +
+                ") VALUES (?, ?, 800, 'Clear', 12.5, 60, 1010, 2.5, 270)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < LOCATION_COUNT; i++) {
+                mDb.execSQL("INSERT INTO " + LocationEntry.TABLE_NAME + " (" +
+                        LocationEntry._ID + ", " + LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                        LocationEntry.COLUMN_CITY_NAME + ", " + LocationEntry.COLUMN_COORD_LAT +
+                        ", " + LocationEntry.COLUMN_COORD_LONG + ") VALUES (?, ?, ?, 37.4, " +
+                        "-122.1)", new Object[] {i + 1, getSetting(i), "City " + i});
+                for (int day = 0; day < DAYS; day++) {
+                    insertWeather.bindLong(1, i + 1);
+                    insertWeather.bindLong(2, START + day * DateUtils.DAY_IN_MILLIS);
+                    insertWeather.bindDouble(3, 5 + day % 10);
+                    insertWeather.bindDouble(4, 15 + day % 10);
+                    insertWeather.executeInsert();
+                }
+                for (int step = 0; step < 5 * 8; step++) {
+                    insertHourly.bindLong(1, i + 1);
+                    insertHourly.bindLong(2, START + step * HourlyEntry.STEP_MILLIS);
+                    insertHourly.executeInsert();
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insertWeather.close();
+            insertHourly.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    static String getSetting(int location) {
+        return Integer.toString(94000 + location);
+    }
+
+    // weather/{location}?date=..., the forecast list, the widgets and Muzei
+    public void testForecastListPlan() {
+        assertSearchesOneLocation(WeatherProvider.sWeatherByLocationSettingQueryBuilder
+                        .buildQuery(FORECAST_COLUMNS,
+                                WeatherProvider.sLocationSettingWithStartDateSelection,
+                                null, null, DATE_ORDER, null),
+                getSetting(7), Long.toString(START + 90 * DateUtils.DAY_IN_MILLIS));
+    }
+
+    // weather/{location}
+    public void testAllDaysOfLocationPlan() {
+        assertSearchesOneLocation(WeatherProvider.sWeatherByLocationSettingQueryBuilder
+                        .buildQuery(FORECAST_COLUMNS, WeatherProvider.sLocationSettingSelection,
+                                null, null, DATE_ORDER, null),
+                getSetting(7));
+    }
+
+    // weather/{location}/{date}, the detail view and the notification
+    public void testDetailPlan() {
+        assertSearchesOneLocation(WeatherProvider.sWeatherByLocationSettingQueryBuilder
+                        .buildQuery(DETAIL_COLUMNS,
+                                WeatherProvider.sLocationSettingAndDaySelection,
+                                null, null, DATE_ORDER, null),
+                getSetting(7), Long.toString(START + 90 * DateUtils.DAY_IN_MILLIS));
+    }
+
+    // hourly/{location}?start=...&end=...
+    public void testHourlyPlan() {
+        assertSearchesOneLocation(WeatherProvider.sHourlyByLocationSettingQueryBuilder
+                        .buildQuery(HOURLY_COLUMNS,
+                                WeatherProvider.sLocationSettingBetweenSelection,
+                                null, null, WeatherProvider.sHourlyOrder, null),
+                getSetting(7), Long.toString(START),
+                Long.toString(START + DateUtils.DAY_IN_MILLIS));
+    }
+
+    // METHOD_REPLACE_FORECAST's prune of one location's past days
+    public void testLocationPrunePlan() {
+        assertSearchesOneLocation("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                        WeatherProvider.sLocationPruneSelection,
+                "8", Long.toString(START + 90 * DateUtils.DAY_IN_MILLIS));
+    }
+
+    // location, looked up by setting by the sync and by forecast pushes
+    public void testLocationBySettingPlan() {
+        assertNoScan("SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+                " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?", getSetting(7));
+    }
+
+    /**
+     * Asserts that the query searches an index for the location's rows only, and reads them
+     * in order.
+     */
+    void assertSearchesOneLocation(String sql, String... args) {
+        String plan = assertNoScan(sql, args);
+        assertTrue("Error: the rows should be searched by location\n" + plan,
+                plan.contains(WeatherEntry.COLUMN_LOC_KEY + "=?"));
+        assertFalse("Error: the rows should already be in order in the index\n" + plan,
+                plan.contains("TEMP B-TREE"));
+    }
+
+    /**
+     * @return the query's plan, one step per line.
+     */
+    String assertNoScan(String sql, String... args) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = cursor.getColumnIndex("detail");
+        StringBuilder plan = new StringBuilder();
+        boolean scans = false;
+        try {
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex);
+                // "SCAN TABLE t", or "SCAN t" in newer versions, with or without an index
+                scans |= detail.startsWith("SCAN ");
+                plan.append(detail).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(LOG_TAG, sql + "\n" + plan);
+        assertFalse("Error: " + sql + "\nscans a whole table\n" + plan, scans);
+        return plan.toString();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Replaces the forecast of a location with METHOD_REPLACE_FORECAST, checks what is stored and
+    pruned and that only the observers of that location are told, once, then compares the
+    requeries it causes in a screen full of loaders with a bulkInsert followed by a delete.
+ */
+public class TestReplaceForecast extends AndroidTestCase {
+    public static final String LOG_TAG = TestReplaceForecast.class.getSimpleName();
+
+    static final String OTHER_LOCATION = "10001";
+    static final long TODAY = WeatherContract.normalizeDate(1450828800000L);  // Dec 23rd, 2015
+    static final int DAYS = 14;
+
+    // The forecast list, the detail pane, the widget and Muzei
+    static final int LOADERS = 4;
+    static final int ROUNDS = 20;
+
+    // Not a row of any table, only heard by observers of the weather URI
+    static final Uri MARKER = WeatherEntry.CONTENT_URI.buildUpon().appendPath("marker").build();
+
+    long mLocationId;
+    long mOtherLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mLocationId = insertLocation(TestUtilities.TEST_LOCATION);
+        mOtherLocationId = insertLocation(OTHER_LOCATION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    long insertLocation(String setting) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, "City " + setting);
+        values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        return ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, values));
+    }
+
+    /**
+     * @return days from the given day on, the high temperature of each offset by version.
+     */
+    static ForecastRows forecast(long firstDay, int days, int version) {
+        ForecastRows rows = new ForecastRows(days);
+        for (int day = 0; day < days; day++) {
+            rows.add(firstDay + day * DateUtils.DAY_IN_MILLIS, 1010, 60, 2.5, 270,
+                    20 + version, 10, "Clear", 800);
+        }
+        return rows;
+    }
+
+    Bundle replace(long locationId, ForecastRows rows, long pruneThroughDate) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_LOCATION_ID, locationId);
+        extras.putParcelable(WeatherContract.EXTRA_FORECAST, rows);
+        extras.putLong(WeatherContract.EXTRA_PRUNE_THROUGH_DATE, pruneThroughDate);
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST, null, extras);
+    }
+
+    int countDays(String setting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(setting), null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testReplaceStoresAndPrunesOneLocation() {
+        long yesterday = TODAY - DateUtils.DAY_IN_MILLIS;
+        replace(mLocationId, forecast(TODAY - 3 * DateUtils.DAY_IN_MILLIS, DAYS, 0), -1);
+        replace(mOtherLocationId, forecast(TODAY - 3 * DateUtils.DAY_IN_MILLIS, DAYS, 0), -1);
+
+        Bundle result = replace(mLocationId, forecast(TODAY, DAYS, 1), yesterday);
+        assertEquals(DAYS, result.getInt(WeatherContract.EXTRA_ROW_COUNT));
+        assertEquals("Error: the three days before today should have been pruned",
+                3, result.getInt(WeatherContract.EXTRA_DELETED_ROW_COUNT));
+        assertEquals(DAYS, countDays(TestUtilities.TEST_LOCATION));
+        assertEquals("Error: another location's days should be left alone",
+                DAYS, countDays(OTHER_LOCATION));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, TODAY),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the stored day should have been replaced", 21.0,
+                cursor.getDouble(0), 0.001);
+        cursor.close();
+    }
+
+    public void testReplaceNotifiesOnce() {
+        replace(mLocationId, forecast(TODAY - 3 * DateUtils.DAY_IN_MILLIS, DAYS, 0), -1);
+
+        ContentResolver resolver = mContext.getContentResolver();
+        TestUtilities.TestContentObserver rootObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        resolver.registerContentObserver(WeatherContract.BASE_CONTENT_URI, true, rootObserver);
+        resolver.registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        try {
+            replace(mLocationId, forecast(TODAY, DAYS, 1), TODAY - DateUtils.DAY_IN_MILLIS);
+
+            List<Uri> changes = weatherObserver.takeChangesOrFail(resolver, MARKER);
+            assertEquals("Error: the insert and the prune should be one notification " + changes,
+                    1, changes.size());
+            assertEquals("Error: only the replaced location's observers should be told",
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                    changes.get(0));
+            changes = rootObserver.takeChangesOrFail(resolver, MARKER);
+            assertEquals("Error: without a hash or steps only the weather table is told "
+                    + changes, 1, changes.size());
+
+            // A forecast that only changes one day is told as that day
+            ForecastRows oneDay = forecast(TODAY, 1, 2);
+            replace(mLocationId, oneDay, -1);
+            changes = weatherObserver.takeChangesOrFail(resolver, MARKER);
+            assertEquals(1, changes.size());
+            assertEquals(WeatherEntry.buildWeatherLocationWithDate(
+                    TestUtilities.TEST_LOCATION, TODAY), changes.get(0));
+        } finally {
+            resolver.unregisterContentObserver(rootObserver);
+            resolver.unregisterContentObserver(weatherObserver);
+            rootObserver.mHT.quit();
+            weatherObserver.mHT.quit();
+        }
+    }
+
+    public void testReplaceRecordsLocationAndSteps() {
+        ContentResolver resolver = mContext.getContentResolver();
+        TestUtilities.TestContentObserver rootObserver = TestUtilities.getTestContentObserver();
+        resolver.registerContentObserver(WeatherContract.BASE_CONTENT_URI, true, rootObserver);
+        HourlyRows steps = new HourlyRows(2);
+        steps.add(TODAY, 12, 1010, 60, 2.5, 270, "Clear", 800);
+        steps.add(TODAY + WeatherContract.HourlyEntry.STEP_MILLIS, 11, 1010, 62, 2, 260,
+                "Clear", 800);
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_LOCATION_ID, mLocationId);
+        extras.putParcelable(WeatherContract.EXTRA_FORECAST, forecast(TODAY, DAYS, 0));
+        extras.putString(WeatherContract.EXTRA_PAYLOAD_HASH, "0123abcd");
+        extras.putParcelable(WeatherContract.EXTRA_HOURLY_FORECAST, steps);
+        Bundle result;
+        try {
+            result = resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_REPLACE_FORECAST, null, extras);
+
+            // Each table written is told once
+            List<Uri> changes = rootObserver.takeChangesOrFail(resolver, MARKER);
+            assertEquals("Error: a replace with a hash and steps writes three tables " + changes,
+                    3, changes.size());
+            assertTrue(changes.contains(
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION)));
+            assertTrue(changes.contains(LocationEntry.CONTENT_URI));
+            assertTrue(changes.contains(WeatherContract.HourlyEntry.CONTENT_URI));
+        } finally {
+            resolver.unregisterContentObserver(rootObserver);
+            rootObserver.mHT.quit();
+        }
+
+        assertEquals(DAYS, result.getInt(WeatherContract.EXTRA_ROW_COUNT));
+        assertEquals(2, result.getInt(WeatherContract.EXTRA_HOURLY_ROW_COUNT));
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_PAYLOAD_HASH},
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mLocationId)}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("0123abcd", cursor.getString(0));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(WeatherContract.HourlyEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * Stands in for a CursorLoader: requeries its URI whenever it is told of a change.
+     */
+    static class RequeryingObserver extends ContentObserver {
+        final ContentResolver mResolver;
+        final Uri mUri;
+        final AtomicInteger mRequeries = new AtomicInteger();
+        final AtomicLong mRequeryNanos = new AtomicLong();
+        volatile boolean mMarkerSeen;
+
+        RequeryingObserver(Handler handler, ContentResolver resolver, Uri uri) {
+            super(handler);
+            mResolver = resolver;
+            mUri = uri;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (MARKER.equals(uri)) {
+                mMarkerSeen = true;
+                return;
+            }
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(mUri, TestQueryPlans.FORECAST_COLUMNS, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            cursor.getCount();
+            cursor.close();
+            mRequeryNanos.addAndGet(System.nanoTime() - start);
+            mRequeries.incrementAndGet();
+        }
+    }
+
+    public void testBenchmarkRequeryStorm() {
+        long[] separate = runRequeryStorm(false);
+        long[] atomic = runRequeryStorm(true);
+        Log.d(LOG_TAG, "bulkInsert then delete: " + separate[0] + " requeries taking " +
+                separate[1] / 1000000 + "ms over " + ROUNDS + " syncs of " + LOADERS + " loaders");
+        Log.d(LOG_TAG, "replace_forecast: " + atomic[0] + " requeries taking " +
+                atomic[1] / 1000000 + "ms over " + ROUNDS + " syncs of " + LOADERS + " loaders");
+
+        assertEquals("Error: an insert and a delete should make every loader requery twice",
+                2 * ROUNDS * LOADERS, separate[0]);
+        assertEquals("Error: a replace should make every loader requery once",
+                ROUNDS * LOADERS, atomic[0]);
+    }
+
+    /**
+     * Stores a forecast shifted by a day ROUNDS times, pruning the day before, while LOADERS
+     * observers requery.
+     *
+     * @return the number of requeries, and the nanoseconds they took between them.
+     */
+    long[] runRequeryStorm(boolean atomic) {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        // So that the first round has a day to prune too
+        replace(mLocationId, forecast(TODAY - DateUtils.DAY_IN_MILLIS, DAYS, 0), -1);
+
+        HandlerThread thread = new HandlerThread("LoaderThread");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        final RequeryingObserver[] loaders = new RequeryingObserver[LOADERS];
+        for (int i = 0; i < LOADERS; i++) {
+            loaders[i] = new RequeryingObserver(handler, resolver,
+                    WeatherEntry.buildWeatherLocationWithStartDate(
+                            TestUtilities.TEST_LOCATION, TODAY));
+            resolver.registerContentObserver(WeatherEntry.CONTENT_URI, true, loaders[i]);
+        }
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                long firstDay = TODAY + round * DateUtils.DAY_IN_MILLIS;
+                long pruneThroughDate = firstDay - DateUtils.DAY_IN_MILLIS;
+                ForecastRows rows = forecast(firstDay, DAYS, round);
+                if (atomic) {
+                    replace(mLocationId, rows, pruneThroughDate);
+                } else {
+                    resolver.bulkInsert(WeatherEntry.CONTENT_URI, toValues(mLocationId, rows));
+                    resolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[]{Long.toString(pruneThroughDate)});
+                }
+            }
+            // Each loader hears the marker after every change notified before it
+            resolver.notifyChange(MARKER, null);
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    for (RequeryingObserver loader : loaders) {
+                        if (!loader.mMarkerSeen) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }.run();
+        } finally {
+            for (RequeryingObserver loader : loaders) {
+                resolver.unregisterContentObserver(loader);
+            }
+            thread.quit();
+        }
+
+        long requeries = 0;
+        long nanos = 0;
+        for (RequeryingObserver loader : loaders) {
+            requeries += loader.mRequeries.get();
+            nanos += loader.mRequeryNanos.get();
+        }
+        return new long[]{requeries, nanos};
+    }
+
+    static ContentValues[] toValues(long locationId, ForecastRows rows) {
+        ContentValues[] values = new ContentValues[rows.mSize];
+        for (int day = 0; day < rows.mSize; day++) {
+            values[day] = new ContentValues();
+            values[day].put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            values[day].put(WeatherEntry.COLUMN_DATE, rows.mDates[day]);
+            values[day].put(WeatherEntry.COLUMN_SHORT_DESC, rows.mShortDescs[day]);
+            values[day].put(WeatherEntry.COLUMN_WEATHER_ID, rows.mWeatherIds[day]);
+            values[day].put(WeatherEntry.COLUMN_MIN_TEMP, rows.mMinTemps[day]);
+            values[day].put(WeatherEntry.COLUMN_MAX_TEMP, rows.mMaxTemps[day]);
+            values[day].put(WeatherEntry.COLUMN_HUMIDITY, rows.mHumidities[day]);
+            values[day].put(WeatherEntry.COLUMN_PRESSURE, rows.mPressures[day]);
+            values[day].put(WeatherEntry.COLUMN_WIND_SPEED, rows.mWindSpeeds[day]);
+            values[day].put(WeatherEntry.COLUMN_DEGREES, rows.mDegrees[day]);
+        }
+        return values;
+    }
+}
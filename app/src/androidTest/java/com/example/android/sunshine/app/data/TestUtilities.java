@@ -15,6 +15,7 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -27,6 +28,9 @@ import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -119,9 +123,11 @@ public class TestUtilities extends AndroidTestCase {
         Note that this only tests that the onChange function is called; it does not test that the
         correct Uri is returned.
      */
-    static class TestContentObserver extends ContentObserver {
-        final HandlerThread mHT;
+    public static class TestContentObserver extends ContentObserver {
+        public final HandlerThread mHT;
         boolean mContentChanged;
+        // Every URI notified, in order, guarded by itself
+        final List<Uri> mChangedUris = new ArrayList<Uri>();
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -142,9 +148,37 @@ public class TestUtilities extends AndroidTestCase {
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
+            synchronized (mChangedUris) {
+                mChangedUris.add(uri);
+            }
             mContentChanged = true;
         }
 
+        /**
+         * Notifies the marker URI, which the observer must hear, and waits for it.  Observers
+         * are told in the order changes are notified, so once the marker arrives so has every
+         * change notified before it.
+         *
+         * @return the URIs notified since the last call, markers aside.
+         */
+        public List<Uri> takeChangesOrFail(ContentResolver resolver, final Uri marker) {
+            resolver.notifyChange(marker, null);
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    synchronized (mChangedUris) {
+                        return mChangedUris.contains(marker);
+                    }
+                }
+            }.run();
+            synchronized (mChangedUris) {
+                List<Uri> changes = new ArrayList<Uri>(mChangedUris);
+                mChangedUris.clear();
+                changes.removeAll(Collections.singleton(marker));
+                return changes;
+            }
+        }
+
         public void waitForNotificationOrFail() {
             // Note: The PollingCheck class is taken from the Android CTS (Compatibility Test Suite).
             // It's useful to look at the Android CTS source for ideas on how to test your Android
@@ -160,7 +194,7 @@ public class TestUtilities extends AndroidTestCase {
         }
     }
 
-    static TestContentObserver getTestContentObserver() {
+    public static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
 }
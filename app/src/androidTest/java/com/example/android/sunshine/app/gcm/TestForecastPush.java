@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.gcm;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+/*
+    Feeds synthetic push bundles to the listener and checks what reaches the provider.
+ */
+public class TestForecastPush extends AndroidTestCase {
+
+    // Not a preferred location, so an unknown one doesn't start a sync
+    static final String LOCATION = "99705";
+
+    long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, LOCATION);
+        location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, location);
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    static Bundle newPush(String forecast) {
+        Bundle data = new Bundle();
+        data.putString(MyGcmListenerService.EXTRA_FORECAST, forecast);
+        return data;
+    }
+
+    static String fullDay(long date, double high) {
+        return "{\"dt\":" + date / 1000 + ",\"max\":" + high + ",\"min\":-5.5,\"id\":600,"
+                + "\"main\":\"Snow\",\"humidity\":80,\"pressure\":1012.5,\"speed\":3.5,"
+                + "\"deg\":270}";
+    }
+
+    Cursor queryDay(long date) {
+        return mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION, date),
+                null, null, null, null);
+    }
+
+    public void testCompleteDaysAreStored() {
+        long tomorrow = mToday + DateUtils.DAY_IN_MILLIS;
+        String forecast = "{\"loc\":\"" + LOCATION + "\",\"days\":["
+                + fullDay(mToday, 1.5) + "," + fullDay(tomorrow, 2.5) + "]}";
+        assertEquals(MyGcmListenerService.PUSH_APPLIED,
+                MyGcmListenerService.handleForecastPush(mContext, newPush(forecast)));
+
+        Cursor cursor = queryDay(tomorrow);
+        assertTrue("Error: the pushed day wasn't stored", cursor.moveToFirst());
+        assertEquals(2.5, cursor.getDouble(
+                cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)));
+        assertEquals("Snow", cursor.getString(
+                cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)));
+        cursor.close();
+    }
+
+    public void testPartialDayUpdatesOnlyItsFields() {
+        String forecast = "{\"loc\":\"" + LOCATION + "\",\"days\":[" + fullDay(mToday, 1.5) + "]}";
+        MyGcmListenerService.handleForecastPush(mContext, newPush(forecast));
+
+        forecast = "{\"loc\":\"" + LOCATION + "\",\"days\":[{\"dt\":" + mToday / 1000
+                + ",\"max\":4,\"main\":\"Clear\",\"id\":800}]}";
+        assertEquals(MyGcmListenerService.PUSH_APPLIED,
+                MyGcmListenerService.handleForecastPush(mContext, newPush(forecast)));
+
+        Cursor cursor = queryDay(mToday);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(4.0, cursor.getDouble(
+                cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)));
+        assertEquals(-5.5, cursor.getDouble(
+                cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+        assertEquals(800, cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)));
+        assertEquals(80, cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_HUMIDITY)));
+        cursor.close();
+    }
+
+    public void testPartialDayWithoutStoredRowIsIgnored() throws JSONException {
+        ForecastDelta delta = ForecastDelta.decode("{\"loc\":\"" + LOCATION + "\",\"days\":["
+                + "{\"dt\":" + mToday / 1000 + ",\"max\":4}]}", System.currentTimeMillis());
+        try {
+            assertEquals(0, delta.apply(mContext));
+        } catch (Exception e) {
+            fail(e.toString());
+        }
+        Cursor cursor = queryDay(mToday);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testUnknownLocationIsNotStored() {
+        String forecast = "{\"loc\":\"10001\",\"days\":[" + fullDay(mToday, 1.5) + "]}";
+        assertEquals(MyGcmListenerService.PUSH_UNKNOWN_LOCATION,
+                MyGcmListenerService.handleForecastPush(mContext, newPush(forecast)));
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testInvalidPayloadsAreRejected() {
+        StringBuilder tooLong = new StringBuilder("{\"loc\":\"" + LOCATION + "\",\"days\":[");
+        while (tooLong.length() <= ForecastDelta.MAX_PAYLOAD_LENGTH) {
+            tooLong.append(fullDay(mToday, 1.5)).append(',');
+        }
+        tooLong.append(fullDay(mToday, 1.5)).append("]}");
+
+        StringBuilder tooManyDays = new StringBuilder("{\"loc\":\"" + LOCATION + "\",\"days\":[");
+        for (int i = 0; i <= ForecastDelta.MAX_DAYS; i++) {
+            tooManyDays.append(i > 0 ? "," : "").append("{\"dt\":").append(mToday / 1000)
+                    .append(",\"max\":1}");
+        }
+        tooManyDays.append("]}");
+
+        String[] invalid = {
+                null,
+                "",
+                "not json",
+                "[]",
+                "{\"days\":[]}",
+                "{\"loc\":\"" + LOCATION + "\"}",
+                "{\"loc\":\"" + LOCATION + "\",\"days\":[{\"max\":1}]}",
+                "{\"loc\":\"" + LOCATION + "\",\"days\":[{\"dt\":" + mToday / 1000
+                        + ",\"max\":1000}]}",
+                "{\"loc\":\"" + LOCATION + "\",\"days\":[{\"dt\":" + mToday / 1000
+                        + ",\"humidity\":-1}]}",
+                "{\"loc\":\"" + LOCATION + "\",\"days\":[{\"dt\":" + mToday / 1000
+                        + ",\"max\":1,\"min\":2}]}",
+                "{\"loc\":\"" + LOCATION + "\",\"days\":[{\"dt\":"
+                        + (mToday + 100 * DateUtils.DAY_IN_MILLIS) / 1000 + ",\"max\":1}]}",
+                "{\"loc\":\"" + LOCATION + "\",\"days\":[{\"dt\":" + mToday / 1000
+                        + ",\"max\":\"warm\"}]}",
+                "{\"loc\":\"" + LOCATION + "\",\"days\":[" + fullDay(mToday, 1.5) + "]}{}",
+                tooLong.toString(),
+                tooManyDays.toString(),
+        };
+        for (String forecast : invalid) {
+            assertEquals("Error: should have rejected " + forecast,
+                    MyGcmListenerService.PUSH_INVALID,
+                    MyGcmListenerService.handleForecastPush(mContext, newPush(forecast)));
+        }
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: a rejected push shouldn't store anything", 0, cursor.getCount());
+        cursor.close();
+    }
+}
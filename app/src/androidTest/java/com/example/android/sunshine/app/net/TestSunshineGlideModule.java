@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.net;
+
+import android.test.AndroidTestCase;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Loads art through SunshineGlideModule's fetcher from a local stub server that redirects a
+    given number of times before answering with the image.
+ */
+public class TestSunshineGlideModule extends AndroidTestCase {
+
+    static final String ART = "not really a png";
+
+    StubHttpServer mServer;
+    final List<String> mAcceptEncodings = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                mAcceptEncodings.add(request.header(SunshineHttpClient.HEADER_ACCEPT_ENCODING));
+                // /art/{redirects left}, relative redirects in between
+                int left = Integer.parseInt(request.path.substring("/art/".length()));
+                if (left > 0) {
+                    return new StubHttpServer.Response(HttpURLConnection.HTTP_MOVED_TEMP)
+                            .header(SunshineGlideModule.UrlFetcher.HEADER_LOCATION,
+                                    "/art/" + (left - 1));
+                }
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK).body(ART);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    String load(int redirects) throws Exception {
+        SunshineGlideModule.UrlFetcher fetcher = new SunshineGlideModule.UrlFetcher(
+                SunshineHttpClient.getInstance(),
+                new GlideUrl(mServer.getUrl("/art/" + redirects)));
+        try {
+            InputStream body = fetcher.loadData(Priority.NORMAL);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            fetcher.cleanup();
+        }
+    }
+
+    public void testFollowsRedirects() throws Exception {
+        assertEquals(ART, load(SunshineGlideModule.UrlFetcher.MAX_REDIRECTS - 1));
+        assertEquals(SunshineGlideModule.UrlFetcher.MAX_REDIRECTS, mAcceptEncodings.size());
+    }
+
+    public void testGivesUpAfterTooManyRedirects() throws Exception {
+        try {
+            load(SunshineGlideModule.UrlFetcher.MAX_REDIRECTS);
+            fail("Error: the fetcher should stop following redirects at some point");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testArtIsNotAskedForGzipped() throws Exception {
+        load(1);
+        for (String acceptEncoding : mAcceptEncodings) {
+            assertEquals("Error: images are already compressed",
+                    SunshineHttpClient.ENCODING_IDENTITY, acceptEncoding);
+        }
+    }
+}
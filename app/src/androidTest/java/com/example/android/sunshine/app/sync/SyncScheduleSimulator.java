@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays a recorded forecast history against a sync schedule and reports how many syncs it
+ * took and how stale the forecast on the device got.
+ *
+ * A history is what the server would have answered over time, one revision per line:
+ *
+ *   hour day:high/low/weatherId day:high/low/weatherId ...
+ *
+ * where hour is the time of the revision, in hours since the start of the history, and day
+ * numbers the days forecast.  Every sync picks up the latest revision; a revision that changed
+ * the forecast counts as stale from the moment it appeared until the next sync after it.
+ */
+public class SyncScheduleSimulator {
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Decides when to sync next.
+     */
+    public interface Policy {
+        /**
+         * @param before The forecast on the device before the sync that just ran.
+         * @param after The forecast after it.
+         * @param hourOfDay Local hour of the sync.
+         * @return seconds until the next sync.
+         */
+        long nextInterval(List<AdaptiveSyncScheduler.Day> before,
+                          List<AdaptiveSyncScheduler.Day> after, int hourOfDay);
+    }
+
+    /**
+     * The fixed SYNC_INTERVAL the app used to have.
+     */
+    public static class FixedPolicy implements Policy {
+        @Override
+        public long nextInterval(List<AdaptiveSyncScheduler.Day> before,
+                                 List<AdaptiveSyncScheduler.Day> after, int hourOfDay) {
+            return SunshineSyncAdapter.SYNC_INTERVAL;
+        }
+    }
+
+    /**
+     * AdaptiveSyncScheduler's decision, for a device that charges overnight, is on an unmetered
+     * network and is never opened.
+     */
+    public static class AdaptivePolicy implements Policy {
+        double mVolatility = AdaptiveSyncScheduler.DEFAULT_VOLATILITY;
+        long mLastInterval = -1;
+
+        @Override
+        public long nextInterval(List<AdaptiveSyncScheduler.Day> before,
+                                 List<AdaptiveSyncScheduler.Day> after, int hourOfDay) {
+            double sample = AdaptiveSyncScheduler.volatility(before, after);
+            if (sample >= 0 && mLastInterval != -1) {
+                mVolatility = AdaptiveSyncScheduler.smooth(mVolatility, sample, mLastInterval);
+            }
+            AdaptiveSyncScheduler.Conditions conditions = new AdaptiveSyncScheduler.Conditions();
+            conditions.volatility = mVolatility;
+            conditions.stormy = !after.isEmpty()
+                    && AdaptiveSyncScheduler.isStormy(after.get(0).weatherId);
+            conditions.hourOfDay = hourOfDay;
+            conditions.charging = hourOfDay < 7;
+            mLastInterval = AdaptiveSyncScheduler.computeInterval(conditions);
+            return mLastInterval;
+        }
+    }
+
+    public static class Report {
+        public int syncs;
+        // Revisions that changed the forecast
+        public int changes;
+        public long meanStalenessMillis;
+        public long maxStalenessMillis;
+
+        @Override
+        public String toString() {
+            return syncs + " syncs, " + changes + " changes, staleness mean "
+                    + meanStalenessMillis / 60000 + " min, max "
+                    + maxStalenessMillis / 60000 + " min";
+        }
+    }
+
+    static class Revision {
+        final long atMillis;
+        final List<AdaptiveSyncScheduler.Day> days;
+
+        Revision(long atMillis, List<AdaptiveSyncScheduler.Day> days) {
+            this.atMillis = atMillis;
+            this.days = days;
+        }
+    }
+
+    private final List<Revision> mRevisions = new ArrayList<Revision>();
+    private final int mStartHourOfDay;
+
+    /**
+     * @param history The recorded history, in the format above.
+     * @param startHourOfDay Local hour at which the history starts.
+     */
+    public SyncScheduleSimulator(String history, int startHourOfDay) {
+        mStartHourOfDay = startHourOfDay;
+        for (String line : history.trim().split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            long atMillis = (long) (Double.parseDouble(fields[0]) * HOUR_IN_MILLIS);
+            List<AdaptiveSyncScheduler.Day> days = new ArrayList<AdaptiveSyncScheduler.Day>();
+            for (int i = 1; i < fields.length; i++) {
+                String[] day = fields[i].split("[:/]");
+                days.add(new AdaptiveSyncScheduler.Day(Long.parseLong(day[0]),
+                        Double.parseDouble(day[1]), Double.parseDouble(day[2]),
+                        Integer.parseInt(day[3])));
+            }
+            mRevisions.add(new Revision(atMillis, days));
+        }
+    }
+
+    /**
+     * Syncs at the start of the history, then whenever the policy says, until the end of the
+     * last revision's day.
+     */
+    public Report replay(Policy policy) {
+        long endMillis = (mRevisions.get(mRevisions.size() - 1).atMillis / (24 * HOUR_IN_MILLIS)
+                + 1) * 24 * HOUR_IN_MILLIS;
+        List<Long> syncTimes = new ArrayList<Long>();
+        List<AdaptiveSyncScheduler.Day> onDevice = Collections.emptyList();
+        long now = 0;
+        while (now < endMillis) {
+            syncTimes.add(now);
+            List<AdaptiveSyncScheduler.Day> served = servedAt(now);
+            int hourOfDay = (int) ((mStartHourOfDay + now / HOUR_IN_MILLIS) % 24);
+            long interval = policy.nextInterval(onDevice, served, hourOfDay);
+            onDevice = served;
+            now += interval * 1000;
+        }
+
+        Report report = new Report();
+        report.syncs = syncTimes.size();
+        long totalStaleness = 0;
+        for (int i = 1; i < mRevisions.size(); i++) {
+            Revision revision = mRevisions.get(i);
+            if (AdaptiveSyncScheduler.volatility(mRevisions.get(i - 1).days, revision.days) <= 0) {
+                continue;
+            }
+            long pickedUp = endMillis;
+            for (long syncTime : syncTimes) {
+                if (syncTime >= revision.atMillis) {
+                    pickedUp = syncTime;
+                    break;
+                }
+            }
+            long staleness = pickedUp - revision.atMillis;
+            report.changes++;
+            totalStaleness += staleness;
+            report.maxStalenessMillis = Math.max(report.maxStalenessMillis, staleness);
+        }
+        if (report.changes > 0) {
+            report.meanStalenessMillis = totalStaleness / report.changes;
+        }
+        return report;
+    }
+
+    private List<AdaptiveSyncScheduler.Day> servedAt(long millis) {
+        List<AdaptiveSyncScheduler.Day> served = Collections.emptyList();
+        for (Revision revision : mRevisions) {
+            if (revision.atMillis > millis) {
+                break;
+            }
+            served = revision.days;
+        }
+        return served;
+    }
+}
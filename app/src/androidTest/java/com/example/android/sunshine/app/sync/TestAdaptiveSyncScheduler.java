@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Checks AdaptiveSyncScheduler's decision on its own, then replays recorded forecast histories
+    through SyncScheduleSimulator with the adaptive schedule and with the fixed SYNC_INTERVAL,
+    logging sync count against staleness for both.
+ */
+public class TestAdaptiveSyncScheduler extends AndroidTestCase {
+    public static final String LOG_TAG = TestAdaptiveSyncScheduler.class.getSimpleName();
+
+    // Three days of clear summer weather, revised every three hours by half a degree at most.
+    static final String HISTORY_STABLE =
+            "0 0:24/12/800 1:25/12/800 2:26/13/800\n" +
+            "3 0:24/12/800 1:25/12/800 2:26/13/800\n" +
+            "6 0:24/12/800 1:25/12/800 2:26.5/13/800\n" +
+            "9 0:24/12/800 1:25/12/800 2:26/13/800\n" +
+            "12 0:24/12/800 1:25/12/800 2:26/13/800\n" +
+            "15 0:24/12/800 1:25/12/800 2:26/13/800\n" +
+            "18 0:24/12/800 1:25/12/800 2:26.5/13/800\n" +
+            "21 0:24/12/800 1:25/12/800 2:26/13/800\n" +
+            "24 1:25/12/800 2:26/13/800 3:25/13/800\n" +
+            "27 1:25/12/800 2:26/13/800 3:25/13/800\n" +
+            "30 1:25/12/800 2:26/13/800 3:25.5/13/800\n" +
+            "33 1:25/12/800 2:26/13/800 3:25/13/800\n" +
+            "36 1:25/12/800 2:26/13/800 3:25/13/800\n" +
+            "39 1:25/12/800 2:26/13/800 3:25/13/800\n" +
+            "42 1:25/12/800 2:26/13/800 3:25.5/13/800\n" +
+            "45 1:25/12/800 2:26/13/800 3:25/13/800\n" +
+            "48 2:26/13/800 3:25/13/800 4:24/12/800\n" +
+            "51 2:26/13/800 3:25/13/800 4:24/12/800\n" +
+            "54 2:26/13/800 3:25/13/800 4:24.5/12/800\n" +
+            "57 2:26/13/800 3:25/13/800 4:24/12/800\n" +
+            "60 2:26/13/800 3:25/13/800 4:24/12/800\n" +
+            "63 2:26/13/800 3:25/13/800 4:24/12/800\n" +
+            "66 2:26/13/800 3:25/13/800 4:24.5/12/800\n" +
+            "69 2:26/13/800 3:25/13/800 4:24/12/800\n";
+
+    // A day of showers and thunderstorms, the forecast for today changing every hour, clearing
+    // up the next day.
+    static final String HISTORY_STORM =
+            "0 0:12/7/500 1:16/9/500 2:18/10/800\n" +
+            "1 0:14/10/501 1:18/9/800 2:18/10/800\n" +
+            "2 0:16/9/502 1:17/9/803 2:18/10/800\n" +
+            "3 0:13/8/211 1:16/9/500 2:18/10/800\n" +
+            "4 0:15/7/201 1:18/9/800 2:18/10/800\n" +
+            "5 0:12/10/501 1:17/9/803 2:18/10/800\n" +
+            "6 0:14/9/500 1:16/9/500 2:18/10/800\n" +
+            "7 0:16/8/520 1:18/9/800 2:18/10/800\n" +
+            "8 0:13/7/521 1:17/9/803 2:18/10/800\n" +
+            "9 0:15/10/502 1:16/9/500 2:18/10/800\n" +
+            "10 0:12/9/211 1:18/9/800 2:18/10/800\n" +
+            "11 0:14/8/500 1:17/9/803 2:18/10/800\n" +
+            "12 0:16/7/500 1:16/9/500 2:18/10/800\n" +
+            "13 0:13/10/501 1:18/9/800 2:18/10/800\n" +
+            "14 0:15/9/502 1:17/9/803 2:18/10/800\n" +
+            "15 0:12/8/211 1:16/9/500 2:18/10/800\n" +
+            "16 0:14/7/201 1:18/9/800 2:18/10/800\n" +
+            "17 0:16/10/501 1:17/9/803 2:18/10/800\n" +
+            "18 0:13/9/500 1:16/9/500 2:18/10/800\n" +
+            "19 0:15/8/520 1:18/9/800 2:18/10/800\n" +
+            "20 0:12/7/521 1:17/9/803 2:18/10/800\n" +
+            "21 0:14/10/502 1:16/9/500 2:18/10/800\n" +
+            "22 0:16/9/211 1:18/9/800 2:18/10/800\n" +
+            "23 0:13/8/500 1:17/9/803 2:18/10/800\n" +
+            "24 1:17/9/803 2:18/10/800 3:19/10/800\n" +
+            "27 1:17/9/803 2:18/10/800 3:19/10/800\n" +
+            "30 1:17/9/803 2:18/10/800 3:19/10/800\n" +
+            "33 1:17/9/803 2:18/10/800 3:19/10/800\n" +
+            "36 1:17/9/800 2:18/10/800 3:19/10/800\n" +
+            "39 1:17/9/800 2:18/10/800 3:19/10/800\n" +
+            "42 1:17/9/800 2:18/10/800 3:19/10/800\n" +
+            "45 1:17/9/800 2:18/10/800 3:19/10/800\n";
+
+    static AdaptiveSyncScheduler.Day day(long date, double high, double low, int weatherId) {
+        return new AdaptiveSyncScheduler.Day(date, high, low, weatherId);
+    }
+
+    public void testVolatility() {
+        List<AdaptiveSyncScheduler.Day> before = Arrays.asList(
+                day(1, 20, 10, 800), day(2, 21, 11, 800));
+
+        assertEquals(0.0, AdaptiveSyncScheduler.volatility(before, before));
+        // Only the days both cover count: day 2 changed its weather, day 3 is new
+        assertEquals(1.0, AdaptiveSyncScheduler.volatility(before, Arrays.asList(
+                day(2, 21, 11, 500), day(3, 22, 12, 800))));
+        // A shift of half the significant change in each temperature is half a change
+        double shift = AdaptiveSyncScheduler.SIGNIFICANT_TEMPERATURE_CHANGE / 2;
+        assertEquals(0.25, AdaptiveSyncScheduler.volatility(before, Arrays.asList(
+                day(1, 20 + shift, 10 - shift, 800), day(2, 21, 11, 800))), 1e-9);
+        // Nothing to compare with
+        assertEquals(-1.0, AdaptiveSyncScheduler.volatility(
+                Collections.<AdaptiveSyncScheduler.Day>emptyList(), before));
+    }
+
+    public void testVolatilityRisesFastAndDecaysWithTime() {
+        long interval = SunshineSyncAdapter.SYNC_INTERVAL;
+        assertEquals(0.5, AdaptiveSyncScheduler.smooth(0, 1, interval / 10), 1e-9);
+        // An unchanged forecast right after the last sync says little
+        assertEquals(0.95, AdaptiveSyncScheduler.smooth(1, 0, interval / 10), 1e-9);
+        assertEquals(0.5, AdaptiveSyncScheduler.smooth(1, 0, interval), 1e-9);
+    }
+
+    public void testIntervalFollowsConditions() {
+        AdaptiveSyncScheduler.Conditions conditions = new AdaptiveSyncScheduler.Conditions();
+        conditions.hourOfDay = 12;
+        assertEquals("Error: the default volatility should keep the old interval",
+                SunshineSyncAdapter.SYNC_INTERVAL,
+                AdaptiveSyncScheduler.computeInterval(conditions));
+
+        conditions.volatility = 0;
+        long steady = AdaptiveSyncScheduler.computeInterval(conditions);
+        assertEquals(2L * SunshineSyncAdapter.SYNC_INTERVAL, steady);
+
+        conditions.volatility = 0.5;
+        long volatile_ = AdaptiveSyncScheduler.computeInterval(conditions);
+        assertTrue(volatile_ < SunshineSyncAdapter.SYNC_INTERVAL);
+
+        conditions.stormy = true;
+        assertTrue(AdaptiveSyncScheduler.computeInterval(conditions) < volatile_);
+
+        conditions.stormy = false;
+        conditions.volatility = 0;
+        conditions.hourOfDay = 3;
+        assertTrue("Error: syncs should slow down at night",
+                AdaptiveSyncScheduler.computeInterval(conditions) > steady);
+        conditions.hourOfDay = 12;
+        conditions.foreground = true;
+        assertTrue("Error: syncs should speed up while the app is in use",
+                AdaptiveSyncScheduler.computeInterval(conditions) < steady);
+    }
+
+    public void testIntervalIsBounded() {
+        AdaptiveSyncScheduler.Conditions conditions = new AdaptiveSyncScheduler.Conditions();
+        conditions.volatility = 1;
+        conditions.stormy = true;
+        conditions.foreground = true;
+        conditions.charging = true;
+        conditions.hourOfDay = 12;
+        assertEquals(AdaptiveSyncScheduler.MIN_INTERVAL,
+                AdaptiveSyncScheduler.computeInterval(conditions));
+
+        conditions = new AdaptiveSyncScheduler.Conditions();
+        conditions.volatility = 0;
+        conditions.metered = true;
+        conditions.hourOfDay = 2;
+        assertEquals(AdaptiveSyncScheduler.MAX_INTERVAL,
+                AdaptiveSyncScheduler.computeInterval(conditions));
+
+        conditions.pushing = true;
+        assertEquals(AdaptiveSyncScheduler.MAX_PUSH_INTERVAL,
+                AdaptiveSyncScheduler.computeInterval(conditions));
+    }
+
+    public void testPushStretchesInterval() {
+        AdaptiveSyncScheduler.Conditions conditions = new AdaptiveSyncScheduler.Conditions();
+        conditions.hourOfDay = 12;
+        conditions.pushing = true;
+        assertEquals("Error: pushes should leave the sync as a safety net only",
+                (long) (SunshineSyncAdapter.SYNC_INTERVAL
+                        * AdaptiveSyncScheduler.PUSH_INTERVAL_FACTOR),
+                AdaptiveSyncScheduler.computeInterval(conditions));
+    }
+
+    public void testSimulateStableForecast() {
+        SyncScheduleSimulator simulator = new SyncScheduleSimulator(HISTORY_STABLE, 8);
+        SyncScheduleSimulator.Report fixed =
+                simulator.replay(new SyncScheduleSimulator.FixedPolicy());
+        SyncScheduleSimulator.Report adaptive =
+                simulator.replay(new SyncScheduleSimulator.AdaptivePolicy());
+        Log.d(LOG_TAG, "Stable forecast, fixed: " + fixed);
+        Log.d(LOG_TAG, "Stable forecast, adaptive: " + adaptive);
+
+        assertTrue("Error: a stable forecast should take fewer syncs",
+                adaptive.syncs < fixed.syncs);
+    }
+
+    public void testSimulateStorm() {
+        SyncScheduleSimulator simulator = new SyncScheduleSimulator(HISTORY_STORM, 8);
+        SyncScheduleSimulator.Report fixed =
+                simulator.replay(new SyncScheduleSimulator.FixedPolicy());
+        SyncScheduleSimulator.Report adaptive =
+                simulator.replay(new SyncScheduleSimulator.AdaptivePolicy());
+        Log.d(LOG_TAG, "Storm, fixed: " + fixed);
+        Log.d(LOG_TAG, "Storm, adaptive: " + adaptive);
+
+        // The clearing up on the second day comes once the schedule has calmed down again, so
+        // only the mean is compared
+        assertTrue("Error: a storm should be followed more closely",
+                adaptive.meanStalenessMillis < fixed.meanStalenessMillis * 2 / 3);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastRows;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Allocation regression test for the forecast ingest: a synthetic response of 10,000 days is
+    parsed into ForecastRows and stored with METHOD_STORE_FORECASTS, counting the objects the
+    test thread allocates on the way.  The provider runs in the test's process, so its work is
+    counted too.  The old path, ContentValues per day through bulkInsert, is measured the same
+    way for comparison.
+ */
+@SuppressWarnings("deprecation")
+public class TestForecastIngest extends AndroidTestCase {
+    public static final String LOG_TAG = TestForecastIngest.class.getSimpleName();
+
+    static final int DAY_COUNT = 10000;
+
+    // Generous, so that it only trips when something starts allocating per column again.
+    static final int ALLOCATIONS_PER_DAY_BUDGET = 100;
+
+    static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow"};
+
+    long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mLocationId = insertLocation();
+    }
+
+    long insertLocation() {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "99705");
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri locationUri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, locationValues);
+        return ContentUris.parseId(locationUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    static String buildPayload(int dayCount) {
+        StringBuilder json = new StringBuilder(dayCount * 220);
+        json.append("{\"city\":{\"id\":5870294,\"name\":\"North Pole\",")
+                .append("\"coord\":{\"lon\":-147.353,\"lat\":64.7488}},\"cod\":\"200\",\"list\":[");
+        for (int i = 0; i < dayCount; i++) {
+            if (i > 0) json.append(',');
+            int weather = i % DESCRIPTIONS.length;
+            json.append("{\"dt\":").append(1450814400L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(i % 30 - 10)
+                    .append(",\"min\":").append(i % 20 - 15).append('.').append(i % 10)
+                    .append(",\"max\":").append(i % 25 - 5).append('.').append(i % 7)
+                    .append("},\"pressure\":").append(990 + i % 40).append(".25")
+                    .append(",\"humidity\":").append(i % 100)
+                    .append(",\"weather\":[{\"id\":").append(800 + weather)
+                    .append(",\"main\":\"").append(DESCRIPTIONS[weather])
+                    .append("\",\"description\":\"synthetic\",\"icon\":\"01d\"}]")
+                    .append(",\"speed\":").append(i % 15).append(".5")
+                    .append(",\"deg\":").append(i % 360).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    // Parses the payload into ForecastRows and stores them with one provider call.
+    int ingest(String payload) throws Exception {
+        ForecastFetcher.Forecast forecast = new ForecastFetcher.Forecast(DAY_COUNT);
+        new ForecastJsonParser().parse(new StringReader(payload), forecast);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(WeatherContract.EXTRA_LOCATION_IDS, new long[]{mLocationId});
+        extras.putParcelableArray(WeatherContract.EXTRA_FORECASTS,
+                new ForecastRows[]{forecast.mRows});
+        extras.putStringArray(WeatherContract.EXTRA_PAYLOAD_HASHES, new String[]{null});
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_STORE_FORECASTS, null, extras)
+                .getInt(WeatherContract.EXTRA_ROW_COUNT);
+    }
+
+    // What the sync adapter used to do: a ContentValues per day, copied into an array for
+    // bulkInsert.
+    int ingestWithContentValues(String payload) throws Exception {
+        final List<ContentValues> values = new ArrayList<ContentValues>(DAY_COUNT);
+        final ForecastFetcher.Forecast dates = new ForecastFetcher.Forecast(DAY_COUNT);
+        new ForecastJsonParser().parse(new StringReader(payload), new ForecastJsonParser.Callback() {
+            @Override
+            public void onCity(String cityName, double lat, double lon) {
+            }
+
+            @Override
+            public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                              double windDirection, double high, double low,
+                              String description, int weatherId) {
+                ContentValues weatherValues = new ContentValues();
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        dates.mDayTime.setJulianDay(dates.mJulianStartDay + dayIndex));
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+                values.add(weatherValues);
+            }
+        });
+        return mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                values.toArray(new ContentValues[values.size()]));
+    }
+
+    public void testIngestStoresEveryDay() throws Throwable {
+        assertEquals(DAY_COUNT, ingest(buildPayload(DAY_COUNT)));
+        assertEquals(DAY_COUNT, countWeatherRows());
+    }
+
+    public void testIngestAllocations() throws Throwable {
+        String payload = buildPayload(DAY_COUNT);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            int baselineRows = ingestWithContentValues(payload);
+            int baselineAllocations = Debug.getThreadAllocCount();
+            assertEquals(DAY_COUNT, baselineRows);
+
+            deleteAllRecords();
+            mLocationId = insertLocation();
+
+            Debug.resetThreadAllocCount();
+            int rows = ingest(payload);
+            int allocations = Debug.getThreadAllocCount();
+            assertEquals(DAY_COUNT, rows);
+
+            Log.d(LOG_TAG, "ContentValues ingest: " + baselineAllocations + " allocations, "
+                    + (baselineAllocations / DAY_COUNT) + " per day");
+            Log.d(LOG_TAG, "ForecastRows ingest: " + allocations + " allocations, "
+                    + (allocations / DAY_COUNT) + " per day");
+
+            assertTrue("Error: " + allocations + " allocations for " + DAY_COUNT + " days",
+                    allocations <= ALLOCATIONS_PER_DAY_BUDGET * DAY_COUNT);
+            assertTrue("Error: the ingest allocates as much as the ContentValues path",
+                    allocations < baselineAllocations);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Checks the streaming ForecastJsonParser against the JSONObject tree parsing that the sync
+    adapter used to do, using responses recorded from OpenWeatherMap.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    /*
+        These responses were recorded from api.openweathermap.org/data/2.5/forecast/daily and
+        cut down to a few days.
+     */
+    static final String FIXTURE_MOUNTAIN_VIEW =
+            "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051}," +
+            "\"country\":\"US\",\"population\":0},\"cod\":\"200\",\"message\":0.0161,\"cnt\":3,\"list\":[" +
+            "{\"dt\":1450814400,\"temp\":{\"day\":13.45,\"min\":5.12,\"max\":13.45,\"night\":5.12,\"eve\":10.21,\"morn\":13.45}," +
+            "\"pressure\":1001.68,\"humidity\":83,\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}]," +
+            "\"speed\":2.86,\"deg\":172,\"clouds\":92,\"rain\":1.22}," +
+            "{\"dt\":1450900800,\"temp\":{\"day\":10.8,\"min\":4.41,\"max\":11.07,\"night\":6.3,\"eve\":9.62,\"morn\":4.41}," +
+            "\"pressure\":1004.75,\"humidity\":88,\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}]," +
+            "\"speed\":1.21,\"deg\":306,\"clouds\":0}," +
+            "{\"dt\":1450987200,\"temp\":{\"day\":11.16,\"min\":3.27,\"max\":11.16,\"night\":3.27,\"eve\":7.2,\"morn\":5.02}," +
+            "\"pressure\":1011.26,\"humidity\":79,\"weather\":[{\"id\":803,\"main\":\"Clouds\",\"description\":\"broken clouds\",\"icon\":\"04d\"}," +
+            "{\"id\":701,\"main\":\"Mist\",\"description\":\"mist\",\"icon\":\"50d\"}]," +
+            "\"speed\":1.56,\"deg\":342,\"clouds\":64}]}";
+
+    // Same data, but with the list ahead of the city and the code sent as a number.
+    static final String FIXTURE_LIST_FIRST =
+            "{\"cod\":200,\"cnt\":2,\"list\":[" +
+            "{\"dt\":1450814400,\"temp\":{\"min\":-3.5,\"max\":1},\"pressure\":1020,\"humidity\":100," +
+            "\"weather\":[{\"id\":601,\"main\":\"Snow\",\"description\":\"snow\",\"icon\":\"13d\"}],\"speed\":7.2,\"deg\":0}," +
+            "{\"dt\":1450900800,\"temp\":{\"min\":-7.25,\"max\":-2.5},\"pressure\":1024.5,\"humidity\":92," +
+            "\"weather\":[{\"id\":600,\"main\":\"Snow\",\"description\":\"light snow\",\"icon\":\"13d\"}],\"speed\":3,\"deg\":15.5}]," +
+            "\"city\":{\"name\":\"North Pole\",\"coord\":{\"lat\":64.7488,\"lon\":-147.353}}}";
+
+    // Recorded from api.openweathermap.org/data/2.5/forecast, cut down to three steps.
+    static final String FIXTURE_HOURLY =
+            "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051}," +
+            "\"country\":\"US\"},\"cod\":\"200\",\"message\":0.0042,\"cnt\":3,\"list\":[" +
+            "{\"dt\":1450828800,\"main\":{\"temp\":11.2,\"temp_min\":10.9,\"temp_max\":11.2,\"pressure\":1001.68," +
+            "\"sea_level\":1024.1,\"grnd_level\":1001.68,\"humidity\":83,\"temp_kf\":0.31}," +
+            "\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}]," +
+            "\"clouds\":{\"all\":92},\"wind\":{\"speed\":2.86,\"deg\":172.5},\"rain\":{\"3h\":0.4}," +
+            "\"sys\":{\"pod\":\"d\"},\"dt_txt\":\"2015-12-23 00:00:00\"}," +
+            "{\"dt\":1450839600,\"main\":{\"temp\":8.05,\"pressure\":1002.3,\"humidity\":88}," +
+            "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01n\"}]," +
+            "\"wind\":{\"speed\":1.21,\"deg\":306},\"dt_txt\":\"2015-12-23 03:00:00\"}," +
+            "{\"dt\":1450850400,\"main\":{\"temp\":6.4,\"pressure\":1003,\"humidity\":90}," +
+            "\"weather\":[{\"id\":803,\"main\":\"Clouds\",\"description\":\"broken clouds\",\"icon\":\"04n\"}]," +
+            "\"wind\":{\"speed\":1.56,\"deg\":342},\"dt_txt\":\"2015-12-23 06:00:00\"}]}";
+
+    static final String FIXTURE_NOT_FOUND =
+            "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+    static final String FIXTURE_TRUNCATED_DAY =
+            "{\"city\":{\"name\":\"Nowhere\",\"coord\":{\"lon\":0,\"lat\":0}},\"cod\":\"200\",\"list\":[" +
+            "{\"temp\":{\"min\":1,\"max\":2},\"pressure\":1000,\"humidity\":50,\"speed\":1,\"deg\":90}]}";
+
+    /*
+        Collects everything a parser reports as a flat list of strings, so the output of the two
+        parsers can be compared as a whole.
+     */
+    static class RecordingCallback implements ForecastJsonParser.Callback {
+        final List<String> mRecords = new ArrayList<String>();
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            mRecords.add("city " + cityName + " " + lat + " " + lon);
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low,
+                          String description, int weatherId) {
+            mRecords.add("day " + dayIndex + " " + pressure + " " + humidity + " " + windSpeed +
+                    " " + windDirection + " " + high + " " + low + " " + description + " " +
+                    weatherId);
+        }
+    }
+
+    /*
+        The tree parsing the sync adapter did before ForecastJsonParser, reporting to the same
+        callback.
+     */
+    static int parseWithJSONObject(String forecastJsonStr, RecordingCallback callback)
+            throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        if (forecastJson.has("cod")) {
+            int errorCode = forecastJson.getInt("cod");
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        callback.onCity(cityJson.getString("name"),
+                cityCoord.getDouble("lat"), cityCoord.getDouble("lon"));
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+            callback.onDay(i,
+                    dayForecast.getDouble("pressure"),
+                    dayForecast.getInt("humidity"),
+                    dayForecast.getDouble("speed"),
+                    dayForecast.getDouble("deg"),
+                    temperatureObject.getDouble("max"),
+                    temperatureObject.getDouble("min"),
+                    weatherObject.getString("main"),
+                    weatherObject.getInt("id"));
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    void assertParsersAgree(String name, String fixture) throws IOException, JSONException {
+        RecordingCallback expected = new RecordingCallback();
+        int expectedCode = parseWithJSONObject(fixture, expected);
+
+        RecordingCallback actual = new RecordingCallback();
+        int actualCode = new ForecastJsonParser().parse(new StringReader(fixture), actual);
+
+        assertEquals("Error: message code differs for " + name, expectedCode, actualCode);
+
+        // The streaming parser may see the days before the city, so compare them separately.
+        List<String> expectedDays = new ArrayList<String>();
+        List<String> actualDays = new ArrayList<String>();
+        String expectedCity = null;
+        String actualCity = null;
+        for (String record : expected.mRecords) {
+            if (record.startsWith("city ")) expectedCity = record; else expectedDays.add(record);
+        }
+        for (String record : actual.mRecords) {
+            if (record.startsWith("city ")) actualCity = record; else actualDays.add(record);
+        }
+        assertEquals("Error: city differs for " + name, expectedCity, actualCity);
+        assertEquals("Error: days differ for " + name, expectedDays, actualDays);
+    }
+
+    public void testRecordedForecast() throws Throwable {
+        assertParsersAgree("Mountain View", FIXTURE_MOUNTAIN_VIEW);
+    }
+
+    public void testListBeforeCity() throws Throwable {
+        assertParsersAgree("list first", FIXTURE_LIST_FIRST);
+    }
+
+    public void testErrorResponse() throws Throwable {
+        assertParsersAgree("not found", FIXTURE_NOT_FOUND);
+    }
+
+    public void testHourlyForecast() throws Throwable {
+        final List<String> records = new ArrayList<String>();
+        int code = new ForecastJsonParser().parseHourly(new StringReader(FIXTURE_HOURLY),
+                new ForecastJsonParser.HourlyCallback() {
+                    @Override
+                    public void onCity(String cityName, double lat, double lon) {
+                        records.add("city " + cityName);
+                    }
+
+                    @Override
+                    public void onStep(int stepIndex, long dateTime, double temperature,
+                                       double pressure, int humidity, double windSpeed,
+                                       double windDirection, String description,
+                                       int weatherId) {
+                        records.add("step " + stepIndex + " " + dateTime + " " + temperature +
+                                " " + pressure + " " + humidity + " " + windSpeed + " " +
+                                windDirection + " " + description + " " + weatherId);
+                    }
+                });
+        assertEquals(HttpURLConnection.HTTP_OK, code);
+        assertEquals(Arrays.asList(
+                "city Mountain View",
+                "step 0 1450828800000 11.2 1001.68 83 2.86 172.5 Rain 500",
+                "step 1 1450839600000 8.05 1002.3 88 1.21 306.0 Clear 800",
+                "step 2 1450850400000 6.4 1003.0 90 1.56 342.0 Clouds 803"), records);
+
+        // A daily response has no steps to offer
+        try {
+            new ForecastJsonParser().parseHourly(new StringReader(FIXTURE_MOUNTAIN_VIEW),
+                    new ForecastFetcher.Hourly(ForecastFetcher.NUM_STEPS, null));
+            fail("Error: a day should not parse as a step");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testIncompleteDayIsInvalid() throws Throwable {
+        try {
+            new ForecastJsonParser().parse(new StringReader(FIXTURE_TRUNCATED_DAY),
+                    new RecordingCallback());
+            fail("Error: a day without a weather entry should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testMalformedJsonIsInvalid() throws Throwable {
+        try {
+            new ForecastJsonParser().parse(new StringReader("{\"cod\":\"200\",\"list\":[{]}"),
+                    new RecordingCallback());
+            fail("Error: malformed JSON should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.net.SunshineHttpClient;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+
+/*
+    Caches responses with a size bound, then empties the database the way an upgrade does and
+    rebuilds it from the cache with the server gone.
+ */
+public class TestForecastPayloadCache extends AndroidTestCase {
+
+    static final String PAYLOAD = TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearCache();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearCache();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    void clearCache() {
+        mContext.getSharedPreferences(ForecastPayloadCache.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mContext.getSharedPreferences(SyncJournal.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        for (File dir : new File[]{
+                new File(mContext.getCacheDir(), ForecastPayloadCache.DIR_NAME),
+                new File(mContext.getFilesDir(), SyncJournal.DIR_NAME)}) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    File newPayloadFile(String body) throws Exception {
+        File file = File.createTempFile("payload", ".json", mContext.getCacheDir());
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public void testPayloadIsReadBackThroughAMap() throws Exception {
+        ForecastPayloadCache cache = new ForecastPayloadCache(mContext, 64 * 1024);
+        cache.put("94043", 1234, newPayloadFile(PAYLOAD));
+
+        ForecastPayloadCache.Payload payload = cache.get("94043");
+        assertNotNull(payload);
+        assertEquals(1234, payload.fetchedAt);
+        InputStream in = payload.open();
+        try {
+            assertEquals(PAYLOAD, new String(TestSyncJournal.readAll(in), "UTF-8"));
+        } finally {
+            in.close();
+        }
+        assertNull(cache.get("10001"));
+    }
+
+    public void testLeastRecentlyUsedIsEvictedFirst() throws Exception {
+        long size = PAYLOAD.getBytes("UTF-8").length;
+        ForecastPayloadCache cache = new ForecastPayloadCache(mContext, size * 5 / 2);
+        cache.put("a", 1, newPayloadFile(PAYLOAD));
+        cache.put("b", 1, newPayloadFile(PAYLOAD));
+        // a is now used more recently than b
+        assertNotNull(cache.get("a"));
+        cache.put("c", 1, newPayloadFile(PAYLOAD));
+
+        assertNull("Error: the least recently used payload should have been evicted",
+                cache.get("b"));
+        assertEquals(Arrays.asList("a", "c"), cache.getSettings());
+        assertTrue(cache.getSize() <= size * 5 / 2);
+
+        // The order and the bound survive a restart
+        ForecastPayloadCache restarted = new ForecastPayloadCache(mContext, size * 5 / 2);
+        assertEquals(Arrays.asList("a", "c"), restarted.getSettings());
+        assertEquals(cache.getSize(), restarted.getSize());
+    }
+
+    public void testDatabaseIsRebuiltWithoutNetwork() throws Exception {
+        StubHttpServer server = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                        .body(PAYLOAD);
+            }
+        });
+        server.start();
+        ForecastPayloadCache cache = new ForecastPayloadCache(mContext, 64 * 1024);
+        ForecastSyncEngine engine = new ForecastSyncEngine(mContext, newFetcher(server, cache));
+        int stored = engine.persist(engine.fetchAll(Collections.singletonList(
+                new ForecastFetcher.Location("94043", -1, false, null))));
+        server.shutdown();
+        assertTrue(stored > 0);
+        assertEquals(Collections.singletonList("94043"), cache.getSettings());
+
+        // What WeatherDbHelper.onUpgrade leaves behind
+        deleteAllRecords();
+
+        ForecastSyncEngine offline = new ForecastSyncEngine(mContext, newFetcher(server, cache));
+        assertEquals(stored, offline.restore("94043"));
+        assertEquals(1, server.getRequestCount());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate("94043",
+                        System.currentTimeMillis()), null, null, null, null);
+        assertEquals(stored, cursor.getCount());
+        cursor.close();
+
+        assertEquals("Error: a location with a forecast should not be restored again",
+                0, offline.restore("94043"));
+    }
+
+    public void testOutdatedPayloadIsDroppedNotRestored() throws Exception {
+        ForecastPayloadCache cache = new ForecastPayloadCache(mContext, 64 * 1024);
+        long now = System.currentTimeMillis();
+        long fetchedAt = now - (ForecastFetcher.NUM_DAYS + 1) * DateUtils.DAY_IN_MILLIS;
+        cache.put("94043", fetchedAt, newPayloadFile(PAYLOAD));
+        assertTrue(ForecastFetcher.isOutdated(fetchedAt, now));
+        assertFalse(ForecastFetcher.isOutdated(now - DateUtils.DAY_IN_MILLIS, now));
+
+        StubHttpServer server = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            }
+        });
+        server.start();
+        try {
+            ForecastSyncEngine offline =
+                    new ForecastSyncEngine(mContext, newFetcher(server, cache));
+            assertEquals("Error: a payload of past days only should not be restored",
+                    0, offline.restore("94043"));
+        } finally {
+            server.shutdown();
+        }
+        assertNull("Error: a payload of past days only should be dropped", cache.get("94043"));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    ForecastFetcher newFetcher(StubHttpServer server, ForecastPayloadCache cache) {
+        return new ForecastFetcher(mContext, server.getUrl("/data/2.5/forecast/daily?"),
+                SunshineHttpClient.getInstance(), null, 0, new SyncJournal(mContext), cache);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs ForecastSyncEngine against a local stub server that adds a fixed latency to every
+    request.  The benchmark logs the wall-clock time of a multi-location sync at several
+    parallelism settings; it should scale with parallelism, not with the number of locations.
+ */
+public class TestForecastSyncEngine extends AndroidTestCase {
+    public static final String LOG_TAG = TestForecastSyncEngine.class.getSimpleName();
+
+    static final long LATENCY_MILLIS = 200;
+    static final int LOCATION_COUNT = 8;
+
+    StubHttpServer mServer;
+    final AtomicInteger mInFlight = new AtomicInteger();
+    final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request)
+                    throws InterruptedException {
+                int inFlight = mInFlight.incrementAndGet();
+                int max;
+                while (inFlight > (max = mMaxInFlight.get())
+                        && !mMaxInFlight.compareAndSet(max, inFlight)) {
+                    // retry
+                }
+                try {
+                    Thread.sleep(LATENCY_MILLIS);
+                } finally {
+                    mInFlight.decrementAndGet();
+                }
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                        .body(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW);
+            }
+        });
+        mServer.start();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    ForecastFetcher newFetcher() {
+        return new ForecastFetcher(mContext, mServer.getUrl("/data/2.5/forecast/daily?"));
+    }
+
+    static List<ForecastFetcher.Location> newLocations(int count) {
+        List<ForecastFetcher.Location> locations = new ArrayList<ForecastFetcher.Location>();
+        for (int i = 0; i < count; i++) {
+            locations.add(new ForecastFetcher.Location("9404" + i, -1, false, null));
+        }
+        return locations;
+    }
+
+    long timeFetchAll(int parallelism) throws InterruptedException {
+        ForecastSyncEngine engine =
+                new ForecastSyncEngine(mContext, newFetcher(), parallelism, LOCATION_COUNT);
+        long start = SystemClock.elapsedRealtime();
+        List<ForecastFetcher.Result> results = engine.fetchAll(newLocations(LOCATION_COUNT));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        for (ForecastFetcher.Result result : results) {
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        }
+        return elapsed;
+    }
+
+    public void testResultsKeepLocationOrder() throws Throwable {
+        List<ForecastFetcher.Location> locations = newLocations(LOCATION_COUNT);
+        List<ForecastFetcher.Result> results =
+                new ForecastSyncEngine(mContext, newFetcher()).fetchAll(locations);
+
+        assertEquals(locations.size(), results.size());
+        for (int i = 0; i < locations.size(); i++) {
+            ForecastFetcher.Result result = results.get(i);
+            assertSame(locations.get(i), result.location);
+            assertTrue(result.changed);
+            assertEquals("Mountain View", result.forecast.mCityName);
+            assertEquals(3, result.forecast.mRows.size());
+        }
+    }
+
+    public void testPerHostLimit() throws Throwable {
+        new ForecastSyncEngine(mContext, newFetcher(), LOCATION_COUNT, 2)
+                .fetchAll(newLocations(LOCATION_COUNT));
+        assertTrue("Error: more requests in flight than the per host limit allows",
+                mMaxInFlight.get() <= 2);
+    }
+
+    public void testPersistWritesAllLocationsInOneBatch() throws Throwable {
+        ForecastSyncEngine engine = new ForecastSyncEngine(mContext, newFetcher());
+        List<ForecastFetcher.Result> results = engine.fetchAll(newLocations(3));
+        assertEquals(9, engine.persist(results));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+
+        // The fixture dates start today, so none of them are pruned.
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(9, cursor.getCount());
+        cursor.close();
+
+        // Now that the forecast is stored, the same response is recognized as unchanged.
+        List<ForecastFetcher.Location> stored = engine.loadLocations("94040");
+        assertEquals(3, stored.size());
+        for (ForecastFetcher.Result result : engine.fetchAll(stored)) {
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+            assertFalse(result.changed);
+        }
+    }
+
+    public void testPersistOfOneLocationOnlyNotifiesIt() throws Throwable {
+        ForecastSyncEngine engine = new ForecastSyncEngine(mContext, newFetcher());
+        engine.persist(engine.fetchAll(newLocations(2)));
+
+        ContentResolver resolver = mContext.getContentResolver();
+        TestUtilities.TestContentObserver stored = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver other = TestUtilities.getTestContentObserver();
+        resolver.registerContentObserver(
+                WeatherContract.WeatherEntry.buildWeatherLocation("94040"), true, stored);
+        resolver.registerContentObserver(
+                WeatherContract.WeatherEntry.buildWeatherLocation("94041"), true, other);
+        try {
+            // Not known to be stored, so the same response is written again
+            assertEquals(3, engine.persist(engine.fetchAll(newLocations(1))));
+
+            Uri marker = WeatherContract.BASE_CONTENT_URI;
+            List<Uri> changes = stored.takeChangesOrFail(resolver, marker);
+            assertEquals("Error: the location written should be told once " + changes,
+                    1, changes.size());
+            assertEquals(WeatherContract.WeatherEntry.buildWeatherLocation("94040"),
+                    changes.get(0));
+            changes = other.takeChangesOrFail(resolver, marker);
+            assertTrue("Error: another location shouldn't be told " + changes,
+                    changes.isEmpty());
+        } finally {
+            resolver.unregisterContentObserver(stored);
+            resolver.unregisterContentObserver(other);
+            stored.mHT.quit();
+            other.mHT.quit();
+        }
+    }
+
+    public void testBenchmarkParallelism() throws Throwable {
+        long serial = timeFetchAll(1);
+        Log.d(LOG_TAG, "parallelism 1: " + serial + " ms for " + LOCATION_COUNT + " locations");
+        long previous = serial;
+        for (int parallelism = 2; parallelism <= LOCATION_COUNT; parallelism *= 2) {
+            long elapsed = timeFetchAll(parallelism);
+            Log.d(LOG_TAG, "parallelism " + parallelism + ": " + elapsed + " ms for "
+                    + LOCATION_COUNT + " locations");
+            previous = elapsed;
+        }
+
+        // Serial time grows with the number of locations, fully parallel time doesn't.
+        assertTrue(serial >= LOCATION_COUNT * LATENCY_MILLIS);
+        assertTrue("Error: a fully parallel sync should take a fraction of a serial one",
+                previous < serial / 2);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    Checks that ForecastValidatorCache turns a repeated fetch into a conditional one, using a
+    local stub server in place of OpenWeatherMap.
+ */
+public class TestForecastValidatorCache extends AndroidTestCase {
+    static final String ETAG = "\"forecast-v1\"";
+    static final String LAST_MODIFIED = "Tue, 22 Dec 2015 20:00:00 GMT";
+
+    StubHttpServer mServer;
+    ForecastValidatorCache mCache;
+    String mKey;
+    volatile String mLastIfNoneMatch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                mLastIfNoneMatch = request.header(ForecastValidatorCache.HEADER_IF_NONE_MATCH);
+                if (ETAG.equals(mLastIfNoneMatch)) {
+                    return new StubHttpServer.Response(HttpURLConnection.HTTP_NOT_MODIFIED);
+                }
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                        .header(ForecastValidatorCache.HEADER_ETAG, ETAG)
+                        .header(ForecastValidatorCache.HEADER_LAST_MODIFIED, LAST_MODIFIED)
+                        .body(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW);
+            }
+        });
+        mServer.start();
+        mCache = new ForecastValidatorCache(mContext);
+        mKey = ForecastValidatorCache.key("94043", "metric", 14);
+        mCache.clear(mKey);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.clear(mKey);
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    HttpURLConnection fetch() throws Exception {
+        HttpURLConnection urlConnection =
+                (HttpURLConnection) new URL(mServer.getUrl("/forecast/daily")).openConnection();
+        mCache.applyTo(urlConnection, mKey);
+        urlConnection.connect();
+        return urlConnection;
+    }
+
+    public void testKeyCoversRequestParameters() {
+        assertFalse(ForecastValidatorCache.key("94043", "metric", 14)
+                .equals(ForecastValidatorCache.key("94043", "imperial", 14)));
+        assertFalse(ForecastValidatorCache.key("94043", "metric", 14)
+                .equals(ForecastValidatorCache.key("94043", "metric", 7)));
+        assertFalse(ForecastValidatorCache.key("94043", "metric", 14)
+                .equals(ForecastValidatorCache.key("10001", "metric", 14)));
+    }
+
+    public void testUnchangedForecastIsNotModified() throws Exception {
+        HttpURLConnection first = fetch();
+        assertEquals(HttpURLConnection.HTTP_OK, first.getResponseCode());
+        assertNull("Error: the first fetch should not be conditional", mLastIfNoneMatch);
+        mCache.store(mKey,
+                first.getHeaderField(ForecastValidatorCache.HEADER_ETAG),
+                first.getHeaderField(ForecastValidatorCache.HEADER_LAST_MODIFIED));
+        first.getInputStream().close();
+        first.disconnect();
+
+        HttpURLConnection second = fetch();
+        assertEquals("Error: a repeated fetch should be answered with 304",
+                HttpURLConnection.HTTP_NOT_MODIFIED, second.getResponseCode());
+        assertEquals(ETAG, mLastIfNoneMatch);
+        second.disconnect();
+    }
+
+    public void testClearedValidatorsFetchAgain() throws Exception {
+        mCache.store(mKey, ETAG, LAST_MODIFIED);
+        mCache.clear(mKey);
+
+        HttpURLConnection urlConnection = fetch();
+        assertEquals(HttpURLConnection.HTTP_OK, urlConnection.getResponseCode());
+        assertNull(mLastIfNoneMatch);
+        urlConnection.disconnect();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+
+public class TestHashingInputStream extends AndroidTestCase {
+
+    static String hashWhileParsing(String body) throws Exception {
+        HashingInputStream in = new HashingInputStream(
+                new ByteArrayInputStream(body.getBytes("UTF-8")));
+        new ForecastJsonParser().parse(new InputStreamReader(in, "UTF-8"),
+                new TestForecastJsonParser.RecordingCallback());
+        byte[] drain = new byte[16];
+        while (in.read(drain, 0, drain.length) != -1) {
+            // keep reading
+        }
+        assertEquals(body.getBytes("UTF-8").length, in.getByteCount());
+        return in.getHash();
+    }
+
+    static String hashByteByByte(String body) throws Exception {
+        HashingInputStream in = new HashingInputStream(
+                new ByteArrayInputStream(body.getBytes("UTF-8")));
+        while (in.read() != -1) {
+            // keep reading
+        }
+        return in.getHash();
+    }
+
+    public void testSameBodySameHash() throws Throwable {
+        String body = TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW;
+        assertEquals("Error: the hash should not depend on how the body was read",
+                hashByteByByte(body), hashWhileParsing(body));
+    }
+
+    public void testChangedBodyChangesHash() throws Throwable {
+        String body = TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW;
+        String changed = body.replace("\"max\":13.45", "\"max\":13.46");
+        assertFalse(body.equals(changed));
+        assertFalse("Error: a changed forecast should change the hash",
+                hashWhileParsing(body).equals(hashWhileParsing(changed)));
+    }
+
+    public void testTrailingBytesAreHashed() throws Throwable {
+        // The parser stops at the closing brace, whatever follows still has to count.
+        String body = TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW;
+        assertFalse(hashWhileParsing(body).equals(hashWhileParsing(body + "\n")));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.net.SunshineHttpClient;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+public class TestRequestRateLimiter extends AndroidTestCase {
+
+    static final String API_KEY = "test-key";
+    // One token every 100 ms
+    static final int REQUESTS_PER_MINUTE = 600;
+    static final int BURST = 3;
+
+    RequestRateLimiter mLimiter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearPrefs();
+        mLimiter = new RequestRateLimiter(mContext, API_KEY, REQUESTS_PER_MINUTE, BURST);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearPrefs();
+        super.tearDown();
+    }
+
+    void clearPrefs() {
+        mContext.getSharedPreferences(RequestRateLimiter.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    public void testBurstThenOneTokenPerInterval() {
+        long now = 1000000;
+        for (int i = 0; i < BURST; i++) {
+            assertEquals("Error: the burst should go out right away", 0, mLimiter.reserve(now, 0));
+        }
+        assertEquals("Error: an empty bucket should turn away a request that can't wait",
+                -1, mLimiter.reserve(now, 0));
+        // Requests that can wait are queued one interval apart
+        assertEquals(100, mLimiter.reserve(now, 1000));
+        assertEquals(200, mLimiter.reserve(now, 1000));
+        assertTrue(mLimiter.getAvailableTokens(now) < 0);
+
+        // Once the queue has gone out, the bucket fills up again, but no further than the burst
+        assertEquals(0, mLimiter.reserve(now + 300, 0));
+        assertEquals(BURST, mLimiter.getAvailableTokens(now + 60000), 0.001);
+    }
+
+    public void testStateSurvivesRestart() {
+        long now = 1000000;
+        for (int i = 0; i < BURST; i++) {
+            mLimiter.reserve(now, 0);
+        }
+        RequestRateLimiter restarted =
+                new RequestRateLimiter(mContext, API_KEY, REQUESTS_PER_MINUTE, BURST);
+        assertEquals("Error: a new process should not get a full bucket",
+                -1, restarted.reserve(now, 0));
+
+        RequestRateLimiter otherKey =
+                new RequestRateLimiter(mContext, "other-key", REQUESTS_PER_MINUTE, BURST);
+        assertEquals("Error: every key should have its own bucket", 0, otherKey.reserve(now, 0));
+    }
+
+    public void testRateLimitedHoldsEverythingBack() {
+        long now = 1000000;
+        mLimiter.onRateLimited(now, 5000);
+        assertEquals(-1, mLimiter.reserve(now, 1000));
+        assertEquals(-1, mLimiter.reserve(now + 4000, 0));
+        assertEquals(0, mLimiter.reserve(now + 5000, 0));
+    }
+
+    public void testAcquireGivesUpWithoutTakingAToken() throws InterruptedException {
+        mLimiter.onRateLimited(System.currentTimeMillis(), 60000);
+        double before = mLimiter.getAvailableTokens(System.currentTimeMillis());
+        assertEquals(-1, mLimiter.acquire(100, null));
+        assertEquals(before, mLimiter.getAvailableTokens(System.currentTimeMillis()), 0.1);
+    }
+
+    // A 429 is a throttled result rather than a server that is down, and keeps the next
+    // request from being sent at all.
+    public void testFetcherBacksOffOnTooManyRequests() throws Exception {
+        StubHttpServer server = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(ForecastFetcher.HTTP_TOO_MANY_REQUESTS)
+                        .header(ForecastFetcher.HEADER_RETRY_AFTER, "60")
+                        .body("{\"cod\":429}");
+            }
+        });
+        server.start();
+        try {
+            ForecastFetcher fetcher = new ForecastFetcher(mContext,
+                    server.getUrl("/data/2.5/forecast/daily?"), SunshineHttpClient.getInstance(),
+                    mLimiter, 1000);
+            ForecastFetcher.Location location =
+                    new ForecastFetcher.Location("94043", -1, false, null);
+
+            ForecastFetcher.Result result = fetcher.fetch(location);
+            assertTrue(result.throttled);
+            assertFalse(result.changed);
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+
+            result = fetcher.fetch(location);
+            assertTrue(result.throttled);
+            assertEquals("Error: nothing should be sent until the Retry-After has passed",
+                    1, server.getRequestCount());
+            assertEquals(2, fetcher.getMetrics().toContentValues(result.status)
+                    .getAsInteger(WeatherContract.MetricsEntry.COLUMN_THROTTLED).intValue());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+    Fires bursts of requests at a SyncCoalescer whose work is a forecast fetch from a local stub
+    server, and counts how many of them actually reach the server.
+ */
+public class TestSyncCoalescer extends AndroidTestCase {
+
+    static final int REQUEST_COUNT = 100;
+    static final long DEBOUNCE_MILLIS = 200;
+    static final long LATENCY_MILLIS = 300;
+
+    StubHttpServer mServer;
+    ForecastFetcher mFetcher;
+    SyncCoalescer<String, ForecastFetcher.Result> mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                        .body(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW)
+                        .delay(LATENCY_MILLIS);
+            }
+        });
+        mServer.start();
+        mFetcher = new ForecastFetcher(mContext, mServer.getUrl("/data/2.5/forecast/daily?"));
+        mCoalescer = new SyncCoalescer<String, ForecastFetcher.Result>(DEBOUNCE_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCoalescer.shutdown();
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    Future<ForecastFetcher.Result> request(final String locationSetting) {
+        return mCoalescer.submit(locationSetting, new Callable<ForecastFetcher.Result>() {
+            @Override
+            public ForecastFetcher.Result call() {
+                return mFetcher.fetch(
+                        new ForecastFetcher.Location(locationSetting, -1, false, null));
+            }
+        });
+    }
+
+    public void testConcurrentRequestsMakeOneFetch() throws Throwable {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<ForecastFetcher.Result>> futures =
+                new ArrayList<Future<ForecastFetcher.Result>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Future<ForecastFetcher.Result> future = request("94043");
+                    synchronized (futures) {
+                        futures.add(future);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(REQUEST_COUNT, futures.size());
+        ForecastFetcher.Result first = futures.get(0).get();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, first.status);
+        for (Future<ForecastFetcher.Result> future : futures) {
+            assertSame("Error: every request should share the one fetch", first, future.get());
+        }
+        assertEquals("Error: " + REQUEST_COUNT + " concurrent requests should make one fetch",
+                1, mServer.getRequestCount());
+        assertFalse(mCoalescer.isInFlight("94043"));
+    }
+
+    public void testRequestsDuringFetchAttach() throws Throwable {
+        Future<ForecastFetcher.Result> first = request("94043");
+        // While the stub is still holding the response back
+        Thread.sleep(LATENCY_MILLIS / 2);
+        assertTrue(mCoalescer.isInFlight("94043"));
+        Future<ForecastFetcher.Result> second = request("94043");
+
+        assertSame(first, second);
+        first.get();
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testRequestsAfterFetchStartOver() throws Throwable {
+        request("94043").get();
+        request("94043").get();
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testFirstRequestStartsAtOnce() throws Throwable {
+        SyncCoalescer<String, Long> coalescer = new SyncCoalescer<String, Long>(60 * 1000);
+        try {
+            long requestedAt = SystemClock.elapsedRealtime();
+            long startedAt = coalescer.submit("94043", new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return SystemClock.elapsedRealtime();
+                }
+            }).get();
+            assertTrue("Error: the first request shouldn't wait out the debounce window",
+                    startedAt - requestedAt < 60 * 1000 / 2);
+        } finally {
+            coalescer.shutdown();
+        }
+    }
+
+    public void testRequestsRightAfterWorkAreDebounced() throws Throwable {
+        final AtomicInteger started = new AtomicInteger();
+        SyncCoalescer.AsyncWork<Integer> work = new SyncCoalescer.AsyncWork<Integer>() {
+            @Override
+            public void start(SyncCoalescer.Completion<Integer> completion) {
+                completion.complete(started.incrementAndGet());
+            }
+        };
+        SyncCoalescer<String, Integer> coalescer =
+                new SyncCoalescer<String, Integer>(DEBOUNCE_MILLIS);
+        try {
+            assertEquals(1, (int) coalescer.submit("94043", work).get());
+
+            // Within the window of the first: one more piece of work, once the window is over
+            Future<Integer> second = coalescer.submit("94043", work);
+            Future<Integer> third = coalescer.submit("94043", work);
+            assertSame(second, third);
+            assertEquals("Error: the second request should wait out the window",
+                    1, started.get());
+            assertEquals(2, (int) second.get());
+            assertEquals(2, started.get());
+        } finally {
+            coalescer.shutdown();
+        }
+    }
+
+    public void testWorkCompletesFromItsCallback() throws Throwable {
+        final AtomicReference<SyncCoalescer.Completion<String>> pending =
+                new AtomicReference<SyncCoalescer.Completion<String>>();
+        SyncCoalescer<String, String> coalescer =
+                new SyncCoalescer<String, String>(DEBOUNCE_MILLIS, 200);
+        try {
+            SyncCoalescer.AsyncWork<String> work = new SyncCoalescer.AsyncWork<String>() {
+                @Override
+                public void start(SyncCoalescer.Completion<String> completion) {
+                    pending.set(completion);
+                }
+            };
+            Future<String> future = coalescer.submit("94043", work);
+            assertFalse(future.isDone());
+            assertTrue(coalescer.isInFlight("94043"));
+            pending.get().complete("synced");
+            assertEquals("synced", future.get());
+            assertFalse(coalescer.isInFlight("94043"));
+
+            // Work that never completes is given up on
+            Thread.sleep(DEBOUNCE_MILLIS);
+            future = coalescer.submit("94043", work);
+            try {
+                future.get();
+                fail("Error: work that never completes should time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertFalse(coalescer.isInFlight("94043"));
+        } finally {
+            coalescer.shutdown();
+        }
+    }
+
+    public void testLocationsAreNotCoalesced() throws Throwable {
+        Future<ForecastFetcher.Result> first = request("94043");
+        Future<ForecastFetcher.Result> second = request("10001");
+        assertNotSame(first, second);
+        first.get();
+        second.get();
+        assertEquals(2, mServer.getRequestCount());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.net.SunshineHttpClient;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Journals responses, then has a second fetcher, standing in for the sync after a crash,
+    pick up a response the first one fetched but never stored.
+ */
+public class TestSyncJournal extends AndroidTestCase {
+
+    static final String KEY = "94043|metric|14";
+    static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    SyncJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearJournal();
+        mJournal = new SyncJournal(mContext, MAX_AGE_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearJournal();
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    void clearJournal() {
+        mContext.getSharedPreferences(SyncJournal.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        File dir = new File(mContext.getFilesDir(), SyncJournal.DIR_NAME);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws Exception {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        int read;
+        while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length == buffer.length) {
+                byte[] bigger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, bigger, 0, length);
+                buffer = bigger;
+            }
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    public void testCommittedPayloadIsKept() throws Exception {
+        byte[] body = TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW.getBytes("UTF-8");
+        SyncJournal.PayloadWriter writer =
+                mJournal.write(KEY, new ByteArrayInputStream(body));
+        assertEquals(body.length, readAll(writer).length);
+        assertNull("Error: nothing should be journaled before the commit",
+                mJournal.get(KEY, System.currentTimeMillis()));
+
+        long fetchedAt = System.currentTimeMillis();
+        writer.commit(fetchedAt, "\"v1\"", null, "abc");
+        SyncJournal.Entry entry = mJournal.get(KEY, fetchedAt);
+        assertNotNull(entry);
+        assertEquals(SyncJournal.STAGE_FETCHED, entry.stage);
+        assertEquals("\"v1\"", entry.etag);
+        assertEquals("abc", entry.payloadHash);
+        FileInputStream in = new FileInputStream(entry.payload);
+        try {
+            assertEquals(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW,
+                    new String(readAll(in), "UTF-8"));
+        } finally {
+            in.close();
+        }
+
+        mJournal.markStoring(KEY);
+        assertEquals(SyncJournal.STAGE_STORING, mJournal.get(KEY, fetchedAt).stage);
+        mJournal.remove(KEY);
+        assertNull(mJournal.get(KEY, fetchedAt));
+        assertFalse(entry.payload.exists());
+    }
+
+    public void testAbortedPayloadLeavesNothing() throws Exception {
+        SyncJournal.PayloadWriter writer = mJournal.write(KEY,
+                new ByteArrayInputStream(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW.getBytes()));
+        readAll(writer);
+        writer.abort();
+        assertNull(mJournal.get(KEY, System.currentTimeMillis()));
+        File[] files = new File(mContext.getFilesDir(), SyncJournal.DIR_NAME).listFiles();
+        assertEquals(0, files != null ? files.length : 0);
+    }
+
+    public void testOldPayloadIsDropped() throws Exception {
+        SyncJournal.PayloadWriter writer = mJournal.write(KEY,
+                new ByteArrayInputStream(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW.getBytes()));
+        readAll(writer);
+        long fetchedAt = System.currentTimeMillis();
+        writer.commit(fetchedAt, null, null, "abc");
+        File payload = mJournal.get(KEY, fetchedAt).payload;
+
+        assertNull(mJournal.get(KEY, fetchedAt + MAX_AGE_MILLIS + 1));
+        assertFalse(payload.exists());
+        assertNull(mJournal.get(KEY, fetchedAt));
+    }
+
+    public void testSyncAfterCrashDoesNotRefetch() throws Exception {
+        StubHttpServer server = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                        .body(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW);
+            }
+        });
+        server.start();
+        try {
+            List<ForecastFetcher.Location> locations = Collections.singletonList(
+                    new ForecastFetcher.Location("94043", -1, false, null));
+
+            // The first sync dies between fetching and storing
+            ForecastSyncEngine crashed =
+                    new ForecastSyncEngine(mContext, newFetcher(server), 1, 1);
+            crashed.fetchAll(locations);
+            assertEquals(1, server.getRequestCount());
+
+            ForecastSyncEngine resumed =
+                    new ForecastSyncEngine(mContext, newFetcher(server), 1, 1);
+            List<ForecastFetcher.Result> results = resumed.fetchAll(locations);
+            assertEquals("Error: the journaled response should have been used",
+                    1, server.getRequestCount());
+            assertTrue(results.get(0).changed);
+            assertTrue(resumed.persist(results) > 0);
+            assertNull("Error: a stored response should leave the journal",
+                    mJournal.get(ForecastValidatorCache.key("94043", ForecastFetcher.UNITS,
+                            ForecastFetcher.NUM_DAYS), System.currentTimeMillis()));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    ForecastFetcher newFetcher(StubHttpServer server) {
+        return new ForecastFetcher(mContext, server.getUrl("/data/2.5/forecast/daily?"),
+                SunshineHttpClient.getInstance(), null, 0,
+                new SyncJournal(mContext, MAX_AGE_MILLIS), null);
+    }
+}
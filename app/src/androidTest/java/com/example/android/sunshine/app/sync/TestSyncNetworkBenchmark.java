@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.net.SunshineHttpClient;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Syncs the same locations through a client that sets up a new, uncompressed connection for
+    every request, the way the sync used to, and through the shared client, counting the
+    connections the stub server accepts and the bytes it sends.
+ */
+public class TestSyncNetworkBenchmark extends AndroidTestCase {
+    public static final String LOG_TAG = TestSyncNetworkBenchmark.class.getSimpleName();
+
+    static final int LOCATION_COUNT = 8;
+    static final String PAYLOAD = TestForecastIngest.buildPayload(ForecastFetcher.NUM_DAYS);
+
+    StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] plain = PAYLOAD.getBytes(Charset.forName("UTF-8"));
+        final byte[] gzipped = gzip(plain);
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                String acceptEncoding = request.header("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                            .header("Content-Encoding", "gzip")
+                            .body(gzipped);
+                }
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK).body(plain);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    List<ForecastFetcher.Result> sync(SunshineHttpClient httpClient) throws Exception {
+        ForecastFetcher fetcher = new ForecastFetcher(mContext,
+                mServer.getUrl("/data/2.5/forecast/daily?"), httpClient);
+        // One fetch at a time, so every request could reuse the previous one's connection.
+        List<ForecastFetcher.Result> results = new ForecastSyncEngine(mContext, fetcher, 1, 1)
+                .fetchAll(TestForecastSyncEngine.newLocations(LOCATION_COUNT));
+        for (ForecastFetcher.Result result : results) {
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+            assertEquals(ForecastFetcher.NUM_DAYS, result.forecast.mRows.size());
+        }
+        return results;
+    }
+
+    public void testGzipDoesNotChangeTheForecast() throws Throwable {
+        List<ForecastFetcher.Result> plain = sync(new SunshineHttpClient(
+                SunshineHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                SunshineHttpClient.DEFAULT_READ_TIMEOUT_MILLIS,
+                SunshineHttpClient.DEFAULT_BUFFER_SIZE, false, true));
+        List<ForecastFetcher.Result> gzipped = sync(new SunshineHttpClient(
+                SunshineHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                SunshineHttpClient.DEFAULT_READ_TIMEOUT_MILLIS,
+                SunshineHttpClient.DEFAULT_BUFFER_SIZE, true, true));
+
+        // The hash is taken after decompression, so it doesn't depend on the encoding.
+        assertEquals(plain.get(0).payloadHash, gzipped.get(0).payloadHash);
+        assertEquals(plain.get(0).forecast.mCityName, gzipped.get(0).forecast.mCityName);
+    }
+
+    public void testBenchmarkConnectionReuseAndGzip() throws Throwable {
+        int connections = mServer.getConnectionCount();
+        int bytes = mServer.getBytesSent();
+        sync(new SunshineHttpClient(SunshineHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                SunshineHttpClient.DEFAULT_READ_TIMEOUT_MILLIS, 8192, false, false));
+        int legacyConnections = mServer.getConnectionCount() - connections;
+        int legacyBytes = mServer.getBytesSent() - bytes;
+
+        connections = mServer.getConnectionCount();
+        bytes = mServer.getBytesSent();
+        SunshineHttpClient httpClient = new SunshineHttpClient(
+                SunshineHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                SunshineHttpClient.DEFAULT_READ_TIMEOUT_MILLIS,
+                SunshineHttpClient.DEFAULT_BUFFER_SIZE, true, true);
+        sync(httpClient);
+        int sharedConnections = mServer.getConnectionCount() - connections;
+        int sharedBytes = mServer.getBytesSent() - bytes;
+
+        Log.d(LOG_TAG, "new connection per request: " + legacyConnections + " connections, "
+                + legacyBytes + " bytes for " + LOCATION_COUNT + " locations");
+        Log.d(LOG_TAG, "shared client: " + sharedConnections + " connections, "
+                + sharedBytes + " bytes (" + httpClient.getBytesReceived() + " body bytes) for "
+                + LOCATION_COUNT + " locations");
+
+        assertEquals(LOCATION_COUNT, legacyConnections);
+        assertTrue("Error: the shared client should reuse its connection",
+                sharedConnections < legacyConnections);
+        assertTrue("Error: compressed responses should be smaller",
+                sharedBytes < legacyBytes);
+        assertEquals(LOCATION_COUNT, httpClient.getRequestCount());
+    }
+}
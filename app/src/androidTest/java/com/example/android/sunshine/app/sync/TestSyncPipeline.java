@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.PollingCheck;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class TestSyncPipeline extends AndroidTestCase {
+
+    static final long TIMEOUT_MILLIS = 500;
+
+    StubHttpServer mServer;
+    // How the stub server sends the forecast; a slow server trickles it out.
+    volatile int mChunkSize = 1024;
+    volatile long mChunkDelayMillis = 0;
+    ExecutorService mFanOutExecutor;
+    ScheduledExecutorService mTimeoutScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                        .body(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW)
+                        .throttle(mChunkSize, mChunkDelayMillis);
+            }
+        });
+        mServer.start();
+        mFanOutExecutor = Executors.newCachedThreadPool();
+        mTimeoutScheduler = Executors.newSingleThreadScheduledExecutor();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFanOutExecutor.shutdownNow();
+        mTimeoutScheduler.shutdownNow();
+        mServer.shutdown();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.MetricsEntry.CONTENT_URI, null, null);
+    }
+
+    SyncPipeline newPipeline(List<SyncPipeline.Consumer> consumers) {
+        ForecastFetcher fetcher = new ForecastFetcher(mContext,
+                mServer.getUrl("/data/2.5/forecast/daily?"));
+        return new SyncPipeline(new ForecastSyncEngine(mContext, fetcher), consumers,
+                mFanOutExecutor, mTimeoutScheduler, TIMEOUT_MILLIS);
+    }
+
+    static SyncPipeline.Consumer newConsumer(final String name, final CountDownLatch started,
+                                             final CountDownLatch release) {
+        return new SyncPipeline.Consumer() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void consume() throws InterruptedException {
+                started.countDown();
+                release.await();
+            }
+        };
+    }
+
+    public void testStagesAreTimed() throws Throwable {
+        SyncPipeline pipeline = newPipeline(Collections.<SyncPipeline.Consumer>emptyList());
+        List<ForecastFetcher.Result> results = pipeline.fetch(
+                Collections.singletonList(new ForecastFetcher.Location("94043", -1, false, null)));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, results.get(0).status);
+        assertTrue(pipeline.persist(results) > 0);
+
+        Map<String, Long> stageMillis = pipeline.getStageMillis();
+        assertEquals(Arrays.asList(SyncPipeline.STAGE_FETCH, SyncPipeline.STAGE_PERSIST),
+                Arrays.asList(stageMillis.keySet().toArray()));
+    }
+
+    public void testFanOutDoesNotWaitForConsumers() throws Throwable {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        SyncPipeline pipeline = newPipeline(Arrays.asList(
+                newConsumer("slow", started, release), newConsumer("slower", started, release)));
+
+        long start = SystemClock.elapsedRealtime();
+        List<Future<?>> futures = pipeline.fanOut();
+        assertTrue("Error: fan-out should return before its consumers finish",
+                SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS);
+        // Both are running at the same time, neither queued behind the other
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(futures.get(0).isDone());
+
+        release.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertTrue(pipeline.getStageMillis().containsKey(
+                SyncPipeline.STAGE_FAN_OUT_PREFIX + "slow"));
+        assertTrue(pipeline.getStageMillis().containsKey(
+                SyncPipeline.STAGE_FAN_OUT_PREFIX + "slower"));
+    }
+
+    public void testStuckConsumerTimesOut() throws Throwable {
+        CountDownLatch started = new CountDownLatch(1);
+        SyncPipeline pipeline = newPipeline(Collections.singletonList(
+                newConsumer("stuck", started, new CountDownLatch(1))));
+
+        Future<?> future = pipeline.fanOut().get(0);
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(TIMEOUT_MILLIS * 2);
+        assertTrue("Error: a consumer past its timeout should be cancelled",
+                future.isCancelled());
+    }
+
+    public void testMetricsAreRecordedAfterFanOut() throws Throwable {
+        CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SyncPipeline pipeline = newPipeline(Collections.singletonList(
+                newConsumer("widgets", started, release)));
+        List<ForecastFetcher.Result> results = pipeline.fetch(
+                Collections.singletonList(new ForecastFetcher.Location("94043", -1, false, null)));
+        pipeline.persist(results);
+        pipeline.fanOut();
+        pipeline.recordMetrics(mContext, SunshineSyncAdapter.LOCATION_STATUS_OK);
+
+        // Not until the consumer is done
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, countMetricsRows());
+        release.countDown();
+        new PollingCheck(TIMEOUT_MILLIS * 4) {
+            @Override
+            protected boolean check() {
+                return countMetricsRows() == 1;
+            }
+        }.run();
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.MetricsEntry.CONTENT_URI, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_OUTCOME)));
+        assertEquals(1, cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_REQUESTS)));
+        assertEquals(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW.length(), cursor.getLong(
+                cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_BYTES)));
+        assertEquals(results.get(0).forecast.mRows.size(), cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_ROWS_WRITTEN)));
+        assertFalse(cursor.isNull(
+                cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_FAN_OUT_MILLIS)));
+        cursor.close();
+    }
+
+    public void testCancelMidDownloadWritesNothing() throws Throwable {
+        // Some 20 seconds for the whole forecast
+        mChunkSize = 16;
+        mChunkDelayMillis = 100;
+        final SyncPipeline pipeline = newPipeline(Collections.<SyncPipeline.Consumer>emptyList());
+        final ExecutorService syncThread = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> sync = syncThread.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    List<ForecastFetcher.Result> results = pipeline.fetch(Arrays.asList(
+                            new ForecastFetcher.Location("94043", -1, false, null),
+                            new ForecastFetcher.Location("10001", -1, false, null)));
+                    int inserted = pipeline.persist(results);
+                    pipeline.fanOut();
+                    return inserted;
+                }
+            });
+            // Wait for the body to start coming in
+            new PollingCheck(TIMEOUT_MILLIS * 4) {
+                @Override
+                protected boolean check() {
+                    return mServer.getBytesSent() > 200;
+                }
+            }.run();
+            assertFalse(sync.isDone());
+
+            long start = SystemClock.elapsedRealtime();
+            pipeline.cancel();
+            try {
+                sync.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                fail("Error: a canceled sync should not complete");
+            } catch (ExecutionException e) {
+                assertTrue("Error: expected a cancellation, got " + e.getCause(),
+                        e.getCause() instanceof OperationCanceledException);
+            }
+            assertTrue("Error: the sync thread should be free right after the cancel",
+                    SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS);
+        } finally {
+            syncThread.shutdownNow();
+        }
+
+        assertEquals("Error: a canceled sync should not write any weather", 0,
+                countRows(WeatherContract.WeatherEntry.CONTENT_URI));
+        assertEquals("Error: a canceled sync should not add locations", 0,
+                countRows(WeatherContract.LocationEntry.CONTENT_URI));
+        assertFalse(pipeline.getStageMillis().containsKey(SyncPipeline.STAGE_PERSIST));
+    }
+
+    public void testCancelBetweenStagesWritesNothing() throws Throwable {
+        SyncPipeline pipeline = newPipeline(Collections.<SyncPipeline.Consumer>emptyList());
+        List<ForecastFetcher.Result> results = pipeline.fetch(
+                Collections.singletonList(new ForecastFetcher.Location("94043", -1, false, null)));
+        assertTrue(results.get(0).changed);
+
+        pipeline.cancel();
+        try {
+            pipeline.persist(results);
+            fail("Error: persist should not run once the sync is canceled");
+        } catch (OperationCanceledException e) {
+            // expected
+        }
+        try {
+            pipeline.fanOut();
+            fail("Error: fan-out should not run once the sync is canceled");
+        } catch (OperationCanceledException e) {
+            // expected
+        }
+        assertEquals(0, countRows(WeatherContract.WeatherEntry.CONTENT_URI));
+        assertEquals(0, countRows(WeatherContract.LocationEntry.CONTENT_URI));
+    }
+
+    public void testCancelInterruptsFanOut() throws Throwable {
+        CountDownLatch started = new CountDownLatch(1);
+        SyncPipeline pipeline = newPipeline(Collections.singletonList(
+                newConsumer("stuck", started, new CountDownLatch(1))));
+        Future<?> future = pipeline.fanOut().get(0);
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        pipeline.cancel();
+        assertTrue(future.isCancelled());
+    }
+
+    int countRows(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    int countMetricsRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.MetricsEntry.CONTENT_URI, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
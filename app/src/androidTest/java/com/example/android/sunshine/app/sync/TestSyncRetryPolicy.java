@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class TestSyncRetryPolicy extends AndroidTestCase {
+
+    static final int THRESHOLD = 3;
+    static final long BASE_DELAY = 1000;
+    static final long MAX_DELAY = 16000;
+
+    SyncRetryPolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearPrefs();
+        mPolicy = new SyncRetryPolicy(mContext, THRESHOLD, BASE_DELAY, MAX_DELAY, new Random(42));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearPrefs();
+        super.tearDown();
+    }
+
+    void clearPrefs() {
+        mContext.getSharedPreferences(SyncRetryPolicy.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    public void testBackoffDoublesUpToTheMaximum() {
+        assertEquals(1000, mPolicy.backoff(1));
+        assertEquals(2000, mPolicy.backoff(2));
+        assertEquals(8000, mPolicy.backoff(4));
+        assertEquals(MAX_DELAY, mPolicy.backoff(5));
+        assertEquals(MAX_DELAY, mPolicy.backoff(64));
+    }
+
+    public void testJitterStaysWithinHalfTheDelay() {
+        for (int i = 0; i < 100; i++) {
+            long delay = mPolicy.jitter(8000);
+            assertTrue("Error: jittered delay " + delay + " out of range",
+                    delay >= 4000 && delay <= 8000);
+        }
+    }
+
+    public void testCircuitOpensAfterConsecutiveFailures() {
+        long now = 1000000;
+        for (int i = 1; i < THRESHOLD; i++) {
+            assertTrue(mPolicy.allowRequest(now));
+            long retryAt = mPolicy.recordFailure(now);
+            assertTrue(retryAt > now);
+            assertEquals(SyncRetryPolicy.STATE_CLOSED, mPolicy.getState());
+            now = retryAt;
+        }
+
+        long retryAt = mPolicy.recordFailure(now);
+        assertEquals(SyncRetryPolicy.STATE_OPEN, mPolicy.getState());
+        assertFalse("Error: an open circuit should refuse syncs",
+                mPolicy.allowRequest(retryAt - 1));
+        assertEquals(SyncRetryPolicy.STATE_OPEN, mPolicy.getState());
+    }
+
+    public void testClosedCircuitWaitsForTheBackoff() {
+        long now = 1000000;
+        long retryAt = mPolicy.recordFailure(now);
+        assertEquals(SyncRetryPolicy.STATE_CLOSED, mPolicy.getState());
+        assertFalse("Error: a sync before the backoff has passed should be refused",
+                mPolicy.allowRequest(retryAt - 1));
+        assertTrue(mPolicy.allowRequest(retryAt));
+        assertEquals("Error: only an open circuit goes half-open",
+                SyncRetryPolicy.STATE_CLOSED, mPolicy.getState());
+    }
+
+    public void testHalfOpenProbe() {
+        long now = 1000000;
+        long retryAt = 0;
+        for (int i = 0; i < THRESHOLD; i++) {
+            retryAt = mPolicy.recordFailure(now);
+        }
+
+        // Once the delay has passed a single probe is let through
+        assertTrue(mPolicy.allowRequest(retryAt));
+        assertEquals(SyncRetryPolicy.STATE_HALF_OPEN, mPolicy.getState());
+
+        // A failed probe opens the circuit again, for longer
+        long nextRetryAt = mPolicy.recordFailure(retryAt);
+        assertEquals(SyncRetryPolicy.STATE_OPEN, mPolicy.getState());
+        assertTrue(nextRetryAt - retryAt >= mPolicy.backoff(THRESHOLD + 1) / 2);
+        assertFalse(mPolicy.allowRequest(retryAt));
+
+        // A successful probe closes it
+        assertTrue(mPolicy.allowRequest(nextRetryAt));
+        mPolicy.recordSuccess();
+        assertEquals(SyncRetryPolicy.STATE_CLOSED, mPolicy.getState());
+        assertEquals(0, mPolicy.getConsecutiveFailures());
+        assertEquals(0, mPolicy.getRetryAt());
+        assertTrue(mPolicy.allowRequest(nextRetryAt));
+    }
+
+    public void testStateIsPersisted() {
+        long now = 1000000;
+        for (int i = 0; i < THRESHOLD; i++) {
+            mPolicy.recordFailure(now);
+        }
+        SyncRetryPolicy reloaded = new SyncRetryPolicy(mContext);
+        assertEquals(SyncRetryPolicy.STATE_OPEN, reloaded.getState());
+        assertEquals(THRESHOLD, reloaded.getConsecutiveFailures());
+        assertEquals(mPolicy.getRetryAt(), reloaded.getRetryAt());
+    }
+}
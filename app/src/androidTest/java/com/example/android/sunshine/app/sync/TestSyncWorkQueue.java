@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks the order SyncWorkQueue runs work in, then has a user request come in while a slow
+    refresh of the other locations runs against a local stub server, and logs how long the user
+    waits for fresh data with and without preemption.
+ */
+public class TestSyncWorkQueue extends AndroidTestCase {
+    public static final String LOG_TAG = TestSyncWorkQueue.class.getSimpleName();
+
+    static final long TIMEOUT_MILLIS = 5000;
+    // Per request to the stub server
+    static final long LATENCY_MILLIS = 250;
+    static final int SECONDARY_LOCATION_COUNT = 8;
+
+    /**
+     * Notes the scope of every piece of work it runs.
+     */
+    static class RecordingWorker implements SyncWorkQueue.Worker {
+        final List<Integer> mScopes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public boolean run(SyncWorkQueue.Work work, CancellationSignal preemption)
+                throws InterruptedException {
+            mScopes.add(work.scope);
+            return true;
+        }
+    }
+
+    public void testMostUrgentFirst() throws Throwable {
+        SyncWorkQueue queue = new SyncWorkQueue();
+        queue.offer(SyncWorkQueue.SCOPE_SECONDARY, SyncWorkQueue.PRIORITY_BACKGROUND);
+        queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_PERIODIC);
+
+        RecordingWorker worker = new RecordingWorker();
+        queue.drain(worker, true);
+        assertEquals(Arrays.asList(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.SCOPE_SECONDARY),
+                worker.mScopes);
+        assertEquals(0, queue.getPendingCount());
+        assertFalse(queue.isDraining());
+    }
+
+    public void testRequestsForTheSameScopeJoin() {
+        SyncWorkQueue queue = new SyncWorkQueue();
+        SyncWorkQueue.Work periodic =
+                queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_PERIODIC);
+        SyncWorkQueue.Work user =
+                queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_USER);
+        assertSame(periodic, user);
+        assertEquals(SyncWorkQueue.PRIORITY_USER, user.getPriority());
+        assertEquals(1, queue.getPendingCount());
+    }
+
+    public void testBackgroundWorkWaitsForItsWindow() throws Throwable {
+        SyncWorkQueue queue = new SyncWorkQueue();
+        queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_PERIODIC);
+        SyncWorkQueue.Work secondary =
+                queue.offer(SyncWorkQueue.SCOPE_SECONDARY, SyncWorkQueue.PRIORITY_BACKGROUND);
+
+        // Metered and on battery
+        RecordingWorker worker = new RecordingWorker();
+        queue.drain(worker, false);
+        assertEquals(Collections.singletonList(SyncWorkQueue.SCOPE_PREFERRED), worker.mScopes);
+        assertEquals("Error: background work should stay queued", 1, queue.getPendingCount());
+        assertEquals(-1, secondary.getLatencyMillis());
+
+        queue.drain(worker, true);
+        assertEquals(SyncWorkQueue.SCOPE_SECONDARY, (int) worker.mScopes.get(1));
+        assertTrue(secondary.await(0));
+    }
+
+    public void testListenersRunOnceWorkIsDone() throws Throwable {
+        SyncWorkQueue queue = new SyncWorkQueue();
+        SyncWorkQueue.Work work =
+                queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_USER);
+        final AtomicInteger calls = new AtomicInteger();
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        };
+        work.whenDone(listener);
+        assertEquals("Error: the work hasn't run yet", 0, calls.get());
+
+        queue.drain(new RecordingWorker(), true);
+        assertEquals(1, calls.get());
+        // Already done, so right away
+        work.whenDone(listener);
+        assertEquals(2, calls.get());
+    }
+
+    public void testUrgentWorkPreemptsBackgroundWork() throws Throwable {
+        final SyncWorkQueue queue = new SyncWorkQueue();
+        final CountDownLatch secondaryStarted = new CountDownLatch(1);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final SyncWorkQueue.Worker worker = new SyncWorkQueue.Worker() {
+            @Override
+            public boolean run(SyncWorkQueue.Work work, CancellationSignal preemption)
+                    throws InterruptedException {
+                if (work.scope == SyncWorkQueue.SCOPE_PREFERRED) {
+                    events.add("preferred");
+                    return true;
+                }
+                if (secondaryStarted.getCount() == 0) {
+                    events.add("secondary");
+                    return true;
+                }
+                // The first time round, run until preempted
+                final CountDownLatch preempted = new CountDownLatch(1);
+                preemption.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        preempted.countDown();
+                    }
+                });
+                secondaryStarted.countDown();
+                assertTrue(preempted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+                events.add("secondary preempted");
+                throw new OperationCanceledException();
+            }
+        };
+
+        queue.offer(SyncWorkQueue.SCOPE_SECONDARY, SyncWorkQueue.PRIORITY_BACKGROUND);
+        Thread drain = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.drain(worker, true);
+                } catch (InterruptedException e) {
+                    // the test fails on the events
+                }
+            }
+        };
+        drain.start();
+        assertTrue(secondaryStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isDraining());
+
+        SyncWorkQueue.Work user =
+                queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_USER);
+        assertTrue(user.await(TIMEOUT_MILLIS));
+        drain.join(TIMEOUT_MILLIS);
+        assertEquals(Arrays.asList("secondary preempted", "preferred", "secondary"), events);
+    }
+
+    public void testCancelStopsTheDrain() throws Throwable {
+        SyncWorkQueue queue = new SyncWorkQueue();
+        SyncWorkQueue.Work work =
+                queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_PERIODIC);
+        try {
+            queue.drain(new SyncWorkQueue.Worker() {
+                @Override
+                public boolean run(SyncWorkQueue.Work work, CancellationSignal preemption) {
+                    throw new OperationCanceledException();
+                }
+            }, true);
+            fail("Error: a canceled sync should end the drain");
+        } catch (OperationCanceledException e) {
+            // expected
+        }
+        assertEquals("Error: canceled work should be queued again", 1, queue.getPendingCount());
+        assertFalse(work.await(0));
+        assertFalse(queue.isDraining());
+    }
+
+    public void testTimeToFreshDataUnderContention() throws Throwable {
+        StubHttpServer server = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public StubHttpServer.Response handle(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_OK)
+                        .body(TestForecastJsonParser.FIXTURE_MOUNTAIN_VIEW)
+                        .delay(LATENCY_MILLIS);
+            }
+        });
+        server.start();
+        try {
+            long fifo = measureTimeToFreshData(server, new SyncWorkQueue(false));
+            long preemptive = measureTimeToFreshData(server, new SyncWorkQueue(true));
+            Log.d(LOG_TAG, "Time to fresh data behind " + SECONDARY_LOCATION_COUNT
+                    + " other locations: " + fifo + " ms queued, " + preemptive
+                    + " ms preempting");
+
+            assertTrue("Error: a user request should not wait for the other locations",
+                    preemptive < fifo / 2);
+        } finally {
+            server.shutdown();
+            mContext.getContentResolver().delete(
+                    WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+            mContext.getContentResolver().delete(
+                    WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        }
+    }
+
+    /**
+     * Starts a refresh of the other locations, one request at a time, and once it is under way
+     * asks for the preferred location for the user.
+     *
+     * @return how long the user waited for the preferred location, in milliseconds.
+     */
+    long measureTimeToFreshData(final StubHttpServer server, final SyncWorkQueue queue)
+            throws Throwable {
+        final List<ForecastFetcher.Location> secondary = new ArrayList<ForecastFetcher.Location>();
+        for (int i = 0; i < SECONDARY_LOCATION_COUNT; i++) {
+            secondary.add(new ForecastFetcher.Location("1000" + i, -1, false, null));
+        }
+        final CountDownLatch secondaryStarted = new CountDownLatch(1);
+        final SyncWorkQueue.Worker worker = new SyncWorkQueue.Worker() {
+            @Override
+            public boolean run(SyncWorkQueue.Work work, CancellationSignal preemption)
+                    throws InterruptedException {
+                ForecastFetcher fetcher = new ForecastFetcher(mContext,
+                        server.getUrl("/data/2.5/forecast/daily?"));
+                final SyncPipeline pipeline = new SyncPipeline(
+                        new ForecastSyncEngine(mContext, fetcher, 1, 1),
+                        Collections.<SyncPipeline.Consumer>emptyList());
+                preemption.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        pipeline.cancel();
+                    }
+                });
+                List<ForecastFetcher.Location> locations;
+                if (work.scope == SyncWorkQueue.SCOPE_PREFERRED) {
+                    locations = Collections.singletonList(
+                            new ForecastFetcher.Location("94043", -1, false, null));
+                } else {
+                    locations = secondary;
+                    secondaryStarted.countDown();
+                }
+                pipeline.persist(pipeline.fetch(locations));
+                return true;
+            }
+        };
+
+        queue.offer(SyncWorkQueue.SCOPE_SECONDARY, SyncWorkQueue.PRIORITY_BACKGROUND);
+        Thread drain = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.drain(worker, true);
+                } catch (InterruptedException e) {
+                    // the await below times out
+                }
+            }
+        };
+        drain.start();
+        assertTrue(secondaryStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(LATENCY_MILLIS / 2);
+
+        SyncWorkQueue.Work user =
+                queue.offer(SyncWorkQueue.SCOPE_PREFERRED, SyncWorkQueue.PRIORITY_USER);
+        assertTrue(user.await(TIMEOUT_MILLIS));
+        drain.join(TIMEOUT_MILLIS);
+        return user.getLatencyMillis();
+    }
+}
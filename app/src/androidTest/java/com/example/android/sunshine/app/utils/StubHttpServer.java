@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny HTTP/1.1 server bound to the loopback interface, used to stand in for OpenWeatherMap
+ * in tests.  Every request is answered by a {@link Handler}.  Connections are kept alive, so
+ * tests can tell new connections apart from reused ones.
+ */
+public class StubHttpServer {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        // Header names are lower case.
+        public final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    public static class Response {
+        final int mStatus;
+        final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+        byte[] mBody = new byte[0];
+        long mDelayMillis;
+        long mChunkDelayMillis;
+        int mChunkSize = 1024;
+
+        public Response(int status) {
+            mStatus = status;
+        }
+
+        public Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        public Response body(String body) {
+            return body(body.getBytes(Charset.forName("UTF-8")));
+        }
+
+        public Response body(byte[] body) {
+            mBody = body;
+            return this;
+        }
+
+        // Waits this long before sending anything, to simulate a slow server.
+        public Response delay(long millis) {
+            mDelayMillis = millis;
+            return this;
+        }
+
+        // Sends the body in chunks of chunkSize bytes, waiting this long before each one.
+        public Response throttle(int chunkSize, long millisPerChunk) {
+            mChunkSize = chunkSize;
+            mChunkDelayMillis = millisPerChunk;
+            return this;
+        }
+    }
+
+    private final Handler mHandler;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mBytesSent = new AtomicInteger();
+    private ServerSocket mServerSocket;
+
+    public StubHttpServer(Handler handler) {
+        mHandler = handler;
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        mExecutor.shutdownNow();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    // Bytes written to the wire, headers included.
+    public int getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                mRequestCount.incrementAndGet();
+                Response response;
+                try {
+                    response = mHandler.handle(request);
+                } catch (Exception e) {
+                    response = new Response(500).body(String.valueOf(e));
+                }
+                writeResponse(out, response);
+                if ("close".equalsIgnoreCase(request.header("Connection"))) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // The client went away, e.g. because it canceled the request.
+        } catch (IOException | InterruptedException e) {
+            // nothing to do, just drop the connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        // We only ever serve GETs, but don't leave a request body in the stream.
+        String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            long remaining = Long.parseLong(contentLength);
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) break;
+                remaining -= skipped;
+            }
+        }
+        return new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), ASCII);
+    }
+
+    private void writeResponse(OutputStream out, Response response)
+            throws IOException, InterruptedException {
+        if (response.mDelayMillis > 0) {
+            Thread.sleep(response.mDelayMillis);
+        }
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.mStatus).append(" Stub\r\n");
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.mBody.length).append("\r\n\r\n");
+        byte[] headBytes = head.toString().getBytes(ASCII);
+        out.write(headBytes);
+        out.flush();
+        mBytesSent.addAndGet(headBytes.length);
+
+        for (int offset = 0; offset < response.mBody.length; offset += response.mChunkSize) {
+            if (response.mChunkDelayMillis > 0) {
+                Thread.sleep(response.mChunkDelayMillis);
+            }
+            int count = Math.min(response.mChunkSize, response.mBody.length - offset);
+            out.write(response.mBody, offset, count);
+            out.flush();
+            mBytesSent.addAndGet(count);
+        }
+    }
+}
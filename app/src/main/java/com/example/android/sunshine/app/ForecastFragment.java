@@ -413,6 +413,9 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                     case SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN:
                         message = R.string.empty_forecast_list_server_down;
                         break;
+                    case SunshineSyncAdapter.LOCATION_STATUS_SERVER_BACKOFF:
+                        message = R.string.empty_forecast_list_server_backoff;
+                        break;
                     case SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID:
                         message = R.string.empty_forecast_list_server_error;
                         break;
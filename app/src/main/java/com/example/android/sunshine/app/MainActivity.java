@@ -33,6 +33,7 @@
 
     import com.example.android.sunshine.app.data.WeatherContract;
     import com.example.android.sunshine.app.gcm.RegistrationIntentService;
+    import com.example.android.sunshine.app.sync.AdaptiveSyncScheduler;
     import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
     import com.google.android.gms.common.ConnectionResult;
     import com.google.android.gms.common.GoogleApiAvailability;
@@ -158,6 +159,7 @@
         @Override
         protected void onResume() {
             super.onResume();
+            AdaptiveSyncScheduler.onForeground(this);
             String location = Utility.getPreferredLocation( this );
             // update the location in our second pane using the fragment manager
                 if (location != null && !location.equals(mLocation)) {
@@ -556,7 +556,8 @@ public class Utility {
     /**
      *
      * @param c Context used to get the SharedPreferences
-     * @return the location status integer type
+     * @return the location status integer type.  SunshineSyncAdapter.LOCATION_STATUS_SERVER_BACKOFF
+     * means the server kept failing and syncs are paused until SyncRetryPolicy lets one through.
      */
     @SuppressWarnings("ResourceType")
     static public @SunshineSyncAdapter.LocationStatus
@@ -575,4 +576,23 @@ public class Utility {
         spe.putInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
         spe.apply();
     }
-}
\ No newline at end of file
+
+    /**
+     * @param c Context used to get the SharedPreferences
+     * @return the number of syncs that downloaded a forecast response
+     */
+    static public int getSyncFetchCount(Context c) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        return sp.getInt(c.getString(R.string.pref_sync_fetch_count_key), 0);
+    }
+
+    /**
+     * @param c Context used to get the SharedPreferences
+     * @return the number of downloaded forecast responses that were identical to the stored one,
+     * and so were not written to the database again
+     */
+    static public int getUnchangedSyncCount(Context c) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        return sp.getInt(c.getString(R.string.pref_sync_unchanged_count_key), 0);
+    }
+}
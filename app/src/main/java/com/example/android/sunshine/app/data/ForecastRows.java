@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * The days of one location's forecast, kept column by column in primitive arrays.
+ *
+ * This is what the sync hands to {@link WeatherContract#METHOD_STORE_FORECASTS}.  A day costs
+ * no objects at all beyond its description, where a ContentValues would cost a map, its entries
+ * and a boxed value per column.  Within the app's process the provider reads the arrays as they
+ * are; they are only copied when the rows cross a process boundary.
+ */
+public class ForecastRows implements Parcelable {
+
+    int mSize;
+    long[] mDates;
+    double[] mPressures;
+    int[] mHumidities;
+    double[] mWindSpeeds;
+    double[] mDegrees;
+    double[] mMaxTemps;
+    double[] mMinTemps;
+    String[] mShortDescs;
+    int[] mWeatherIds;
+
+    public ForecastRows(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mDates = new long[capacity];
+        mPressures = new double[capacity];
+        mHumidities = new int[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mMinTemps = new double[capacity];
+        mShortDescs = new String[capacity];
+        mWeatherIds = new int[capacity];
+    }
+
+    /**
+     * Appends a day.  The date doesn't have to be normalized, the provider does that when the
+     * row is stored.
+     */
+    public void add(long date, double pressure, int humidity, double windSpeed, double degrees,
+                    double maxTemp, double minTemp, String shortDesc, int weatherId) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        mDates[mSize] = date;
+        mPressures[mSize] = pressure;
+        mHumidities[mSize] = humidity;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mMaxTemps[mSize] = maxTemp;
+        mMinTemps[mSize] = minTemp;
+        mShortDescs[mSize] = shortDesc;
+        mWeatherIds[mSize] = weatherId;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private void grow() {
+        int capacity = Math.max(mDates.length * 2, 8);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mShortDescs = Arrays.copyOf(mShortDescs, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mSize);
+        dest.writeLongArray(Arrays.copyOf(mDates, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mPressures, mSize));
+        dest.writeIntArray(Arrays.copyOf(mHumidities, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mWindSpeeds, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mDegrees, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mMaxTemps, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mMinTemps, mSize));
+        dest.writeStringArray(Arrays.copyOf(mShortDescs, mSize));
+        dest.writeIntArray(Arrays.copyOf(mWeatherIds, mSize));
+    }
+
+    private ForecastRows(Parcel in) {
+        mSize = in.readInt();
+        mDates = in.createLongArray();
+        mPressures = in.createDoubleArray();
+        mHumidities = in.createIntArray();
+        mWindSpeeds = in.createDoubleArray();
+        mDegrees = in.createDoubleArray();
+        mMaxTemps = in.createDoubleArray();
+        mMinTemps = in.createDoubleArray();
+        mShortDescs = in.createStringArray();
+        mWeatherIds = in.createIntArray();
+    }
+
+    public static final Parcelable.Creator<ForecastRows> CREATOR =
+            new Parcelable.Creator<ForecastRows>() {
+                @Override
+                public ForecastRows createFromParcel(Parcel in) {
+                    return new ForecastRows(in);
+                }
+
+                @Override
+                public ForecastRows[] newArray(int size) {
+                    return new ForecastRows[size];
+                }
+            };
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * The 3-hour steps of one location's forecast, kept column by column in primitive arrays the
+ * same way as {@link ForecastRows}.  A location's five days come to forty steps, so this is
+ * what keeps the hourly ingest from costing eight times the objects of the daily one.
+ */
+public class HourlyRows implements Parcelable {
+
+    int mSize;
+    long[] mDateTimes;
+    double[] mTemps;
+    double[] mPressures;
+    int[] mHumidities;
+    double[] mWindSpeeds;
+    double[] mDegrees;
+    String[] mShortDescs;
+    int[] mWeatherIds;
+
+    public HourlyRows(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mDateTimes = new long[capacity];
+        mTemps = new double[capacity];
+        mPressures = new double[capacity];
+        mHumidities = new int[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+        mShortDescs = new String[capacity];
+        mWeatherIds = new int[capacity];
+    }
+
+    /**
+     * Appends a step.
+     *
+     * @param dateTime Start of the step, in milliseconds since the epoch.
+     */
+    public void add(long dateTime, double temp, double pressure, int humidity, double windSpeed,
+                    double degrees, String shortDesc, int weatherId) {
+        if (mSize == mDateTimes.length) {
+            grow();
+        }
+        mDateTimes[mSize] = dateTime;
+        mTemps[mSize] = temp;
+        mPressures[mSize] = pressure;
+        mHumidities[mSize] = humidity;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mShortDescs[mSize] = shortDesc;
+        mWeatherIds[mSize] = weatherId;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private void grow() {
+        int capacity = Math.max(mDateTimes.length * 2, 8);
+        mDateTimes = Arrays.copyOf(mDateTimes, capacity);
+        mTemps = Arrays.copyOf(mTemps, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+        mShortDescs = Arrays.copyOf(mShortDescs, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mSize);
+        dest.writeLongArray(Arrays.copyOf(mDateTimes, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mTemps, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mPressures, mSize));
+        dest.writeIntArray(Arrays.copyOf(mHumidities, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mWindSpeeds, mSize));
+        dest.writeDoubleArray(Arrays.copyOf(mDegrees, mSize));
+        dest.writeStringArray(Arrays.copyOf(mShortDescs, mSize));
+        dest.writeIntArray(Arrays.copyOf(mWeatherIds, mSize));
+    }
+
+    private HourlyRows(Parcel in) {
+        mSize = in.readInt();
+        mDateTimes = in.createLongArray();
+        mTemps = in.createDoubleArray();
+        mPressures = in.createDoubleArray();
+        mHumidities = in.createIntArray();
+        mWindSpeeds = in.createDoubleArray();
+        mDegrees = in.createDoubleArray();
+        mShortDescs = in.createStringArray();
+        mWeatherIds = in.createIntArray();
+    }
+
+    public static final Parcelable.Creator<HourlyRows> CREATOR =
+            new Parcelable.Creator<HourlyRows>() {
+                @Override
+                public HourlyRows createFromParcel(Parcel in) {
+                    return new HourlyRows(in);
+                }
+
+                @Override
+                public HourlyRows[] newArray(int size) {
+                    return new HourlyRows[size];
+                }
+            };
+}
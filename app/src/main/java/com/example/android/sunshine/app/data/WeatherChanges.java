@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The weather rows a write touched, as the URIs to notify.  A location with one day changed is
+ * notified as weather/{location}/{date}, which reaches that day's detail view and the
+ * location's list; with more, as weather/{location}.  Observers of other locations aren't told.
+ */
+class WeatherChanges {
+
+    // Location row ID to the one date changed there, or to SEVERAL_DAYS
+    private final Map<Long, Long> mDays = new LinkedHashMap<Long, Long>();
+    private static final Long SEVERAL_DAYS = Long.MIN_VALUE;
+    // Set when which rows changed isn't known, such as when they were all deleted
+    private boolean mAll;
+
+    /**
+     * @param date Normalized, as stored.
+     */
+    void add(long locationId, long date) {
+        Long known = mDays.get(locationId);
+        if (known == null) {
+            mDays.put(locationId, date);
+        } else if (known != date) {
+            mDays.put(locationId, SEVERAL_DAYS);
+        }
+    }
+
+    void addLocation(long locationId) {
+        mDays.put(locationId, SEVERAL_DAYS);
+    }
+
+    void addAll() {
+        mAll = true;
+    }
+
+    void addAll(WeatherChanges changes) {
+        mAll |= changes.mAll;
+        for (Map.Entry<Long, Long> day : changes.mDays.entrySet()) {
+            if (day.getValue().equals(SEVERAL_DAYS)) {
+                addLocation(day.getKey());
+            } else {
+                add(day.getKey(), day.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds the location and date of every row matching the selection, before an update or
+     * delete changes them.
+     */
+    void addRows(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (selection == null) {
+            addAll();
+            return;
+        }
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                add(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    boolean isEmpty() {
+        return !mAll && mDays.isEmpty();
+    }
+
+    /**
+     * Looks up the settings of the locations changed.  A location that is gone, or a change to
+     * unknown rows, is notified as the whole weather URI.
+     */
+    List<Uri> toUris(SQLiteDatabase db) {
+        List<Uri> uris = new ArrayList<Uri>();
+        if (mAll) {
+            uris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+            return uris;
+        }
+        if (mDays.isEmpty()) {
+            return uris;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (Long locationId : mDays.keySet()) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(locationId);
+        }
+        Map<Long, String> settings = new LinkedHashMap<Long, String>();
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " IN (" + ids + ")", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                settings.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (settings.size() < mDays.size()) {
+            uris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+            return uris;
+        }
+        for (Map.Entry<Long, Long> day : mDays.entrySet()) {
+            String setting = settings.get(day.getKey());
+            uris.add(day.getValue().equals(SEVERAL_DAYS)
+                    ? WeatherContract.WeatherEntry.buildWeatherLocation(setting)
+                    : WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                            setting, day.getValue()));
+        }
+        return uris;
+    }
+}
@@ -43,6 +43,62 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_HOURLY = "hourly";
+
+    // Stores the forecasts of several locations through ContentResolver.call(), in one
+    // transaction.  The rows are bound straight from the ForecastRows into a compiled insert,
+    // so no ContentValues is built for them.  The extras hold parallel arrays, one entry per
+    // location:
+    //   EXTRA_LOCATION_IDS (long[]) row IDs in the location table
+    //   EXTRA_FORECASTS (ForecastRows[]) the days to store for each location
+    //   EXTRA_PAYLOAD_HASHES (String[]) the new payload hash of each location, may hold nulls
+    // and optionally EXTRA_PRUNE_THROUGH_DATE (long), deleting every day up to that date.
+    // The 3-hour forecasts go in the same transaction, as another pair of parallel arrays that
+    // may cover different locations:
+    //   EXTRA_HOURLY_LOCATION_IDS (long[]) row IDs in the location table
+    //   EXTRA_HOURLY_FORECASTS (HourlyRows[]) the steps to store for each location
+    // and optionally EXTRA_HOURLY_PRUNE_BEFORE (long), deleting every step before that time.
+    // The result holds the number of weather rows written under EXTRA_ROW_COUNT, and of hourly
+    // rows under EXTRA_HOURLY_ROW_COUNT.
+    public static final String METHOD_STORE_FORECASTS = "store_forecasts";
+    public static final String EXTRA_LOCATION_IDS = "location_ids";
+    public static final String EXTRA_FORECASTS = "forecasts";
+    public static final String EXTRA_PAYLOAD_HASHES = "payload_hashes";
+    public static final String EXTRA_PRUNE_THROUGH_DATE = "prune_through_date";
+    public static final String EXTRA_HOURLY_LOCATION_IDS = "hourly_location_ids";
+    public static final String EXTRA_HOURLY_FORECASTS = "hourly_forecasts";
+    public static final String EXTRA_HOURLY_PRUNE_BEFORE = "hourly_prune_before";
+    public static final String EXTRA_ROW_COUNT = "row_count";
+    public static final String EXTRA_HOURLY_ROW_COUNT = "hourly_row_count";
+    // Also in the result: the number of days pruned, and how long the writes and the prune
+    // took, in milliseconds.
+    public static final String EXTRA_DELETED_ROW_COUNT = "deleted_row_count";
+    public static final String EXTRA_WRITE_MILLIS = "write_millis";
+    public static final String EXTRA_DELETE_MILLIS = "delete_millis";
+
+    // Replaces the forecast of one location through ContentResolver.call(): stores its days
+    // and deletes its days up to a date, in one transaction.  The sync uses it in place of
+    // METHOD_STORE_FORECASTS whenever it writes a single location.  Observers of the weather
+    // table are told once, on weather/{location}, or on weather/{location}/{date} when only one
+    // day changed, so observers of other locations aren't told at all.  Loaders requery once
+    // for it, where an insert followed by a delete makes them requery twice.  The other tables
+    // a replace writes are told once each, as METHOD_STORE_FORECASTS tells them: the location
+    // table when a payload hash was recorded, and the hourly table when steps were stored or
+    // pruned.  An observer of the whole authority hears each of those, up to three in all.
+    // The extras hold
+    //   EXTRA_LOCATION_ID (long) the row ID in the location table
+    //   EXTRA_FORECAST (ForecastRows) the days to store
+    // and optionally EXTRA_PRUNE_THROUGH_DATE (long).  Other locations' days are left alone.
+    // Also optional, as for METHOD_STORE_FORECASTS but for the one location:
+    //   EXTRA_PAYLOAD_HASH (String) recorded on the location row
+    //   EXTRA_HOURLY_FORECAST (HourlyRows) the steps to store, and EXTRA_HOURLY_PRUNE_BEFORE
+    // The result holds the same counts and timings as METHOD_STORE_FORECASTS.
+    public static final String METHOD_REPLACE_FORECAST = "replace_forecast";
+    public static final String EXTRA_LOCATION_ID = "location_id";
+    public static final String EXTRA_FORECAST = "forecast";
+    public static final String EXTRA_PAYLOAD_HASH = "payload_hash";
+    public static final String EXTRA_HOURLY_FORECAST = "hourly_forecast";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,6 +137,10 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Hash of the last forecast response stored for this location, so a sync that gets
+        // back exactly the same response can skip writing it again.  Null until the first sync.
+        public static final String COLUMN_PAYLOAD_HASH = "payload_hash";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +225,151 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the 3-hour forecast table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // OWM's forecast comes in steps of three hours.
+        public static final long STEP_MILLIS = 3 * 60 * 60 * 1000;
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the step, stored as long in milliseconds since the epoch.  Unlike the
+        // weather table's dates these aren't normalized.
+        public static final String COLUMN_DATE_TIME = "date_time";
+        // Weather id and short description, as in the weather table
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // Temperature for the step (stored as a float)
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity, pressure, windspeed and degrees, stored the same as in the weather table
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final String COLUMN_DEGREES = "degrees";
+
+        // Query parameters bounding the steps of a location: start inclusive, end exclusive.
+        static final String PARAM_START = "start";
+        static final String PARAM_END = "end";
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * The steps of a location that start in [start, end), in order.
+         */
+        public static Uri buildHourlyLocationBetween(String locationSetting, long start,
+                                                     long end) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_START, Long.toString(start))
+                    .appendQueryParameter(PARAM_END, Long.toString(end)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartFromUri(Uri uri) {
+            String start = uri.getQueryParameter(PARAM_START);
+            return start != null && start.length() > 0 ? Long.parseLong(start) : Long.MIN_VALUE;
+        }
+
+        public static long getEndFromUri(Uri uri) {
+            String end = uri.getQueryParameter(PARAM_END);
+            return end != null && end.length() > 0 ? Long.parseLong(end) : Long.MAX_VALUE;
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync metrics table */
+    public static final class MetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        public static final String PATH_SUMMARY = "summary";
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // The table is a ring buffer: once it holds this many syncs, recording another one
+        // drops the oldest.
+        public static final int MAX_ROWS = 500;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_STARTED = "started";
+        // The location status the sync ended with, see SunshineSyncAdapter.LocationStatus
+        public static final String COLUMN_OUTCOME = "outcome";
+        // Number of locations and of HTTP requests the sync made
+        public static final String COLUMN_LOCATIONS = "locations";
+        public static final String COLUMN_REQUESTS = "requests";
+
+        // Wall-clock time from the start of the sync until it was marked complete
+        public static final String COLUMN_TOTAL_MILLIS = "total_millis";
+        // Network time, summed over every request of the sync.  With parallel fetches these
+        // can add up to more than the total.
+        public static final String COLUMN_CONNECT_MILLIS = "connect_millis";
+        public static final String COLUMN_FIRST_BYTE_MILLIS = "first_byte_millis";
+        public static final String COLUMN_DOWNLOAD_MILLIS = "download_millis";
+        // Time spent decompressing and parsing responses while they streamed in, also summed
+        public static final String COLUMN_PARSE_MILLIS = "parse_millis";
+        // Time the provider spent writing the forecasts, and pruning old days
+        public static final String COLUMN_WRITE_MILLIS = "write_millis";
+        public static final String COLUMN_DELETE_MILLIS = "delete_millis";
+        // Time until every fan-out consumer (widgets, Muzei, notification) had finished
+        public static final String COLUMN_FAN_OUT_MILLIS = "fan_out_millis";
+
+        // Response bytes as received, before decompression
+        public static final String COLUMN_BYTES = "bytes";
+        public static final String COLUMN_ROWS_WRITTEN = "rows_written";
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+
+        // Time requests spent waiting for the rate limiter, summed, and how many requests
+        // weren't sent, or were turned away by the server, for being over the rate limit
+        public static final String COLUMN_THROTTLE_MILLIS = "throttle_millis";
+        public static final String COLUMN_THROTTLED = "throttled";
+        // Requests the rate limiter had left for the API key when the sync ended
+        public static final String COLUMN_RATE_TOKENS = "rate_tokens";
+
+        // The columns of the summary, one row per metric: the metric's column name, how many
+        // syncs it was taken over, and its median and 95th percentile.
+        public static final String COLUMN_METRIC = "metric";
+        public static final String COLUMN_SAMPLES = "samples";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P95 = "p95";
+
+        // The metrics the summary covers, in order.
+        public static final String[] SUMMARY_METRICS = {
+                COLUMN_TOTAL_MILLIS,
+                COLUMN_CONNECT_MILLIS,
+                COLUMN_FIRST_BYTE_MILLIS,
+                COLUMN_DOWNLOAD_MILLIS,
+                COLUMN_PARSE_MILLIS,
+                COLUMN_WRITE_MILLIS,
+                COLUMN_DELETE_MILLIS,
+                COLUMN_FAN_OUT_MILLIS,
+                COLUMN_BYTES,
+                COLUMN_ROWS_WRITTEN,
+                COLUMN_ROWS_DELETED,
+                COLUMN_THROTTLE_MILLIS
+        };
+
+        /**
+         * p50 and p95 of every metric over the recorded syncs.  A selection on the metrics
+         * table, e.g. on the outcome, picks the syncs the percentiles are taken over.
+         */
+        public static Uri buildSummaryUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SUMMARY).build();
+        }
+    }
 }
@@ -16,24 +16,61 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The database uses write-ahead logging, so queries run on their own connections and read the
+ * last committed snapshot instead of waiting for a sync's transaction to end.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // If you change the database schema, you must increment the database version, and add a
+    // step for the new version to WeatherDbMigrations.
+    private static final int DATABASE_VERSION = 7;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // SQLite only checkpoints when a transaction commits, once the log has grown past this
+    // many pages.  A sync of every location, with its index pages, commits close to Android's
+    // default of 100 pages, so nearly every sync would pay for a checkpoint right as its
+    // loaders requery.  SQLite's own default of 1000 pages, about 4MB, lets several syncs
+    // share one checkpoint, and a page rewritten by each of them is copied back only once.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    // Once a checkpoint has copied everything back and the log starts over, the file is cut
+    // down to this, instead of keeping up to the 4MB above on disk between syncs.
+    static final long JOURNAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true);
+    }
+
+    /**
+     * @param writeAheadLogging False to use a rollback journal, as benchmarks compare.
+     */
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging) {
+        super(context, name, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(writeAheadLogging);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (db.isWriteAheadLoggingEnabled()) {
+            // Both take effect when they are prepared, which happens on the primary connection,
+            // the one that commits and so checkpoints.
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit=" + JOURNAL_SIZE_LIMIT_BYTES, null);
+        }
     }
 
     @Override
@@ -45,7 +82,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_PAYLOAD_HASH + " TEXT " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,20 +117,107 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // A location's days in date order, with every weather column the forecast list and the
+        // detail view read, so both are a range scan of this index that never reads the table.
+        // The unique constraint's index leads with the date, which only serves pruning by date.
+        final String SQL_CREATE_WEATHER_INDEX = "CREATE INDEX " + WeatherEntry.TABLE_NAME +
+                "_covering ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_HUMIDITY + ", " +
+                WeatherEntry.COLUMN_PRESSURE + ", " +
+                WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                WeatherEntry.COLUMN_DEGREES + ");";
+
+        // One row per 3-hour step and location.  Like the weather table, storing a step again
+        // replaces it.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DATE_TIME + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_DATE_TIME + ") ON CONFLICT REPLACE);";
+
+        // The steps of a location in time order, with every column the detail view shows, so
+        // "the next 24 hours here" is a range scan of this index that never reads the table.
+        final String SQL_CREATE_HOURLY_INDEX = "CREATE INDEX " + HourlyEntry.TABLE_NAME +
+                "_covering ON " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_DATE_TIME + ", " +
+                HourlyEntry.COLUMN_WEATHER_ID + ", " +
+                HourlyEntry.COLUMN_SHORT_DESC + ", " +
+                HourlyEntry.COLUMN_TEMP + ", " +
+                HourlyEntry.COLUMN_HUMIDITY + ", " +
+                HourlyEntry.COLUMN_PRESSURE + ", " +
+                HourlyEntry.COLUMN_WIND_SPEED + ", " +
+                HourlyEntry.COLUMN_DEGREES + ");";
+
+        // One row per sync.  Only the fan-out time may be null, for syncs that had nothing new
+        // to fan out, and the rate tokens, for syncs that didn't go through the rate limiter.
+        final String SQL_CREATE_METRICS_TABLE = "CREATE TABLE " + MetricsEntry.TABLE_NAME + " (" +
+                MetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                MetricsEntry.COLUMN_STARTED + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_OUTCOME + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_LOCATIONS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_REQUESTS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_TOTAL_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_CONNECT_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_FIRST_BYTE_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_DOWNLOAD_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_PARSE_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_WRITE_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_DELETE_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_FAN_OUT_MILLIS + " INTEGER, " +
+                MetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_ROWS_WRITTEN + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_ROWS_DELETED + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_THROTTLE_MILLIS + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_THROTTLED + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_RATE_TOKENS + " REAL" +
+                " );";
+
+        // Keeps the metrics table a ring buffer of the last MAX_ROWS syncs.  AUTOINCREMENT
+        // above guarantees ids only ever grow, so the oldest rows are the lowest ids.
+        final String SQL_CREATE_METRICS_RING_TRIGGER = "CREATE TRIGGER " +
+                MetricsEntry.TABLE_NAME + "_ring AFTER INSERT ON " + MetricsEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + MetricsEntry.TABLE_NAME +
+                " WHERE " + MetricsEntry._ID + " <= NEW." + MetricsEntry._ID +
+                " - " + MetricsEntry.MAX_ROWS + "; END;";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_METRICS_RING_TRIGGER);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        // Upgrades keep the cached forecasts, see WeatherDbMigrations.  Only a database older
+        // than any schema it knows is discarded and started over.
+        if (oldVersion >= WeatherDbMigrations.OLDEST_VERSION) {
+            WeatherDbMigrations.upgrade(sqLiteDatabase, oldVersion, newVersion);
+            return;
+        }
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + MetricsEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
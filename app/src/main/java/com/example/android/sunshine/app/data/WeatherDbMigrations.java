@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The steps that take the database from one schema version to the next while keeping its
+ * rows, so an upgrade doesn't throw away every cached forecast and have every user refetch at
+ * once.
+ *
+ * A step's SQL is written out as it was when the step was added, rather than built from
+ * WeatherDbHelper's, since the steps after it expect the schema of that release.  A new
+ * schema version therefore needs a new step here and a fixture of its schema in the tests,
+ * besides the change to WeatherDbHelper.onCreate.
+ *
+ * SQLiteOpenHelper runs onUpgrade in a transaction, so an upgrade that fails halfway leaves
+ * the database at its old version, rows and all.
+ */
+class WeatherDbMigrations {
+
+    // The first version whose schema is known.  Older databases are recreated.
+    static final int OLDEST_VERSION = 2;
+
+    /**
+     * Runs the steps from oldVersion up to newVersion, in order.
+     *
+     * @throws IllegalArgumentException if there is no step for one of the versions.
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            migrate(db, version);
+        }
+    }
+
+    /**
+     * Takes the database from fromVersion to fromVersion + 1.
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion) {
+        switch (fromVersion) {
+            case 2:
+                // The hash of the last stored response, to skip storing it again
+                db.execSQL("ALTER TABLE location ADD COLUMN payload_hash TEXT");
+                break;
+            case 3:
+                // Sync metrics, a ring buffer of the last 500 syncs
+                db.execSQL("CREATE TABLE sync_metrics (" +
+                        "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        "started INTEGER NOT NULL, " +
+                        "outcome INTEGER NOT NULL, " +
+                        "locations INTEGER NOT NULL, " +
+                        "requests INTEGER NOT NULL, " +
+                        "total_millis INTEGER NOT NULL, " +
+                        "connect_millis INTEGER NOT NULL, " +
+                        "first_byte_millis INTEGER NOT NULL, " +
+                        "download_millis INTEGER NOT NULL, " +
+                        "parse_millis INTEGER NOT NULL, " +
+                        "write_millis INTEGER NOT NULL, " +
+                        "delete_millis INTEGER NOT NULL, " +
+                        "fan_out_millis INTEGER, " +
+                        "bytes INTEGER NOT NULL, " +
+                        "rows_written INTEGER NOT NULL, " +
+                        "rows_deleted INTEGER NOT NULL );");
+                db.execSQL("CREATE TRIGGER sync_metrics_ring AFTER INSERT ON sync_metrics " +
+                        "BEGIN DELETE FROM sync_metrics WHERE _id <= NEW._id - 500; END;");
+                break;
+            case 4:
+                // Rate limiting metrics.  Syncs recorded before it never waited nor were
+                // throttled.
+                db.execSQL("ALTER TABLE sync_metrics " +
+                        "ADD COLUMN throttle_millis INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE sync_metrics " +
+                        "ADD COLUMN throttled INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE sync_metrics ADD COLUMN rate_tokens REAL");
+                break;
+            case 5:
+                // The 3-hour forecast
+                db.execSQL("CREATE TABLE hourly (" +
+                        "_id INTEGER PRIMARY KEY," +
+                        "location_id INTEGER NOT NULL, " +
+                        "date_time INTEGER NOT NULL, " +
+                        "weather_id INTEGER NOT NULL, " +
+                        "short_desc TEXT NOT NULL, " +
+                        "temp REAL NOT NULL, " +
+                        "humidity REAL NOT NULL, " +
+                        "pressure REAL NOT NULL, " +
+                        "wind REAL NOT NULL, " +
+                        "degrees REAL NOT NULL, " +
+                        " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                        " UNIQUE (location_id, date_time) ON CONFLICT REPLACE);");
+                db.execSQL("CREATE INDEX hourly_covering ON hourly (location_id, date_time, " +
+                        "weather_id, short_desc, temp, humidity, pressure, wind, degrees);");
+                break;
+            case 6:
+                // A covering index for the forecast list and detail queries
+                db.execSQL("CREATE INDEX weather_covering ON weather (location_id, date, " +
+                        "short_desc, weather_id, min, max, humidity, pressure, wind, degrees);");
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "No migration from database version " + fromVersion);
+        }
+    }
+}
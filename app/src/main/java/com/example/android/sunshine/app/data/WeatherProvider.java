@@ -17,12 +17,27 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.text.format.Time;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,12 +45,25 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // While applyBatch runs on a thread, the URIs to notify are collected here instead of being
+    // notified one operation at a time.
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+    private final ThreadLocal<WeatherChanges> mPendingWeatherChanges =
+            new ThreadLocal<WeatherChanges>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int METRICS = 400;
+    static final int METRICS_SUMMARY = 401;
+    static final int HOURLY = 500;
+    static final int HOURLY_WITH_LOCATION = 501;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The builders and selections below are the provider's query shapes.  TestQueryPlans
+    // checks that none of them scans a whole table.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,25 +77,85 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location.location_setting = ? AND date_time >= ? AND date_time < ?
+    static final String sLocationSettingBetweenSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_DATE_TIME + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_DATE_TIME + " < ? ";
+
+    //date <= ?
+    static final String sPruneSelection = WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //location_id = ? AND date <= ?
+    static final String sLocationPruneSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    static final String sHourlyOrder =
+            WeatherContract.HourlyEntry.COLUMN_DATE_TIME + " ASC";
+
+    private static final String sInsertWeatherSql =
+            "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String sInsertHourlySql =
+            "INSERT INTO " + WeatherContract.HourlyEntry.TABLE_NAME + " (" +
+                    WeatherContract.HourlyEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_DATE_TIME + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_TEMP + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_PRESSURE + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_DEGREES +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String sUpdateLocationSql =
+            "UPDATE " + WeatherContract.LocationEntry.TABLE_NAME + " SET " +
+                    WeatherContract.LocationEntry.COLUMN_PAYLOAD_HASH + " = ? WHERE " +
+                    WeatherContract.LocationEntry._ID + " = ?";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -108,6 +196,24 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    /**
+     * The steps of a location within the URI's bounds.  Every hourly column read here is in the
+     * hourly table's covering index, so only the index and the location row are touched.
+     */
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSettingBetweenSelection,
+                new String[]{locationSetting,
+                        Long.toString(WeatherContract.HourlyEntry.getStartFromUri(uri)),
+                        Long.toString(WeatherContract.HourlyEntry.getEndFromUri(uri))},
+                null,
+                null,
+                sortOrder != null ? sortOrder : sHourlyOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +236,13 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_METRICS, METRICS);
+        matcher.addURI(authority, WeatherContract.PATH_METRICS + "/" +
+                WeatherContract.MetricsEntry.PATH_SUMMARY, METRICS_SUMMARY);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
         return matcher;
     }
 
@@ -164,6 +277,12 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case METRICS:
+            case METRICS_SUMMARY:
+                return WeatherContract.MetricsEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -213,6 +332,42 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "metrics"
+            case METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.MetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "metrics/summary"
+            case METRICS_SUMMARY: {
+                retCursor = getMetricsSummary(selection, selectionArgs);
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -229,6 +384,7 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        WeatherChanges changes = null;
 
         switch (match) {
             case WEATHER: {
@@ -238,6 +394,9 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                changes = new WeatherChanges();
+                changes.add(values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
                 break;
             }
             case LOCATION: {
@@ -248,10 +407,30 @@ public class WeatherProvider extends ContentProvider {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case METRICS: {
+                long _id = db.insert(WeatherContract.MetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case HOURLY: {
+                long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (changes != null) {
+            notifyChange(db, changes);
+        } else {
+            notifyChange(uri);
+        }
         return returnUri;
     }
 
@@ -260,23 +439,49 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        WeatherChanges changes = null;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                changes = new WeatherChanges();
+                // Which days go, read in the same transaction as they are deleted
+                db.beginTransactionNonExclusive();
+                try {
+                    if ("1".equals(selection)) {
+                        changes.addAll();
+                    } else {
+                        changes.addRows(db, selection, selectionArgs);
+                    }
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.MetricsEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changes != null) {
+                notifyChange(db, changes);
+            } else {
+                notifyChange(uri);
+            }
         }
         return rowsDeleted;
     }
@@ -295,12 +500,27 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        WeatherChanges changes = null;
 
         switch (match) {
             case WEATHER:
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                changes = new WeatherChanges();
+                db.beginTransactionNonExclusive();
+                try {
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        // Rows that move to another day or location change two places
+                        changes.addAll();
+                    } else {
+                        changes.addRows(db, selection, selectionArgs);
+                    }
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
@@ -310,7 +530,11 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changes != null) {
+                notifyChange(db, changes);
+            } else {
+                notifyChange(uri);
+            }
         }
         return rowsUpdated;
     }
@@ -321,27 +545,406 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
+                db.beginTransactionNonExclusive();
                 int returnCount = 0;
+                WeatherChanges changes = new WeatherChanges();
                 try {
                     for (ContentValues value : values) {
                         normalizeDate(value);
                         long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
                             returnCount++;
+                            changes.add(
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(db, changes);
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Takes the percentiles of every summary metric over the syncs matching the selection.  The
+     * table is bounded, so this reads at most MetricsEntry.MAX_ROWS rows.
+     */
+    private Cursor getMetricsSummary(String selection, String[] selectionArgs) {
+        String[] metrics = WeatherContract.MetricsEntry.SUMMARY_METRICS;
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.MetricsEntry.TABLE_NAME, metrics, selection, selectionArgs,
+                null, null, null);
+        long[][] samples = new long[metrics.length][cursor.getCount()];
+        int[] sampleCounts = new int[metrics.length];
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < metrics.length; i++) {
+                    // Nulls, such as the fan-out of a sync that stored nothing, aren't samples
+                    if (!cursor.isNull(i)) {
+                        samples[i][sampleCounts[i]++] = cursor.getLong(i);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        MatrixCursor summary = new MatrixCursor(new String[]{
+                WeatherContract.MetricsEntry.COLUMN_METRIC,
+                WeatherContract.MetricsEntry.COLUMN_SAMPLES,
+                WeatherContract.MetricsEntry.COLUMN_P50,
+                WeatherContract.MetricsEntry.COLUMN_P95}, metrics.length);
+        for (int i = 0; i < metrics.length; i++) {
+            Arrays.sort(samples[i], 0, sampleCounts[i]);
+            summary.addRow(new Object[]{metrics[i], sampleCounts[i],
+                    percentile(samples[i], sampleCounts[i], 50),
+                    percentile(samples[i], sampleCounts[i], 95)});
+        }
+        return summary;
+    }
+
+    /**
+     * Nearest-rank percentile of the first count values of a sorted array, or null without
+     * any values.
+     */
+    static Long percentile(long[] sorted, int count, int percent) {
+        if (count == 0) {
+            return null;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_STORE_FORECASTS.equals(method)) {
+            return storeForecasts(extras);
+        }
+        if (WeatherContract.METHOD_REPLACE_FORECAST.equals(method)) {
+            return replaceForecast(extras);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Implements {@link WeatherContract#METHOD_STORE_FORECASTS}.  Every day is bound into the
+     * same compiled statement, and so is every 3-hour step.  The whole call is one transaction
+     * with at most one change notification per table.
+     */
+    private Bundle storeForecasts(Bundle extras) {
+        extras.setClassLoader(ForecastRows.class.getClassLoader());
+        long[] locationIds = extras.getLongArray(WeatherContract.EXTRA_LOCATION_IDS);
+        Parcelable[] forecasts = extras.getParcelableArray(WeatherContract.EXTRA_FORECASTS);
+        String[] payloadHashes = extras.getStringArray(WeatherContract.EXTRA_PAYLOAD_HASHES);
+        long pruneThroughDate = extras.getLong(WeatherContract.EXTRA_PRUNE_THROUGH_DATE, -1);
+        long[] hourlyLocationIds = extras.getLongArray(WeatherContract.EXTRA_HOURLY_LOCATION_IDS);
+        Parcelable[] hourlyForecasts =
+                extras.getParcelableArray(WeatherContract.EXTRA_HOURLY_FORECASTS);
+        long hourlyPruneBefore = extras.getLong(WeatherContract.EXTRA_HOURLY_PRUNE_BEFORE, -1);
+        if (locationIds == null || forecasts == null || payloadHashes == null
+                || forecasts.length != locationIds.length
+                || payloadHashes.length != locationIds.length) {
+            throw new IllegalArgumentException("Missing or mismatched forecast extras");
+        }
+        if (hourlyLocationIds == null) {
+            hourlyLocationIds = new long[0];
+            hourlyForecasts = new Parcelable[0];
+        } else if (hourlyForecasts == null || hourlyForecasts.length != hourlyLocationIds.length) {
+            throw new IllegalArgumentException("Missing or mismatched hourly forecast extras");
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Reused to normalize every date, rather than one Time per row.
+        Time time = new Time();
+        int rowsInserted = 0;
+        int rowsDeleted = 0;
+        WeatherChanges changes = new WeatherChanges();
+        int hourlyRowsInserted = 0;
+        int hourlyRowsDeleted = 0;
+        long writeStart = SystemClock.elapsedRealtime();
+        long deleteStart = writeStart;
+        long deleteEnd = writeStart;
+        SQLiteStatement insertWeather = null;
+        SQLiteStatement updateLocation = null;
+        SQLiteStatement insertHourly = null;
+        db.beginTransactionNonExclusive();
+        try {
+            insertWeather = db.compileStatement(sInsertWeatherSql);
+            updateLocation = db.compileStatement(sUpdateLocationSql);
+            for (int i = 0; i < locationIds.length; i++) {
+                rowsInserted += insertDays(insertWeather, time, locationIds[i],
+                        (ForecastRows) forecasts[i], changes);
+                updateLocation(updateLocation, locationIds[i], payloadHashes[i]);
+            }
+
+            if (hourlyLocationIds.length > 0) {
+                insertHourly = db.compileStatement(sInsertHourlySql);
+            }
+            for (int i = 0; i < hourlyLocationIds.length; i++) {
+                hourlyRowsInserted += insertSteps(insertHourly, hourlyLocationIds[i],
+                        (HourlyRows) hourlyForecasts[i]);
+            }
+
+            deleteStart = SystemClock.elapsedRealtime();
+            if (pruneThroughDate != -1) {
+                String[] pruneArgs = new String[]{Long.toString(pruneThroughDate)};
+                changes.addRows(db, sPruneSelection, pruneArgs);
+                rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME, sPruneSelection,
+                        pruneArgs);
+            }
+            if (hourlyPruneBefore != -1) {
+                hourlyRowsDeleted = pruneSteps(db, hourlyPruneBefore);
+            }
+            deleteEnd = SystemClock.elapsedRealtime();
+            db.setTransactionSuccessful();
+        } finally {
+            if (insertWeather != null) insertWeather.close();
+            if (updateLocation != null) updateLocation.close();
+            if (insertHourly != null) insertHourly.close();
+            db.endTransaction();
+        }
+        // The commit is part of the write
+        long writeMillis = (SystemClock.elapsedRealtime() - writeStart) - (deleteEnd - deleteStart);
+
+        notifyChange(db, changes);
+        if (hourlyRowsInserted > 0 || hourlyRowsDeleted > 0) {
+            notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+        }
+        if (locationIds.length > 0) {
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_ROW_COUNT, rowsInserted);
+        result.putInt(WeatherContract.EXTRA_HOURLY_ROW_COUNT, hourlyRowsInserted);
+        result.putInt(WeatherContract.EXTRA_DELETED_ROW_COUNT, rowsDeleted);
+        result.putLong(WeatherContract.EXTRA_WRITE_MILLIS, writeMillis);
+        result.putLong(WeatherContract.EXTRA_DELETE_MILLIS, deleteEnd - deleteStart);
+        return result;
+    }
+
+    /**
+     * Implements {@link WeatherContract#METHOD_REPLACE_FORECAST}: the single-location form of
+     * {@link #storeForecasts}, which prunes only that location's days.
+     */
+    private Bundle replaceForecast(Bundle extras) {
+        extras.setClassLoader(ForecastRows.class.getClassLoader());
+        long locationId = extras.getLong(WeatherContract.EXTRA_LOCATION_ID, -1);
+        ForecastRows rows = extras.getParcelable(WeatherContract.EXTRA_FORECAST);
+        long pruneThroughDate = extras.getLong(WeatherContract.EXTRA_PRUNE_THROUGH_DATE, -1);
+        boolean updatesLocation = extras.containsKey(WeatherContract.EXTRA_PAYLOAD_HASH);
+        String payloadHash = extras.getString(WeatherContract.EXTRA_PAYLOAD_HASH);
+        HourlyRows hourly = extras.getParcelable(WeatherContract.EXTRA_HOURLY_FORECAST);
+        long hourlyPruneBefore = extras.getLong(WeatherContract.EXTRA_HOURLY_PRUNE_BEFORE, -1);
+        if (locationId == -1 || rows == null) {
+            throw new IllegalArgumentException("Missing location or forecast extras");
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int rowsInserted;
+        int rowsDeleted = 0;
+        WeatherChanges changes = new WeatherChanges();
+        int hourlyRowsInserted = 0;
+        int hourlyRowsDeleted = 0;
+        long writeStart = SystemClock.elapsedRealtime();
+        long deleteStart = writeStart;
+        long deleteEnd = writeStart;
+        SQLiteStatement insertWeather = null;
+        SQLiteStatement updateLocation = null;
+        SQLiteStatement insertHourly = null;
+        db.beginTransactionNonExclusive();
+        try {
+            insertWeather = db.compileStatement(sInsertWeatherSql);
+            rowsInserted = insertDays(insertWeather, new Time(), locationId, rows, changes);
+            if (updatesLocation) {
+                updateLocation = db.compileStatement(sUpdateLocationSql);
+                updateLocation(updateLocation, locationId, payloadHash);
+            }
+            if (hourly != null) {
+                insertHourly = db.compileStatement(sInsertHourlySql);
+                hourlyRowsInserted = insertSteps(insertHourly, locationId, hourly);
+            }
+
+            deleteStart = SystemClock.elapsedRealtime();
+            if (pruneThroughDate != -1) {
+                String[] pruneArgs =
+                        new String[]{Long.toString(locationId), Long.toString(pruneThroughDate)};
+                changes.addRows(db, sLocationPruneSelection, pruneArgs);
+                rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        sLocationPruneSelection, pruneArgs);
+            }
+            if (hourlyPruneBefore != -1) {
+                hourlyRowsDeleted = pruneSteps(db, hourlyPruneBefore);
+            }
+            deleteEnd = SystemClock.elapsedRealtime();
+            db.setTransactionSuccessful();
+        } finally {
+            if (insertWeather != null) insertWeather.close();
+            if (updateLocation != null) updateLocation.close();
+            if (insertHourly != null) insertHourly.close();
+            db.endTransaction();
+        }
+        long writeMillis = (SystemClock.elapsedRealtime() - writeStart) - (deleteEnd - deleteStart);
+
+        notifyChange(db, changes);
+        if (hourlyRowsInserted > 0 || hourlyRowsDeleted > 0) {
+            notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+        }
+        if (updatesLocation) {
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_ROW_COUNT, rowsInserted);
+        result.putInt(WeatherContract.EXTRA_HOURLY_ROW_COUNT, hourlyRowsInserted);
+        result.putInt(WeatherContract.EXTRA_DELETED_ROW_COUNT, rowsDeleted);
+        result.putLong(WeatherContract.EXTRA_WRITE_MILLIS, writeMillis);
+        result.putLong(WeatherContract.EXTRA_DELETE_MILLIS, deleteEnd - deleteStart);
+        return result;
+    }
+
+    /**
+     * Records the payload hash of a stored response on its location row.
+     */
+    private static void updateLocation(SQLiteStatement updateLocation, long locationId,
+            String payloadHash) {
+        if (payloadHash != null) {
+            updateLocation.bindString(1, payloadHash);
+        } else {
+            updateLocation.bindNull(1);
+        }
+        updateLocation.bindLong(2, locationId);
+        updateLocation.executeUpdateDelete();
+    }
+
+    /**
+     * Binds every 3-hour step of a location into the compiled hourly insert.
+     *
+     * @return the number of rows written.
+     */
+    private static int insertSteps(SQLiteStatement insertHourly, long locationId,
+            HourlyRows rows) {
+        int rowsInserted = 0;
+        for (int step = 0; step < rows.mSize; step++) {
+            insertHourly.bindLong(1, locationId);
+            insertHourly.bindLong(2, rows.mDateTimes[step]);
+            insertHourly.bindLong(3, rows.mWeatherIds[step]);
+            insertHourly.bindString(4, rows.mShortDescs[step]);
+            insertHourly.bindDouble(5, rows.mTemps[step]);
+            insertHourly.bindLong(6, rows.mHumidities[step]);
+            insertHourly.bindDouble(7, rows.mPressures[step]);
+            insertHourly.bindDouble(8, rows.mWindSpeeds[step]);
+            insertHourly.bindDouble(9, rows.mDegrees[step]);
+            if (insertHourly.executeInsert() != -1) {
+                rowsInserted++;
+            }
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Deletes the 3-hour steps of every location that are over.
+     *
+     * @return the number of rows deleted.
+     */
+    private static int pruneSteps(SQLiteDatabase db, long before) {
+        return db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                WeatherContract.HourlyEntry.COLUMN_DATE_TIME + " < ?",
+                new String[]{Long.toString(before)});
+    }
+
+    /**
+     * Binds every day of a location into the compiled weather insert, adding those written to
+     * the changes.
+     *
+     * @return the number of rows written.
+     */
+    private static int insertDays(SQLiteStatement insertWeather, Time time, long locationId,
+            ForecastRows rows, WeatherChanges changes) {
+        int rowsInserted = 0;
+        for (int day = 0; day < rows.mSize; day++) {
+            long date = normalizeDate(time, rows.mDates[day]);
+            insertWeather.bindLong(1, locationId);
+            insertWeather.bindLong(2, date);
+            insertWeather.bindString(3, rows.mShortDescs[day]);
+            insertWeather.bindLong(4, rows.mWeatherIds[day]);
+            insertWeather.bindDouble(5, rows.mMinTemps[day]);
+            insertWeather.bindDouble(6, rows.mMaxTemps[day]);
+            insertWeather.bindLong(7, rows.mHumidities[day]);
+            insertWeather.bindDouble(8, rows.mPressures[day]);
+            insertWeather.bindDouble(9, rows.mWindSpeeds[day]);
+            insertWeather.bindDouble(10, rows.mDegrees[day]);
+            if (insertWeather.executeInsert() != -1) {
+                rowsInserted++;
+                changes.add(locationId, date);
+            }
+        }
+        return rowsInserted;
+    }
+
+    // Same as WeatherContract.normalizeDate, with a Time supplied by the caller.
+    private static long normalizeDate(Time time, long date) {
+        time.set(date);
+        int julianDay = Time.getJulianDay(date, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
+
+    /**
+     * Applies all operations in a single transaction, so a multi-location sync is either stored
+     * completely or not at all.  Observers are told once per URI when the batch has been
+     * committed, instead of once per operation, and once per location for all its weather rows.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> pendingNotifications = new LinkedHashSet<Uri>();
+        WeatherChanges pendingWeatherChanges = new WeatherChanges();
+        ContentProviderResult[] results;
+        mPendingNotifications.set(pendingNotifications);
+        mPendingWeatherChanges.set(pendingWeatherChanges);
+        db.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.set(null);
+            mPendingWeatherChanges.set(null);
+        }
+        notifyChange(db, pendingWeatherChanges);
+        for (Uri uri : pendingNotifications) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
+    /**
+     * Notifies the weather URIs of the rows changed, see {@link WeatherChanges}.
+     */
+    private void notifyChange(SQLiteDatabase db, WeatherChanges changes) {
+        WeatherChanges pendingWeatherChanges = mPendingWeatherChanges.get();
+        if (pendingWeatherChanges != null) {
+            pendingWeatherChanges.addAll(changes);
+        } else if (!changes.isEmpty()) {
+            for (Uri uri : changes.toUris(db)) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> pendingNotifications = mPendingNotifications.get();
+        if (pendingNotifications != null) {
+            pendingNotifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.gcm;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.format.DateUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes to one location's forecast, as pushed by the server:
+ *
+ * <pre>
+ * {"loc": "94043", "days": [{"dt": 1445947200, "max": 21.5, "main": "Rain", "id": 500}]}
+ * </pre>
+ *
+ * Every day names its date, in seconds since the epoch, and only the values that changed.  A
+ * day carrying all of them replaces whatever is stored for it; any other day updates the stored
+ * row, if there is one.  The names are the ones of the OWM daily forecast, flattened.
+ *
+ * Push messages come from outside the app, so decoding is bounded: the payload, the number of
+ * days and the description have a maximum length, every value has to be in a plausible range
+ * and every date within the span of a forecast.  A payload breaking any of these is rejected
+ * as a whole.
+ */
+public class ForecastDelta {
+
+    static final String KEY_LOCATION = "loc";
+    static final String KEY_DAYS = "days";
+    static final String KEY_DATE = "dt";
+    static final String KEY_MAX = "max";
+    static final String KEY_MIN = "min";
+    static final String KEY_WEATHER_ID = "id";
+    static final String KEY_DESCRIPTION = "main";
+    static final String KEY_HUMIDITY = "humidity";
+    static final String KEY_PRESSURE = "pressure";
+    static final String KEY_WINDSPEED = "speed";
+    static final String KEY_WIND_DIRECTION = "deg";
+
+    // GCM payloads are at most 4 KB, so anything longer didn't come through GCM.
+    public static final int MAX_PAYLOAD_LENGTH = 4096;
+    public static final int MAX_DAYS = 16;
+    static final int MAX_SETTING_LENGTH = 128;
+    static final int MAX_DESCRIPTION_LENGTH = 64;
+
+    // Every column of a day besides the location and the date.
+    private static final int VALUE_COLUMN_COUNT = 8;
+
+    private final String mLocationSetting;
+    // One per day, holding its date and the columns that changed.
+    private final List<ContentValues> mDays;
+
+    ForecastDelta(String locationSetting, List<ContentValues> days) {
+        mLocationSetting = locationSetting;
+        mDays = days;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public List<ContentValues> getDays() {
+        return mDays;
+    }
+
+    /**
+     * @param now The current time, in milliseconds since the epoch.  Dates have to fall between
+     *            the day before it and the last day of the longest forecast after it.
+     * @throws JSONException if the payload isn't a well formed delta within the bounds.
+     */
+    public static ForecastDelta decode(String payload, long now) throws JSONException {
+        if (payload == null) throw new JSONException("No payload");
+        if (payload.length() > MAX_PAYLOAD_LENGTH) {
+            throw new JSONException("Payload of " + payload.length() + " chars");
+        }
+        long today = WeatherContract.normalizeDate(now);
+        long firstDate = today - DateUtils.DAY_IN_MILLIS;
+        long lastDate = today + MAX_DAYS * DateUtils.DAY_IN_MILLIS;
+
+        JsonReader reader = new JsonReader(new StringReader(payload));
+        String locationSetting = null;
+        List<ContentValues> days = null;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (KEY_LOCATION.equals(name)) {
+                    locationSetting = reader.nextString();
+                } else if (KEY_DAYS.equals(name)) {
+                    days = new ArrayList<ContentValues>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (days.size() == MAX_DAYS) {
+                            throw new JSONException("More than " + MAX_DAYS + " days");
+                        }
+                        days.add(readDay(reader, firstDate, lastDate));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JSONException("Trailing data");
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw newJSONException(e);
+        }
+
+        if (locationSetting == null || locationSetting.length() == 0
+                || locationSetting.length() > MAX_SETTING_LENGTH) {
+            throw new JSONException("Bad value for " + KEY_LOCATION);
+        }
+        if (days == null) throw new JSONException("No value for " + KEY_DAYS);
+        return new ForecastDelta(locationSetting, days);
+    }
+
+    private static ContentValues readDay(JsonReader reader, long firstDate, long lastDate)
+            throws IOException, JSONException {
+        ContentValues values = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (KEY_DATE.equals(name)) {
+                long date = WeatherContract.normalizeDate(
+                        reader.nextLong() * DateUtils.SECOND_IN_MILLIS);
+                if (date < firstDate || date > lastDate) {
+                    throw new JSONException("Date out of range: " + date);
+                }
+                values.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+            } else if (KEY_MAX.equals(name)) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        readDouble(reader, name, -100, 100));
+            } else if (KEY_MIN.equals(name)) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        readDouble(reader, name, -100, 100));
+            } else if (KEY_WEATHER_ID.equals(name)) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                        (int) readDouble(reader, name, 200, 999));
+            } else if (KEY_DESCRIPTION.equals(name)) {
+                String description = reader.nextString();
+                if (description.length() == 0 || description.length() > MAX_DESCRIPTION_LENGTH) {
+                    throw new JSONException("Bad value for " + name);
+                }
+                values.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+            } else if (KEY_HUMIDITY.equals(name)) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                        readDouble(reader, name, 0, 100));
+            } else if (KEY_PRESSURE.equals(name)) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                        readDouble(reader, name, 800, 1200));
+            } else if (KEY_WINDSPEED.equals(name)) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                        readDouble(reader, name, 0, 150));
+            } else if (KEY_WIND_DIRECTION.equals(name)) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                        readDouble(reader, name, 0, 360));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+            throw new JSONException("No value for " + KEY_DATE);
+        }
+        if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)
+                && values.containsKey(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)
+                && values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)
+                        < values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)) {
+            throw new JSONException("High below low");
+        }
+        return values;
+    }
+
+    private static double readDouble(JsonReader reader, String name, double min, double max)
+            throws IOException, JSONException {
+        double value = reader.nextDouble();
+        // NaN fails both comparisons, so it is rejected as well
+        if (!(value >= min && value <= max)) {
+            throw new JSONException("Bad value for " + name + ": " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Applies the delta through the provider, in one transaction.  Observers are told once.
+     *
+     * @return the number of days stored or updated, or -1 if the location isn't stored, in
+     * which case nothing was applied.
+     */
+    public int apply(Context context) throws RemoteException, OperationApplicationException {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{mLocationSetting},
+                null);
+        long locationId;
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            locationId = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+        if (mDays.isEmpty()) {
+            return 0;
+        }
+
+        ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, buildOperations(locationId));
+        int applied = 0;
+        for (ContentProviderResult result : results) {
+            if (result.uri != null || (result.count != null && result.count > 0)) {
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    ArrayList<ContentProviderOperation> buildOperations(long locationId) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(mDays.size());
+        for (ContentValues day : mDays) {
+            ContentValues values = new ContentValues(day);
+            if (values.size() == VALUE_COLUMN_COUNT + 1) {
+                // A complete day; the table replaces the stored one on conflict
+                values.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+                operations.add(ContentProviderOperation
+                        .newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+            } else {
+                long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                values.remove(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (values.size() == 0) {
+                    continue;
+                }
+                operations.add(ContentProviderOperation
+                        .newUpdate(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withValues(values)
+                        .withSelection(WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                                        + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                                new String[]{Long.toString(locationId), Long.toString(date)})
+                        .build());
+            }
+        }
+        return operations;
+    }
+
+    private static JSONException newJSONException(Exception cause) {
+        JSONException e = new JSONException(cause.getMessage());
+        e.initCause(cause);
+        return e;
+    }
+}
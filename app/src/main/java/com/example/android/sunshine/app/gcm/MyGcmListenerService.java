@@ -24,11 +24,17 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.sync.AdaptiveSyncScheduler;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncWorkQueue;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -41,6 +47,14 @@ public class MyGcmListenerService extends GcmListenerService {
     private static final String EXTRA_DATA = "data";
     private static final String EXTRA_WEATHER = "weather";
     private static final String EXTRA_LOCATION = "location";
+    // A ForecastDelta, as JSON.
+    static final String EXTRA_FORECAST = "forecast";
+
+    // What became of a forecast push.
+    static final int PUSH_APPLIED = 0;
+    static final int PUSH_INVALID = 1;
+    // The location isn't stored, so there was nothing to apply the delta to.
+    static final int PUSH_UNKNOWN_LOCATION = 2;
 
     public static final int NOTIFICATION_ID = 1;
 
@@ -61,7 +75,9 @@ public class MyGcmListenerService extends GcmListenerService {
                 Toast.makeText(this, "SenderID string needs to be set", Toast.LENGTH_LONG).show();
             }
             // Not a bad idea to check that the message is coming from your server.
-            if ((senderId).equals(from)) {
+            if ((senderId).equals(from) && data.containsKey(EXTRA_FORECAST)) {
+                handleForecastPush(this, data);
+            } else if ((senderId).equals(from)) {
                 // Process message and then post a notification of the received message.
                 try {
                     JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
@@ -79,6 +95,47 @@ public class MyGcmListenerService extends GcmListenerService {
         }
     }
 
+    /**
+     * Applies the forecast delta of a push straight to the provider, without a fetch.  A
+     * malformed delta is dropped.  If the preferred location isn't stored yet, a sync stores it
+     * instead.
+     *
+     * @return one of the PUSH_ codes.
+     */
+    static int handleForecastPush(Context context, Bundle data) {
+        ForecastDelta delta;
+        try {
+            delta = ForecastDelta.decode(data.getString(EXTRA_FORECAST),
+                    System.currentTimeMillis());
+        } catch (JSONException e) {
+            Log.w(TAG, "Dropping forecast push: " + e.getMessage());
+            return PUSH_INVALID;
+        }
+
+        int applied;
+        try {
+            applied = delta.apply(context);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Couldn't apply forecast push", e);
+            return PUSH_INVALID;
+        }
+        AdaptiveSyncScheduler.onPush(context);
+        if (applied < 0) {
+            if (delta.getLocationSetting().equals(Utility.getPreferredLocation(context))) {
+                SunshineSyncAdapter.syncImmediately(context, SyncWorkQueue.PRIORITY_PUSH);
+            }
+            return PUSH_UNKNOWN_LOCATION;
+        }
+        Log.d(TAG, "Forecast push updated " + applied + " days of "
+                + delta.getLocationSetting());
+        if (applied > 0) {
+            // Widgets don't observe the provider
+            context.sendBroadcast(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                    .setPackage(context.getPackageName()));
+        }
+        return PUSH_APPLIED;
+    }
+
     /**
      *  Put the message into a notification and post it.
      *  This is just one simple example of what you might choose to do with a GCM message.
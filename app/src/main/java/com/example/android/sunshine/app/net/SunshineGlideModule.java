@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.net;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.GenericLoaderFactory;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.stream.StreamModelLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * Makes Glide download weather art through {@link SunshineHttpClient}, so the images share
+ * connections and timeouts with the forecast sync.  Registered in the manifest.
+ */
+public class SunshineGlideModule implements com.bumptech.glide.module.GlideModule {
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(GlideUrl.class, InputStream.class, new UrlLoader.Factory());
+    }
+
+    static class UrlLoader implements StreamModelLoader<GlideUrl> {
+
+        static class Factory implements ModelLoaderFactory<GlideUrl, InputStream> {
+            @Override
+            public ModelLoader<GlideUrl, InputStream> build(Context context,
+                                                            GenericLoaderFactory factories) {
+                return new UrlLoader(SunshineHttpClient.getInstance());
+            }
+
+            @Override
+            public void teardown() {
+            }
+        }
+
+        private final SunshineHttpClient mHttpClient;
+
+        UrlLoader(SunshineHttpClient httpClient) {
+            mHttpClient = httpClient;
+        }
+
+        @Override
+        public DataFetcher<InputStream> getResourceFetcher(GlideUrl model, int width, int height) {
+            return new UrlFetcher(mHttpClient, model);
+        }
+    }
+
+    /**
+     * Follows redirects the way Glide's own HttpUrlFetcher does, across protocols too, up to
+     * MAX_REDIRECTS of them.  Art is already compressed, so it isn't asked for gzipped.
+     */
+    static class UrlFetcher implements DataFetcher<InputStream> {
+        // As Glide's HttpUrlFetcher
+        static final int MAX_REDIRECTS = 5;
+        static final String HEADER_LOCATION = "Location";
+
+        private final SunshineHttpClient mHttpClient;
+        private final GlideUrl mUrl;
+        private HttpURLConnection mUrlConnection;
+        private InputStream mInputStream;
+        private volatile boolean mCanceled;
+
+        UrlFetcher(SunshineHttpClient httpClient, GlideUrl url) {
+            mHttpClient = httpClient;
+            mUrl = url;
+        }
+
+        @Override
+        public InputStream loadData(Priority priority) throws Exception {
+            return loadData(mUrl.toURL(), 0, null);
+        }
+
+        private InputStream loadData(URL url, int redirects, URL lastUrl) throws IOException {
+            if (redirects >= MAX_REDIRECTS) {
+                throw new IOException("Too many (> " + MAX_REDIRECTS + ") redirects");
+            }
+            try {
+                if (lastUrl != null && url.toURI().equals(lastUrl.toURI())) {
+                    throw new IOException("In redirect loop");
+                }
+            } catch (URISyntaxException e) {
+                // Only a best effort, as in Glide
+            }
+            if (mCanceled) {
+                return null;
+            }
+            mUrlConnection = mHttpClient.open(url, false);
+            // HttpURLConnection won't follow a redirect from http to https or back
+            mUrlConnection.setInstanceFollowRedirects(false);
+            if (mCanceled) {
+                return null;
+            }
+            int statusCode = mUrlConnection.getResponseCode();
+            if (statusCode / 100 == 2) {
+                mInputStream = mHttpClient.getBody(mUrlConnection);
+                return mInputStream;
+            } else if (statusCode / 100 == 3) {
+                String location = mUrlConnection.getHeaderField(HEADER_LOCATION);
+                if (TextUtils.isEmpty(location)) {
+                    throw new IOException("Received empty or null redirect url");
+                }
+                URL redirectUrl = new URL(url, location);
+                mHttpClient.release(mUrlConnection, null);
+                mUrlConnection = null;
+                return loadData(redirectUrl, redirects + 1, url);
+            } else if (statusCode == -1) {
+                throw new IOException("Unable to retrieve response code from HttpUrlConnection.");
+            } else {
+                throw new IOException("Request failed " + statusCode + ": "
+                        + mUrlConnection.getResponseMessage());
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            mHttpClient.release(mUrlConnection, mInputStream);
+        }
+
+        @Override
+        public String getId() {
+            return mUrl.toString();
+        }
+
+        @Override
+        public void cancel() {
+            // The request can't be interrupted once sent, but a canceled load won't start one.
+            mCanceled = true;
+        }
+    }
+}
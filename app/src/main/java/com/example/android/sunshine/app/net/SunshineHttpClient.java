@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.net;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one place the app opens HTTP connections, for the forecast sync and for weather art.
+ *
+ * HttpURLConnection already pools connections, but a connection only goes back to the pool when
+ * its response has been read to the end and closed; disconnect() throws it away.  This client
+ * opens every request with the same timeouts, asks for gzip and decompresses it while the body
+ * streams in, and {@link #release releases} connections so the next request to the same host
+ * reuses the socket instead of setting up a new one.
+ *
+ * The pool itself is the platform's, shared with everything else in the process that uses
+ * HttpURLConnection, such as Google Play services.  Its defaults, keep-alive on and up to five
+ * idle connections per host, are left alone: the sync talks to one or two hosts at a time.
+ * Keep-alive is only ever turned off per client, on that client's own requests.
+ */
+public class SunshineHttpClient {
+    private static final String LOG_TAG = SunshineHttpClient.class.getSimpleName();
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+    // Forecasts are a few kilobytes once compressed, art a few tens; this reads most of either
+    // in one go.
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    // How much of an unread body is read to get its connection back into the pool, before we
+    // give up and let it close.
+    static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    static final String HEADER_CONNECTION = "Connection";
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_IDENTITY = "identity";
+
+    /**
+     * Told about every read of a response body off the network.
+     */
+    public interface TransferListener {
+        /**
+         * @param bytes How many bytes the read returned, as received, i.e. before decompression.
+         * @param nanos How long the read blocked.
+         */
+        void onRead(int bytes, long nanos);
+    }
+
+    private static SunshineHttpClient sInstance;
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+    private final int mBufferSize;
+    private final boolean mGzip;
+    private final boolean mKeepAlive;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    /**
+     * @return the client shared by the whole process.
+     */
+    public static synchronized SunshineHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new SunshineHttpClient(DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                    DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_BUFFER_SIZE, true, true);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param gzip Whether to ask for compressed responses.
+     * @param keepAlive Whether to keep connections for later requests.  Without it every
+     * request sets up its own connection.
+     */
+    public SunshineHttpClient(int connectTimeoutMillis, int readTimeoutMillis, int bufferSize,
+                              boolean gzip, boolean keepAlive) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+        mBufferSize = bufferSize;
+        mGzip = gzip;
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Opens a GET request.  Request headers may still be added before it is sent.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        return open(url, mGzip);
+    }
+
+    /**
+     * @param gzip Whether to ask for a compressed response.  Not worth it for a body that is
+     * already compressed, such as an image.
+     */
+    public HttpURLConnection open(URL url, boolean gzip) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+        urlConnection.setReadTimeout(mReadTimeoutMillis);
+        // Asking for gzip ourselves turns off HttpURLConnection's transparent decompression,
+        // which is what lets getBody count the compressed bytes.
+        urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING,
+                gzip ? ENCODING_GZIP : ENCODING_IDENTITY);
+        if (!mKeepAlive) {
+            urlConnection.setRequestProperty(HEADER_CONNECTION, "close");
+        }
+        mRequestCount.incrementAndGet();
+        return urlConnection;
+    }
+
+    /**
+     * @return the decompressed body of the response, or null if there is none.
+     */
+    public InputStream getBody(HttpURLConnection urlConnection) throws IOException {
+        return getBody(urlConnection, null);
+    }
+
+    /**
+     * @param listener Told about every read from the network, or null.
+     * @return the decompressed body of the response, or null if there is none.
+     */
+    public InputStream getBody(HttpURLConnection urlConnection, TransferListener listener)
+            throws IOException {
+        InputStream inputStream = urlConnection.getInputStream();
+        if (inputStream == null) {
+            return null;
+        }
+        inputStream = new CountingInputStream(inputStream, listener);
+        if (ENCODING_GZIP.equalsIgnoreCase(urlConnection.getContentEncoding())) {
+            inputStream = new GZIPInputStream(inputStream, mBufferSize);
+        }
+        return inputStream;
+    }
+
+    /**
+     * Finishes a request.  Whatever is left of the body is read so the connection can go back
+     * to the pool, unless keep-alive is off, in which case it is closed.
+     *
+     * @param body The stream returned by getBody, or null if it wasn't called or failed.
+     */
+    public void release(HttpURLConnection urlConnection, InputStream body) {
+        if (urlConnection == null) {
+            return;
+        }
+        if (!mKeepAlive) {
+            closeQuietly(body);
+            urlConnection.disconnect();
+            return;
+        }
+        if (body == null) {
+            // An error response's body has to be read as well before the connection is reused.
+            body = urlConnection.getErrorStream();
+        }
+        if (body != null) {
+            try {
+                byte[] buffer = new byte[4096];
+                int drained = 0;
+                int count;
+                while (drained < MAX_DRAIN_BYTES && (count = body.read(buffer)) != -1) {
+                    drained += count;
+                }
+            } catch (IOException e) {
+                // The connection won't be reused, which is all this costs.
+            }
+            closeQuietly(body);
+        }
+    }
+
+    /**
+     * @return the buffer size readers of a body should use.
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return the number of requests opened so far.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of body bytes received so far, as they came over the wire, i.e. before
+     * decompression.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        private final TransferListener mListener;
+
+        CountingInputStream(InputStream in, TransferListener listener) {
+            super(in);
+            mListener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            onRead(b != -1 ? 1 : 0, start);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            onRead(Math.max(read, 0), start);
+            return read;
+        }
+
+        private void onRead(int bytes, long start) {
+            mBytesReceived.addAndGet(bytes);
+            if (mListener != null) {
+                mListener.onRead(bytes, System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks how often to sync, instead of always every SYNC_INTERVAL.
+ *
+ * After every sync the forecast of the preferred location is compared with what was stored
+ * before it, and how much it moved (a day's weather changing, or its temperatures shifting by
+ * degrees) is folded into a running volatility.  A steady forecast doubles the interval, one
+ * that keeps changing cuts it to an eighth, and a stormy day halves it again.  On top of that
+ * the interval is longer at night and on metered networks and shorter while the app is in use
+ * or the device charges, always between MIN_INTERVAL and MAX_INTERVAL.  While the server pushes
+ * forecast updates the sync is only there for pushes that got lost, so it stretches four times
+ * further, up to MAX_PUSH_INTERVAL.  The periodic sync is
+ * reprogrammed through {@link SunshineSyncAdapter#configurePeriodicSync} when the interval
+ * moves far enough to matter.
+ *
+ * The decision itself, {@link #computeInterval}, is a pure function of {@link Conditions}, so
+ * a forecast history can be replayed through it without a device.
+ */
+public class AdaptiveSyncScheduler {
+    private static final String LOG_TAG = AdaptiveSyncScheduler.class.getSimpleName();
+
+    static final String PREFS_NAME = "adaptive_sync";
+    static final String PREF_VOLATILITY = "volatility";
+    static final String PREF_STORMY = "stormy";
+    static final String PREF_LAST_FOREGROUND = "last_foreground";
+    static final String PREF_INTERVAL = "interval";
+    static final String PREF_LAST_SYNC = "last_sync";
+    static final String PREF_LAST_PUSH = "last_push";
+
+    // Bounds of the interval, in seconds like SunshineSyncAdapter.SYNC_INTERVAL.
+    public static final long MIN_INTERVAL = 30 * 60;
+    public static final long MAX_INTERVAL = 12 * 60 * 60;
+    public static final long MAX_PUSH_INTERVAL = 24 * 60 * 60;
+
+    // A temperature moving by this many degrees counts as much as the weather changing.
+    static final double SIGNIFICANT_TEMPERATURE_CHANGE = 3.0;
+    // Weight of the latest sync in the running volatility.  A calmer sync only gets the full
+    // weight once SYNC_INTERVAL has passed since the one before, so syncing more often during a
+    // storm doesn't talk the volatility down between two changes.
+    static final double VOLATILITY_WEIGHT = 0.5;
+    // Volatility assumed before there is anything to go on.  It gives SYNC_INTERVAL.
+    static final double DEFAULT_VOLATILITY = 0.25;
+    // How long after the app was last opened it counts as in use.
+    static final long FOREGROUND_WINDOW_MILLIS = 60 * 60 * 1000;
+    // How long after a forecast push the server still counts as pushing them, and how much
+    // longer the interval is meanwhile.
+    static final long PUSH_WINDOW_MILLIS = 24 * 60 * 60 * 1000;
+    static final double PUSH_INTERVAL_FACTOR = 4;
+    // Local hours, [start, end), during which syncs slow down.
+    static final int NIGHT_START_HOUR = 0;
+    static final int NIGHT_END_HOUR = 6;
+    // Don't bother the sync manager for changes smaller than this fraction of the interval.
+    static final double RESCHEDULE_THRESHOLD = 0.1;
+
+    /**
+     * One day of a stored forecast, as far as volatility goes.
+     */
+    static class Day {
+        final long date;
+        final double high;
+        final double low;
+        final int weatherId;
+
+        Day(long date, double high, double low, int weatherId) {
+            this.date = date;
+            this.high = high;
+            this.low = low;
+            this.weatherId = weatherId;
+        }
+    }
+
+    /**
+     * Everything the interval depends on.
+     */
+    static class Conditions {
+        // Running volatility, from 0 for a forecast that never changes to 1 for one that
+        // changes completely from one sync to the next.
+        double volatility = DEFAULT_VOLATILITY;
+        // Today's weather is rain, snow or a thunderstorm.
+        boolean stormy;
+        // Local hour of day, 0-23.
+        int hourOfDay;
+        // The app was opened recently.
+        boolean foreground;
+        boolean charging;
+        boolean metered;
+        // The server pushed a forecast update recently.
+        boolean pushing;
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public AdaptiveSyncScheduler(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Notes that the app is in use.  Cheap enough for the UI thread.
+     */
+    public static void onForeground(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(PREF_LAST_FOREGROUND, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Notes that the server pushed a forecast update.  The interval stretches from the next
+     * sync on.
+     */
+    public static void onPush(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(PREF_LAST_PUSH, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Reads the stored forecast of a location, from today on.
+     */
+    public List<Day> snapshot(String locationSetting) {
+        List<Day> days = new ArrayList<Day>();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{
+                        WeatherContract.WeatherEntry.COLUMN_DATE,
+                        WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                days.add(new Day(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        cursor.getInt(3)));
+            }
+            cursor.close();
+        }
+        return days;
+    }
+
+    /**
+     * Learns from a successful sync and reprograms the periodic sync to match.
+     *
+     * @param before The forecast of the preferred location before the sync.
+     * @param after The same forecast after it.
+     * @return the interval the periodic sync is now set to, in seconds.
+     */
+    public long onSync(List<Day> before, List<Day> after) {
+        long now = System.currentTimeMillis();
+        double volatility = mPrefs.getFloat(PREF_VOLATILITY, (float) DEFAULT_VOLATILITY);
+        double sample = volatility(before, after);
+        long lastSync = mPrefs.getLong(PREF_LAST_SYNC, 0);
+        if (sample >= 0 && lastSync != 0) {
+            volatility = smooth(volatility, sample, (now - lastSync) / 1000);
+        }
+        boolean stormy = after.isEmpty() ? mPrefs.getBoolean(PREF_STORMY, false)
+                : isStormy(after.get(0).weatherId);
+
+        Conditions conditions = captureConditions();
+        conditions.volatility = volatility;
+        conditions.stormy = stormy;
+        long interval = computeInterval(conditions);
+
+        long programmed = mPrefs.getLong(PREF_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putLong(PREF_LAST_SYNC, now)
+                .putFloat(PREF_VOLATILITY, (float) volatility)
+                .putBoolean(PREF_STORMY, stormy);
+        if (Math.abs(interval - programmed) > programmed * RESCHEDULE_THRESHOLD) {
+            SunshineSyncAdapter.configurePeriodicSync(mContext, (int) interval,
+                    (int) (interval / 3));
+            editor.putLong(PREF_INTERVAL, interval);
+            programmed = interval;
+            Log.d(LOG_TAG, "Sync interval now " + interval + " s, volatility " + volatility
+                    + (stormy ? ", stormy" : "") + ", hour " + conditions.hourOfDay
+                    + (conditions.foreground ? ", in use" : "")
+                    + (conditions.charging ? ", charging" : "")
+                    + (conditions.metered ? ", metered" : "")
+                    + (conditions.pushing ? ", pushing" : ""));
+        }
+        editor.apply();
+        return programmed;
+    }
+
+    Conditions captureConditions() {
+        Conditions conditions = new Conditions();
+        conditions.hourOfDay = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        conditions.foreground = System.currentTimeMillis()
+                - mPrefs.getLong(PREF_LAST_FOREGROUND, 0) < FOREGROUND_WINDOW_MILLIS;
+        conditions.pushing = System.currentTimeMillis()
+                - mPrefs.getLong(PREF_LAST_PUSH, 0) < PUSH_WINDOW_MILLIS;
+
+        // The battery broadcast is sticky, so this returns the last one without registering
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        conditions.charging = battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        conditions.metered = cm.isActiveNetworkMetered();
+        return conditions;
+    }
+
+    /**
+     * How much a forecast changed, over the days both versions cover.
+     *
+     * @return from 0 for no change to 1 for every day changing completely, or -1 if the two
+     * have no day in common.
+     */
+    static double volatility(List<Day> before, List<Day> after) {
+        Map<Long, Day> previous = new HashMap<Long, Day>();
+        for (Day day : before) {
+            previous.put(day.date, day);
+        }
+        double change = 0;
+        int common = 0;
+        for (Day day : after) {
+            Day old = previous.get(day.date);
+            if (old == null) {
+                continue;
+            }
+            common++;
+            if (old.weatherId != day.weatherId) {
+                change += 1;
+            } else {
+                double shift = Math.abs(day.high - old.high) + Math.abs(day.low - old.low);
+                change += Math.min(1, shift / (2 * SIGNIFICANT_TEMPERATURE_CHANGE));
+            }
+        }
+        return common == 0 ? -1 : change / common;
+    }
+
+    /**
+     * Folds a sync into the running volatility.
+     *
+     * @param elapsed Seconds since the sync before.
+     */
+    static double smooth(double volatility, double sample, long elapsed) {
+        double weight = VOLATILITY_WEIGHT;
+        if (sample < volatility) {
+            weight *= Math.min(1.0, (double) elapsed / SunshineSyncAdapter.SYNC_INTERVAL);
+        }
+        return weight * sample + (1 - weight) * volatility;
+    }
+
+    /**
+     * Thunderstorms, drizzle, rain and snow: 2xx to 6xx in OWM's condition codes.
+     */
+    static boolean isStormy(int weatherId) {
+        return weatherId >= 200 && weatherId < 700;
+    }
+
+    /**
+     * @return the sync interval for the conditions, in seconds.
+     */
+    static long computeInterval(Conditions conditions) {
+        // Halves for every quarter of volatility: from twice the base interval for a steady
+        // forecast down to an eighth of it
+        double volatility = Math.max(0, Math.min(1, conditions.volatility));
+        double interval = SunshineSyncAdapter.SYNC_INTERVAL * Math.pow(2, 1 - 4 * volatility);
+        if (conditions.stormy) {
+            interval /= 2;
+        }
+        if (conditions.hourOfDay >= NIGHT_START_HOUR && conditions.hourOfDay < NIGHT_END_HOUR) {
+            interval *= 2;
+        }
+        if (conditions.foreground) {
+            interval /= 2;
+        }
+        if (conditions.charging) {
+            interval *= 0.75;
+        }
+        if (conditions.metered) {
+            interval *= 1.5;
+        }
+        long maxInterval = MAX_INTERVAL;
+        if (conditions.pushing) {
+            interval *= PUSH_INTERVAL_FACTOR;
+            maxInterval = MAX_PUSH_INTERVAL;
+        }
+        return Math.max(MIN_INTERVAL, Math.min(maxInterval, Math.round(interval)));
+    }
+}
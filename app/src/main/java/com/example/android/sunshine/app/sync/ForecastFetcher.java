@@ -0,0 +1,874 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.preference.PreferenceManager;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.ForecastRows;
+import com.example.android.sunshine.app.data.HourlyRows;
+import com.example.android.sunshine.app.net.SunshineHttpClient;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Downloads and parses the forecast of a single location.  Nothing is written to the database
+ * here, so several fetches can safely run at the same time; {@link ForecastSyncEngine} stores
+ * the results once they are all in.
+ *
+ * Canceling the fetcher's {@link #getCancellationSignal() signal} disconnects every request
+ * still open, and the fetches they belong to, and any fetch started after it, end in an
+ * OperationCanceledException instead of a result.
+ *
+ * Every request first takes a token from the {@link RequestRateLimiter} of the API key.  A
+ * request that would have to wait too long for one isn't sent, and neither is one the server
+ * turns away with 429; the result of such a fetch is {@link Result#throttled throttled}.
+ *
+ * Single-location responses are also written to the {@link SyncJournal} until they are
+ * stored.  A fetch that finds a recent one there, left by a sync that died before storing it,
+ * uses that instead of making a request.  Once stored, responses move on to the
+ * {@link ForecastPayloadCache}, which {@link #fetchCached} reads without the network.
+ *
+ * {@link #fetchHourly} fetches the 3-hour forecast of a location.  It goes through the rate
+ * limiter like every other request, but isn't journaled nor cached either: it only covers
+ * five days and is fetched for the preferred location alone.
+ */
+public class ForecastFetcher {
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    // Construct the URL for the OpenWeatherMap query
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    // The server is OWM unless the build points it at a relay, see app/build.gradle.
+    static final String FORECAST_BASE_URL =
+            BuildConfig.FORECAST_SERVER_URL + "/data/2.5/forecast/daily?";
+    // The 3-hour forecast, for the next five days.
+    static final String HOURLY_BASE_URL =
+            BuildConfig.FORECAST_SERVER_URL + "/data/2.5/forecast?";
+    static final String QUERY_PARAM = "q";
+    static final String FORMAT_PARAM = "mode";
+    static final String UNITS_PARAM = "units";
+    static final String DAYS_PARAM = "cnt";
+    static final String APPID_PARAM = "APPID";
+
+    static final String FORMAT = "json";
+    static final String UNITS = "metric";
+    static final int NUM_DAYS = 14;
+    // Five days of eight steps, all OWM has.
+    static final int NUM_STEPS = 40;
+
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+    static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    /**
+     * What we already know about a location before fetching its forecast.
+     */
+    public static class Location {
+        // The location string used to request updates from the server.
+        final String setting;
+        // Row ID in the location table, or -1 if the location hasn't been stored yet.
+        final long id;
+        // Whether the database holds forecast rows from today on for this location.
+        final boolean hasForecast;
+        // Hash of the last response stored for this location, or null.
+        final String payloadHash;
+
+        public Location(String setting, long id, boolean hasForecast, String payloadHash) {
+            this.setting = setting;
+            this.id = id;
+            this.hasForecast = hasForecast;
+            this.payloadHash = payloadHash;
+        }
+    }
+
+    /**
+     * The outcome of fetching one location.
+     */
+    public static class Result {
+        final Location location;
+
+        @SunshineSyncAdapter.LocationStatus
+        int status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+
+        // The server answered 304, so what we have is still current.
+        boolean notModified;
+        // The forecast differs from the stored one and has to be written.  Only then is
+        // forecast set.
+        boolean changed;
+        Forecast forecast;
+        // The request was held back by the rate limiter, or turned away by the server for
+        // being over the quota.  What we have stays, as for notModified, and the location
+        // gets another try with the next sync.
+        boolean throttled;
+        // The forecast was read from the payload cache rather than fetched.
+        boolean cached;
+        // The 3-hour forecast, if one was fetched for the location.  Stored whether or not the
+        // daily forecast changed.
+        Hourly hourly;
+
+        String etag;
+        String lastModified;
+        String payloadHash;
+
+        Result(Location location) {
+            this.location = location;
+        }
+
+        static Result throttled(Location location) {
+            Result result = new Result(location);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+            result.notModified = true;
+            result.throttled = true;
+            return result;
+        }
+    }
+
+    /**
+     * A request that wasn't sent, or that the server didn't serve, because of the rate limit.
+     */
+    static class ThrottledException extends IOException {
+        ThrottledException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Collects the days handed over by the {@link ForecastJsonParser} as weather rows.  The
+     * location key is filled in when the rows are stored, since OWM may send the city after the
+     * list of days and the location may not have a row yet.
+     */
+    static class Forecast implements ForecastJsonParser.Callback {
+        final Time mDayTime;
+        final int mJulianStartDay;
+        final ForecastRows mRows;
+        final CancellationSignal mCancellation;
+
+        String mCityName;
+        double mCityLatitude;
+        double mCityLongitude;
+
+        Forecast(int numDays) {
+            this(numDays, null);
+        }
+
+        /**
+         * @param cancellation Checked before every day, or null.
+         */
+        Forecast(int numDays, CancellationSignal cancellation) {
+            this(numDays, cancellation, System.currentTimeMillis());
+        }
+
+        /**
+         * @param fetchedAt When the response was fetched.  Its first day is that day.
+         */
+        Forecast(int numDays, CancellationSignal cancellation, long fetchedAt) {
+            mCancellation = cancellation;
+
+            // OWM returns daily forecasts based upon the local time of the city that is being
+            // asked for, which means that we need to know the GMT offset to translate this data
+            // properly.
+
+            // Since this data is also sent in-order and the first day is always the
+            // current day, we're going to take advantage of that to get a nice
+            // normalized UTC date for all of our weather.
+
+            Time dayTime = new Time();
+            dayTime.set(fetchedAt);
+
+            // we start at the day returned by local time. Otherwise this is a mess.
+            mJulianStartDay = Time.getJulianDay(fetchedAt, dayTime.gmtoff);
+
+            // now we work exclusively in UTC
+            mDayTime = new Time();
+            mRows = new ForecastRows(numDays);
+        }
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            mCityName = cityName;
+            mCityLatitude = lat;
+            mCityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low,
+                          String description, int weatherId) {
+            if (mCancellation != null) {
+                mCancellation.throwIfCanceled();
+            }
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = mDayTime.setJulianDay(mJulianStartDay + dayIndex);
+
+            mRows.add(dateTime, pressure, humidity, windSpeed, windDirection, high, low,
+                    description, weatherId);
+        }
+    }
+
+    /**
+     * Collects the steps handed over by the {@link ForecastJsonParser} as hourly rows.  The
+     * steps carry their own times, so unlike the days they need no counting.
+     */
+    static class Hourly implements ForecastJsonParser.HourlyCallback {
+        final HourlyRows mRows;
+        final CancellationSignal mCancellation;
+
+        /**
+         * @param cancellation Checked before every step, or null.
+         */
+        Hourly(int numSteps, CancellationSignal cancellation) {
+            mRows = new HourlyRows(numSteps);
+            mCancellation = cancellation;
+        }
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            // The daily forecast records the city
+        }
+
+        @Override
+        public void onStep(int stepIndex, long dateTime, double temperature, double pressure,
+                           int humidity, double windSpeed, double windDirection,
+                           String description, int weatherId) {
+            if (mCancellation != null) {
+                mCancellation.throwIfCanceled();
+            }
+            mRows.add(dateTime, temperature, pressure, humidity, windSpeed, windDirection,
+                    description, weatherId);
+        }
+    }
+
+    private final Context mContext;
+    private final String mBaseUrl;
+    private final String mHourlyBaseUrl;
+    private final ForecastValidatorCache mValidatorCache;
+    private final SunshineHttpClient mHttpClient;
+    // Null when the requests don't count against the API key's quota, as in tests.
+    private final RequestRateLimiter mRateLimiter;
+    private final long mMaxWaitMillis;
+    // Null when fetches don't survive the process, as in tests.
+    private final SyncJournal mJournal;
+    private final ForecastPayloadCache mPayloadCache;
+    private final SyncMetrics mMetrics = new SyncMetrics();
+    private final CancellationSignal mCancellation = new CancellationSignal();
+    // Requests between open and release, for cancel to disconnect.
+    private final Set<HttpURLConnection> mOpenConnections = new HashSet<HttpURLConnection>();
+
+    public ForecastFetcher(Context context) {
+        this(context, FORECAST_BASE_URL, SunshineHttpClient.getInstance(),
+                RequestRateLimiter.getInstance(context, BuildConfig.OPEN_WEATHER_MAP_API_KEY),
+                RequestRateLimiter.DEFAULT_MAX_WAIT_MILLIS, new SyncJournal(context),
+                ForecastPayloadCache.getInstance(context));
+    }
+
+    /**
+     * @param baseUrl The forecast endpoint, ending in "?".  Tests point this at a local server.
+     */
+    ForecastFetcher(Context context, String baseUrl) {
+        this(context, baseUrl, SunshineHttpClient.getInstance());
+    }
+
+    ForecastFetcher(Context context, String baseUrl, SunshineHttpClient httpClient) {
+        this(context, baseUrl, httpClient, null, 0);
+    }
+
+    /**
+     * @param rateLimiter Every request goes through it, or null for no limit.
+     * @param maxWaitMillis How long a request may wait for the rate limiter before it is
+     * given up on.
+     */
+    ForecastFetcher(Context context, String baseUrl, SunshineHttpClient httpClient,
+                    RequestRateLimiter rateLimiter, long maxWaitMillis) {
+        this(context, baseUrl, httpClient, rateLimiter, maxWaitMillis, null, null);
+    }
+
+    /**
+     * @param journal Keeps fetched responses until they are stored, or null.
+     * @param payloadCache Gets the journaled responses once they are stored, or null.  Only
+     * used along with a journal.
+     */
+    ForecastFetcher(Context context, String baseUrl, SunshineHttpClient httpClient,
+                    RequestRateLimiter rateLimiter, long maxWaitMillis, SyncJournal journal,
+                    ForecastPayloadCache payloadCache) {
+        this(context, baseUrl, HOURLY_BASE_URL, httpClient, rateLimiter, maxWaitMillis, journal,
+                payloadCache);
+    }
+
+    /**
+     * @param hourlyBaseUrl The 3-hour forecast endpoint, ending in "?".
+     */
+    ForecastFetcher(Context context, String baseUrl, String hourlyBaseUrl,
+                    SunshineHttpClient httpClient, RequestRateLimiter rateLimiter,
+                    long maxWaitMillis, SyncJournal journal, ForecastPayloadCache payloadCache) {
+        mContext = context;
+        mBaseUrl = baseUrl;
+        mHourlyBaseUrl = hourlyBaseUrl;
+        mValidatorCache = new ForecastValidatorCache(context);
+        mHttpClient = httpClient;
+        mRateLimiter = rateLimiter;
+        mMaxWaitMillis = maxWaitMillis;
+        mJournal = journal;
+        mPayloadCache = payloadCache;
+        mCancellation.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                disconnectAll();
+            }
+        });
+    }
+
+    /**
+     * @return the timings and byte counts of every request this fetcher made.
+     */
+    public SyncMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return the signal that cancels this fetcher's requests.
+     */
+    public CancellationSignal getCancellationSignal() {
+        return mCancellation;
+    }
+
+    /**
+     * @return the limiter requests go through, or null.
+     */
+    public RequestRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * @return the host requests are sent to.
+     */
+    public String getHost() {
+        return Uri.parse(mBaseUrl).getHost();
+    }
+
+    URL buildUrl(String locationSetting) throws IOException {
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+        return new URL(builtUri.toString());
+    }
+
+    URL buildHourlyUrl(String locationSetting) throws IOException {
+        Uri builtUri = Uri.parse(mHourlyBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_STEPS))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+        return new URL(builtUri.toString());
+    }
+
+    /**
+     * Fetches and parses the forecast of a location.  Network and parse errors are reported
+     * through the status of the result rather than thrown.
+     *
+     * @throws android.os.OperationCanceledException if the fetcher was canceled.
+     */
+    public Result fetch(Location location) {
+        mCancellation.throwIfCanceled();
+        String key = getValidatorKey(location);
+        if (mJournal != null) {
+            SyncJournal.Entry entry = mJournal.get(key, System.currentTimeMillis());
+            if (entry != null) {
+                Result resumed = resume(location, entry);
+                if (resumed != null) {
+                    return resumed;
+                }
+            }
+        }
+        Result result = new Result(location);
+
+        // These two need to be declared outside the try/catch
+        // so that they can be released in the finally block.
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        SyncJournal.PayloadWriter journaled = null;
+        long bodyStart = -1;
+
+        try {
+            // Create the request to OpenWeatherMap, and open the connection
+            urlConnection = open(buildUrl(location.setting));
+
+            // Ask the server to only send the forecast if it changed since the one we stored.
+            // The validators are only worth sending while we still have that forecast.
+            if (location.hasForecast) {
+                mValidatorCache.applyTo(urlConnection, key);
+            }
+            int responseCode = connect(urlConnection);
+            checkRateLimited(urlConnection, responseCode);
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Nothing new, so there's nothing to parse, store or tell anyone about.
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                result.notModified = true;
+                return result;
+            }
+            result.etag = urlConnection.getHeaderField(ForecastValidatorCache.HEADER_ETAG);
+            result.lastModified =
+                    urlConnection.getHeaderField(ForecastValidatorCache.HEADER_LAST_MODIFIED);
+
+            // Parse the input stream as it arrives rather than reading it into a String first
+            bodyStart = System.nanoTime();
+            inputStream = mHttpClient.getBody(urlConnection, mMetrics);
+            if (inputStream == null) {
+                // Nothing to do.
+                return result;
+            }
+            if (mJournal != null) {
+                journaled = mJournal.write(key, inputStream);
+            }
+            // Fingerprint the body as it streams by, to spot a response we already stored
+            HashingInputStream payloadStream =
+                    new HashingInputStream(journaled != null ? journaled : inputStream);
+            Reader reader = new BufferedReader(new InputStreamReader(payloadStream, "UTF-8"),
+                    mHttpClient.getBufferSize());
+
+            Forecast forecast = new Forecast(NUM_DAYS, mCancellation);
+            int messageCode = new ForecastJsonParser().parse(reader, forecast);
+
+            // do we have an error?
+            switch (messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+                    return result;
+                default:
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                    return result;
+            }
+            incrementSyncCounter(mContext, R.string.pref_sync_fetch_count_key);
+
+            // Hash whatever the parser left unread after the closing brace, so the hash
+            // covers the whole body.
+            readToEnd(payloadStream);
+            result.payloadHash = payloadStream.getHash();
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+
+            if (location.hasForecast && result.payloadHash.equals(location.payloadHash)) {
+                // Same response as last time, so there's nothing to store or tell anyone about.
+                incrementSyncCounter(mContext, R.string.pref_sync_unchanged_count_key);
+                return result;
+            }
+            result.forecast = forecast;
+            result.changed = true;
+            if (journaled != null) {
+                journaled.commit(System.currentTimeMillis(), result.etag, result.lastModified,
+                        result.payloadHash);
+            }
+        } catch (ThrottledException e) {
+            Log.d(LOG_TAG, "Not fetching " + location.setting + ": " + e.getMessage());
+            mMetrics.onThrottled(1);
+            return Result.throttled(location);
+        } catch (IOException e) {
+            // Cancel disconnects the request, which shows up here as a broken stream
+            mCancellation.throwIfCanceled();
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.  This includes an empty response, which ends the stream early.
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            if (bodyStart != -1) {
+                mMetrics.onBodyRead(System.nanoTime() - bodyStart);
+            }
+            if (journaled != null) {
+                // Nothing to keep unless committed above
+                journaled.abort();
+            }
+            // Hands the connection back for the next request
+            release(urlConnection, inputStream);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches a location from a journaled response instead of the network.
+     *
+     * @return the result, or null if the journaled response is of no use and the location
+     * should be fetched.
+     */
+    private Result resume(Location location, SyncJournal.Entry entry) {
+        if (location.hasForecast && entry.payloadHash.equals(location.payloadHash)) {
+            // The sync that fetched it got as far as storing it
+            Log.d(LOG_TAG, location.setting + " was stored before the last sync ended");
+            Result result = new Result(location);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+            result.etag = entry.etag;
+            result.lastModified = entry.lastModified;
+            result.payloadHash = entry.payloadHash;
+            return result;
+        }
+
+        Result result = null;
+        try {
+            result = parseStored(location, new FileInputStream(entry.payload), entry.fetchedAt,
+                    entry.payloadHash);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading the journal for " + location.setting, e);
+        }
+        if (result == null) {
+            mJournal.remove(entry.key);
+            return null;
+        }
+        Log.d(LOG_TAG, "Resuming " + location.setting + " from stage " + entry.stage
+                + " with a response fetched at " + entry.fetchedAt);
+        result.etag = entry.etag;
+        result.lastModified = entry.lastModified;
+        return result;
+    }
+
+    /**
+     * Reads a location's forecast from the payload cache instead of the network, e.g. to
+     * rebuild the database without it.
+     *
+     * @return the result, which is {@link Result#cached cached}, or null if nothing usable is
+     * cached for the location.  A response whose days are all past isn't usable, and is
+     * dropped from the cache.
+     */
+    public Result fetchCached(Location location) {
+        if (mPayloadCache == null) {
+            return null;
+        }
+        ForecastPayloadCache.Payload payload = mPayloadCache.get(location.setting);
+        if (payload == null) {
+            return null;
+        }
+        if (isOutdated(payload.fetchedAt, System.currentTimeMillis())) {
+            Log.d(LOG_TAG, "Dropping the cached response for " + location.setting
+                    + " fetched at " + payload.fetchedAt + ", its days are all past");
+            mPayloadCache.remove(location.setting);
+            return null;
+        }
+        try {
+            Result result = parseStored(location, payload.open(), payload.fetchedAt, null);
+            if (result != null) {
+                result.cached = true;
+            }
+            return result;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading the cached response for " + location.setting, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the last of the {@link #NUM_DAYS} days of a response fetched at fetchedAt
+     * is before the day of now.
+     */
+    static boolean isOutdated(long fetchedAt, long now) {
+        Time time = new Time();
+        time.set(fetchedAt);
+        int firstDay = Time.getJulianDay(fetchedAt, time.gmtoff);
+        time.set(now);
+        return firstDay + NUM_DAYS <= Time.getJulianDay(now, time.gmtoff);
+    }
+
+    /**
+     * @return the locations the payload cache has a response for.
+     */
+    public List<String> getCachedSettings() {
+        return mPayloadCache != null
+                ? mPayloadCache.getSettings() : Collections.<String>emptyList();
+    }
+
+    /**
+     * Parses a response read back from disk rather than the network, and closes it.
+     *
+     * @param fetchedAt When the response was fetched, which its days count from.
+     * @param expectedHash The hash the response must have, or null.
+     * @return the result, or null if the response doesn't parse or hasn't got the hash.
+     */
+    private Result parseStored(Location location, InputStream inputStream, long fetchedAt,
+                               String expectedHash) throws IOException {
+        try {
+            HashingInputStream payloadStream = new HashingInputStream(inputStream);
+            Reader reader = new BufferedReader(new InputStreamReader(payloadStream, "UTF-8"),
+                    mHttpClient.getBufferSize());
+            Forecast forecast = new Forecast(NUM_DAYS, mCancellation, fetchedAt);
+            int messageCode = new ForecastJsonParser().parse(reader, forecast);
+            readToEnd(payloadStream);
+            if (messageCode != HttpURLConnection.HTTP_OK
+                    || (expectedHash != null && !expectedHash.equals(payloadStream.getHash()))) {
+                Log.w(LOG_TAG, "Stored response for " + location.setting + " is damaged");
+                return null;
+            }
+            Result result = new Result(location);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+            result.payloadHash = payloadStream.getHash();
+            result.forecast = forecast;
+            result.changed = true;
+            return result;
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Stored response for " + location.setting + " is damaged", e);
+            return null;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void readToEnd(InputStream inputStream) throws IOException {
+        byte[] drain = new byte[256];
+        while (inputStream.read(drain, 0, drain.length) != -1) {
+            // keep reading
+        }
+    }
+
+    /**
+     * Fetches and parses the 3-hour forecast of a location, streaming the steps straight into
+     * {@link HourlyRows}.
+     *
+     * @return the steps, or null if they couldn't be fetched for any reason.  The daily
+     * forecast's result tells the location's status; this is only ever extra.
+     * @throws android.os.OperationCanceledException if the fetcher was canceled.
+     */
+    public Hourly fetchHourly(Location location) {
+        mCancellation.throwIfCanceled();
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        long bodyStart = -1;
+        try {
+            urlConnection = open(buildHourlyUrl(location.setting));
+            int responseCode = connect(urlConnection);
+            checkRateLimited(urlConnection, responseCode);
+
+            bodyStart = System.nanoTime();
+            inputStream = mHttpClient.getBody(urlConnection, mMetrics);
+            if (inputStream == null) {
+                return null;
+            }
+            Reader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"),
+                    mHttpClient.getBufferSize());
+            Hourly hourly = new Hourly(NUM_STEPS, mCancellation);
+            int messageCode = new ForecastJsonParser().parseHourly(reader, hourly);
+            if (messageCode != HttpURLConnection.HTTP_OK) {
+                Log.w(LOG_TAG, "3-hour forecast for " + location.setting + " failed with "
+                        + messageCode);
+                return null;
+            }
+            return hourly;
+        } catch (ThrottledException e) {
+            Log.d(LOG_TAG, "Not fetching the 3-hour forecast: " + e.getMessage());
+            mMetrics.onThrottled(1);
+            return null;
+        } catch (IOException e) {
+            mCancellation.throwIfCanceled();
+            Log.e(LOG_TAG, "Error ", e);
+            return null;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return null;
+        } finally {
+            if (bodyStart != -1) {
+                mMetrics.onBodyRead(System.nanoTime() - bodyStart);
+            }
+            release(urlConnection, inputStream);
+        }
+    }
+
+    /**
+     * Waits for the rate limiter, then opens a request and keeps track of it until it is
+     * released.  If the fetcher is canceled meanwhile, the request is disconnected and this
+     * throws.
+     *
+     * @throws ThrottledException if the rate limiter holds the request back for too long.
+     */
+    private HttpURLConnection open(URL url) throws IOException {
+        if (mRateLimiter != null) {
+            long waited;
+            try {
+                waited = mRateLimiter.acquire(mMaxWaitMillis, mCancellation);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the rate limiter");
+            }
+            mMetrics.onRateLimit(Math.max(waited, 0),
+                    mRateLimiter.getAvailableTokens(System.currentTimeMillis()));
+            if (waited == -1) {
+                throw new ThrottledException("over the rate limit");
+            }
+        }
+        HttpURLConnection urlConnection = mHttpClient.open(url);
+        synchronized (mOpenConnections) {
+            mOpenConnections.add(urlConnection);
+        }
+        if (mCancellation.isCanceled()) {
+            // Too late for disconnectAll to have seen it
+            release(urlConnection, null);
+            mCancellation.throwIfCanceled();
+        }
+        return urlConnection;
+    }
+
+    /**
+     * Finishes a request.  A canceled one is dropped as it is, rather than read to the end for
+     * the connection pool.
+     */
+    private void release(HttpURLConnection urlConnection, InputStream inputStream) {
+        if (urlConnection == null) {
+            return;
+        }
+        synchronized (mOpenConnections) {
+            mOpenConnections.remove(urlConnection);
+        }
+        if (mCancellation.isCanceled()) {
+            urlConnection.disconnect();
+        } else {
+            mHttpClient.release(urlConnection, inputStream);
+        }
+    }
+
+    private void disconnectAll() {
+        List<HttpURLConnection> connections;
+        synchronized (mOpenConnections) {
+            connections = new ArrayList<HttpURLConnection>(mOpenConnections);
+        }
+        // Unblocks whichever fetch is waiting on the network
+        for (HttpURLConnection urlConnection : connections) {
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Tells the rate limiter when the server says we're over the quota, and how long it asked
+     * us to stay away, in seconds, if it did.
+     *
+     * @throws ThrottledException on a 429.
+     */
+    private void checkRateLimited(HttpURLConnection urlConnection, int responseCode)
+            throws ThrottledException {
+        if (responseCode != HTTP_TOO_MANY_REQUESTS) {
+            return;
+        }
+        long retryAfterMillis = 0;
+        String retryAfter = urlConnection.getHeaderField(HEADER_RETRY_AFTER);
+        if (retryAfter != null) {
+            try {
+                retryAfterMillis = Math.max(Long.parseLong(retryAfter.trim()), 0) * 1000;
+            } catch (NumberFormatException e) {
+                // An HTTP date; the bucket's own refill time will do
+            }
+        }
+        if (mRateLimiter != null) {
+            mRateLimiter.onRateLimited(System.currentTimeMillis(), retryAfterMillis);
+        }
+        throw new ThrottledException("server answered 429, retry after " + retryAfter);
+    }
+
+    /**
+     * Sends the request and waits for the response headers, timing both for the metrics.
+     *
+     * @return the response code.
+     */
+    private int connect(HttpURLConnection urlConnection) throws IOException {
+        long start = System.nanoTime();
+        urlConnection.connect();
+        long connected = System.nanoTime();
+        int responseCode = urlConnection.getResponseCode();
+        mMetrics.onRequest(connected - start, System.nanoTime() - connected);
+        return responseCode;
+    }
+
+    /**
+     * Notes in the journal that the changed forecasts are about to be stored.
+     */
+    void onStoring(List<Result> results) {
+        if (mJournal == null) {
+            return;
+        }
+        for (Result result : results) {
+            mJournal.markStoring(getValidatorKey(result.location));
+        }
+    }
+
+    /**
+     * Remembers the validators of a response once it has been stored, and moves it from the
+     * journal to the payload cache.
+     */
+    void onStored(Result result) {
+        if (result.cached || result.throttled) {
+            // Nothing new from the server
+            return;
+        }
+        boolean ok = result.status == SunshineSyncAdapter.LOCATION_STATUS_OK;
+        if (ok && !result.notModified) {
+            mValidatorCache.store(getValidatorKey(result.location), result.etag,
+                    result.lastModified);
+        }
+        if (mJournal == null) {
+            return;
+        }
+        SyncJournal.Entry entry = mJournal.detach(getValidatorKey(result.location));
+        if (entry != null && ok && mPayloadCache != null) {
+            mPayloadCache.put(result.location.setting, entry.fetchedAt, entry.payload);
+        } else if (entry != null) {
+            entry.payload.delete();
+        } else if (ok && mPayloadCache != null) {
+            // A 304, or the same response as last time: what is cached is still current
+            mPayloadCache.touch(result.location.setting, System.currentTimeMillis());
+        }
+    }
+
+    private static String getValidatorKey(Location location) {
+        return ForecastValidatorCache.key(location.setting, UNITS, NUM_DAYS);
+    }
+
+    /**
+     * Adds one to a sync counter in shared preference.  This function should not be called from
+     * the UI thread because it uses commit to write to the shared preferences.  Fetches run in
+     * parallel, hence the lock around the read and the write.
+     * @param c Context to get the PreferenceManager from.
+     * @param counterKeyResId The string resource id of the counter's key
+     */
+    static synchronized void incrementSyncCounter(Context c, int counterKeyResId) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        String key = c.getString(counterKeyResId);
+        sp.edit().putInt(key, sp.getInt(key, 0) + 1).commit();
+    }
+}
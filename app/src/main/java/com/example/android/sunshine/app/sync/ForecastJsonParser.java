@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Streaming parser for the OpenWeatherMap daily forecast response, and for the 3-hour one.
+ *
+ * Instead of reading the whole response into a String and building a JSONObject tree from it,
+ * the response is read token by token and every day is handed to a {@link Callback} as soon as
+ * it has been read.  Memory use therefore stays flat no matter how many days were requested.
+ * The 3-hour response has the same layout with a step in place of every day, and is handed to
+ * a {@link HourlyCallback} the same way.
+ */
+public class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // The 3-hour forecast keeps the start of each step in "dt", in seconds since the epoch, the
+    // temperature, pressure and humidity in a child object called "main" and the wind in one
+    // called "wind".
+    static final String OWM_DATE_TIME = "dt";
+    static final String OWM_MAIN = "main";
+    static final String OWM_WIND = "wind";
+
+    // Bits used to make sure every day carries all of the values we store.
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int FIELD_ALL = (1 << 8) - 1;
+    private static final int FIELD_TEMPERATURE = 1 << 8;
+    private static final int FIELD_DATE_TIME = 1 << 9;
+    private static final int FIELD_ALL_STEP = FIELD_PRESSURE | FIELD_HUMIDITY | FIELD_WINDSPEED
+            | FIELD_WIND_DIRECTION | FIELD_DESCRIPTION | FIELD_WEATHER_ID | FIELD_TEMPERATURE
+            | FIELD_DATE_TIME;
+
+    /**
+     * Receives the city of a forecast.  Days and steps can arrive before the city, since OWM
+     * does not guarantee the order of the top level members.
+     */
+    public interface CityCallback {
+        void onCity(String cityName, double lat, double lon);
+    }
+
+    /**
+     * Receives the values of the daily forecast as they are read from the stream.
+     */
+    public interface Callback extends CityCallback {
+        void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                   double windDirection, double high, double low,
+                   String description, int weatherId);
+    }
+
+    /**
+     * Receives the values of the 3-hour forecast as they are read from the stream.
+     */
+    public interface HourlyCallback extends CityCallback {
+        /**
+         * @param dateTime Start of the step, in milliseconds since the epoch.
+         */
+        void onStep(int stepIndex, long dateTime, double temperature, double pressure,
+                    int humidity, double windSpeed, double windDirection,
+                    String description, int weatherId);
+    }
+
+    // The values of the day currently being read.  Reused for every element of "list".
+    private int mSeen;
+    private double mPressure;
+    private int mHumidity;
+    private double mWindSpeed;
+    private double mWindDirection;
+    private double mHigh;
+    private double mLow;
+    private double mTemperature;
+    private long mDateTime;
+    private String mDescription;
+    private int mWeatherId;
+
+    /**
+     * Reads a complete forecast response from the given reader.
+     *
+     * @param in Reader positioned at the start of the response.  It is not closed.
+     * @param callback Receives the city and every day of the forecast.
+     * @return the "cod" message code of the response, or HTTP_OK when there was none.  When this
+     * isn't HTTP_OK the response carried an error and the callback may not have been called.
+     * @throws JSONException if the response isn't a well formed forecast.
+     * @throws IOException if the underlying reader fails.
+     */
+    public int parse(Reader in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readForecast(reader, callback, callback, null);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw newJSONException(e);
+        }
+    }
+
+    /**
+     * Reads a complete 3-hour forecast response from the given reader.
+     *
+     * @param in Reader positioned at the start of the response.  It is not closed.
+     * @param callback Receives the city and every step of the forecast.
+     * @return the "cod" message code of the response, or HTTP_OK when there was none.  When this
+     * isn't HTTP_OK the response carried an error and the callback may not have been called.
+     * @throws JSONException if the response isn't a well formed forecast.
+     * @throws IOException if the underlying reader fails.
+     */
+    public int parseHourly(Reader in, HourlyCallback callback)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readForecast(reader, callback, null, callback);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw newJSONException(e);
+        }
+    }
+
+    /**
+     * Reads one forecast, handing its list to whichever of days and steps isn't null.
+     */
+    private int readForecast(JsonReader reader, CityCallback city, Callback days,
+                             HourlyCallback steps) throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean hasList = false;
+        boolean hasCity = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                // OWM sends this as a string on success and as a number on failure.
+                messageCode = reader.nextInt();
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, city);
+                hasCity = true;
+            } else if (OWM_LIST.equals(name)) {
+                if (days != null) {
+                    readList(reader, days);
+                } else {
+                    readSteps(reader, steps);
+                }
+                hasList = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (messageCode == HttpURLConnection.HTTP_OK) {
+            if (!hasList) throw new JSONException("No value for " + OWM_LIST);
+            if (!hasCity) throw new JSONException("No value for " + OWM_CITY);
+        }
+        return messageCode;
+    }
+
+    private void readCity(JsonReader reader, CityCallback callback)
+            throws IOException, JSONException {
+        String cityName = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null) throw new JSONException("No value for " + OWM_CITY_NAME);
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            throw new JSONException("No value for " + OWM_COORD);
+        }
+        callback.onCity(cityName, lat, lon);
+    }
+
+    private void readList(JsonReader reader, Callback callback) throws IOException, JSONException {
+        int dayIndex = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readDay(reader);
+            if (mSeen != FIELD_ALL) {
+                throw new JSONException("Incomplete forecast for day " + dayIndex);
+            }
+            callback.onDay(dayIndex++, mPressure, mHumidity, mWindSpeed, mWindDirection,
+                    mHigh, mLow, mDescription, mWeatherId);
+        }
+        reader.endArray();
+    }
+
+    private void readDay(JsonReader reader) throws IOException {
+        mSeen = 0;
+        mDescription = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                mPressure = reader.nextDouble();
+                mSeen |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                mHumidity = reader.nextInt();
+                mSeen |= FIELD_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                mWindSpeed = reader.nextDouble();
+                mSeen |= FIELD_WINDSPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                mWindDirection = reader.nextDouble();
+                mSeen |= FIELD_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        mHigh = reader.nextDouble();
+                        mSeen |= FIELD_MAX;
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        mLow = reader.nextDouble();
+                        mSeen |= FIELD_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                readWeather(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readSteps(JsonReader reader, HourlyCallback callback)
+            throws IOException, JSONException {
+        int stepIndex = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readStep(reader);
+            if (mSeen != FIELD_ALL_STEP) {
+                throw new JSONException("Incomplete forecast for step " + stepIndex);
+            }
+            callback.onStep(stepIndex++, mDateTime, mTemperature, mPressure, mHumidity,
+                    mWindSpeed, mWindDirection, mDescription, mWeatherId);
+        }
+        reader.endArray();
+    }
+
+    private void readStep(JsonReader reader) throws IOException {
+        mSeen = 0;
+        mDescription = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DATE_TIME.equals(name)) {
+                mDateTime = reader.nextLong() * 1000;
+                mSeen |= FIELD_DATE_TIME;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        mTemperature = reader.nextDouble();
+                        mSeen |= FIELD_TEMPERATURE;
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        mPressure = reader.nextDouble();
+                        mSeen |= FIELD_PRESSURE;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        mHumidity = reader.nextInt();
+                        mSeen |= FIELD_HUMIDITY;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        mWindSpeed = reader.nextDouble();
+                        mSeen |= FIELD_WINDSPEED;
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        mWindDirection = reader.nextDouble();
+                        mSeen |= FIELD_WIND_DIRECTION;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                readWeather(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readWeather(JsonReader reader) throws IOException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.
+        reader.beginArray();
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    mDescription = reader.nextString();
+                    mSeen |= FIELD_DESCRIPTION;
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    mWeatherId = reader.nextInt();
+                    mSeen |= FIELD_WEATHER_ID;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
+    private static JSONException newJSONException(Exception cause) {
+        JSONException e = new JSONException(cause.getMessage());
+        e.initCause(cause);
+        return e;
+    }
+}
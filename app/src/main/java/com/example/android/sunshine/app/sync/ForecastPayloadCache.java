@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the raw forecast response last stored for every location, so the database can be
+ * rebuilt without the network, e.g. after a schema upgrade dropped its tables.
+ *
+ * Payloads are files in the cache directory, read back through a memory map rather than
+ * copied through a buffer.  The cache is bounded by their total size; once over it, the
+ * payloads used least recently are dropped first.  What is cached for which location, and in
+ * which order it was used, is kept in shared preferences.
+ *
+ * A payload comes with the time it was fetched, since OWM's days count from the day of the
+ * request, not from the day the payload is read back.
+ */
+public class ForecastPayloadCache {
+    private static final String LOG_TAG = ForecastPayloadCache.class.getSimpleName();
+
+    static final String PREFS_NAME = "forecast_payload_cache";
+    static final String DIR_NAME = "forecast_payloads";
+
+    // About fifty locations' worth of 14 day forecasts.
+    public static final long DEFAULT_MAX_BYTES = 512 * 1024;
+
+    private static final String SUFFIX_SETTING = ".setting";
+    private static final String SUFFIX_FETCHED_AT = ".fetched_at";
+    private static final String SUFFIX_ACCESS = ".access";
+
+    /**
+     * The cached response of one location.
+     */
+    public static class Payload {
+        final String setting;
+        final long fetchedAt;
+        final File file;
+
+        Payload(String setting, long fetchedAt, File file) {
+            this.setting = setting;
+            this.fetchedAt = fetchedAt;
+            this.file = file;
+        }
+
+        /**
+         * Maps the payload into memory.  The map stays valid after the file is closed,
+         * and even after the payload is evicted.
+         */
+        public InputStream open() throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                return new ByteBufferInputStream(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    private static ForecastPayloadCache sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final File mDir;
+    private final long mMaxBytes;
+    // File names to sizes, least recently used first.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>();
+    private long mSize;
+    private long mNextAccess;
+
+    /**
+     * @return the cache of the process.  Syncs of every location share it, and its size.
+     */
+    public static synchronized ForecastPayloadCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastPayloadCache(context.getApplicationContext(),
+                    DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    ForecastPayloadCache(Context context, long maxBytes) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+        mMaxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * Moves a stored response into the cache, in place of whatever was cached for the location.
+     *
+     * @param fetchedAt When the response was fetched, in milliseconds since the epoch.
+     * @param source The response.  It is renamed into the cache, or deleted if that fails.
+     */
+    public synchronized void put(String setting, long fetchedAt, File source) {
+        String name = HashingInputStream.hash(setting);
+        File file = getFile(name);
+        mDir.mkdirs();
+        removeEntry(name);
+        if (!source.renameTo(file)) {
+            Log.w(LOG_TAG, "Couldn't cache the response for " + setting);
+            source.delete();
+            return;
+        }
+        mPrefs.edit()
+                .putString(name + SUFFIX_SETTING, setting)
+                .putLong(name + SUFFIX_FETCHED_AT, fetchedAt)
+                .putLong(name + SUFFIX_ACCESS, mNextAccess++)
+                .commit();
+        long size = file.length();
+        mEntries.put(name, size);
+        mSize += size;
+        evict();
+    }
+
+    /**
+     * @return the cached response for a location, or null.
+     */
+    public synchronized Payload get(String setting) {
+        String name = HashingInputStream.hash(setting);
+        if (!mEntries.containsKey(name)) {
+            return null;
+        }
+        File file = getFile(name);
+        if (!file.isFile()) {
+            // The system may clear the cache directory at any time
+            removeEntry(name);
+            return null;
+        }
+        markUsed(name);
+        return new Payload(setting, mPrefs.getLong(name + SUFFIX_FETCHED_AT, 0), file);
+    }
+
+    /**
+     * Drops the cached response for a location, if there is one.
+     */
+    public synchronized void remove(String setting) {
+        removeEntry(HashingInputStream.hash(setting));
+    }
+
+    /**
+     * The server confirmed a location's cached response is still current, as of fetchedAt.
+     */
+    public synchronized void touch(String setting, long fetchedAt) {
+        String name = HashingInputStream.hash(setting);
+        if (mEntries.containsKey(name)) {
+            mPrefs.edit().putLong(name + SUFFIX_FETCHED_AT, fetchedAt).commit();
+            markUsed(name);
+        }
+    }
+
+    /**
+     * @return the locations with a cached response, least recently used first.
+     */
+    public synchronized List<String> getSettings() {
+        List<String> settings = new ArrayList<String>(mEntries.size());
+        for (String name : mEntries.keySet()) {
+            settings.add(mPrefs.getString(name + SUFFIX_SETTING, null));
+        }
+        return settings;
+    }
+
+    /**
+     * @return the total size of the cached responses, in bytes.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    private void markUsed(String name) {
+        Long size = mEntries.remove(name);
+        mEntries.put(name, size);
+        mPrefs.edit().putLong(name + SUFFIX_ACCESS, mNextAccess++).commit();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = mEntries.entrySet().iterator();
+        // The newest payload stays even if it alone is over the limit
+        while (mSize > mMaxBytes && mEntries.size() > 1) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Log.d(LOG_TAG, "Evicting " + mPrefs.getString(entry.getKey() + SUFFIX_SETTING, null));
+            mSize -= entry.getValue();
+            eldest.remove();
+            forget(entry.getKey());
+        }
+    }
+
+    private void removeEntry(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+        forget(name);
+    }
+
+    private void forget(String name) {
+        mPrefs.edit()
+                .remove(name + SUFFIX_SETTING)
+                .remove(name + SUFFIX_FETCHED_AT)
+                .remove(name + SUFFIX_ACCESS)
+                .commit();
+        getFile(name).delete();
+    }
+
+    /**
+     * Reads the entries back in the order they were used, and drops entries whose file is gone
+     * as well as files a crash left without an entry.
+     */
+    private void load() {
+        final Map<String, ?> prefs = mPrefs.getAll();
+        List<String> names = new ArrayList<String>();
+        for (String key : prefs.keySet()) {
+            if (key.endsWith(SUFFIX_SETTING)) {
+                names.add(key.substring(0, key.length() - SUFFIX_SETTING.length()));
+            }
+        }
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                long left = access(prefs, lhs);
+                long right = access(prefs, rhs);
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (String name : names) {
+            File file = getFile(name);
+            if (file.isFile()) {
+                mEntries.put(name, file.length());
+                mSize += file.length();
+                mNextAccess = Math.max(mNextAccess, access(prefs, name) + 1);
+            } else {
+                forget(name);
+            }
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(".json")
+                        || !mEntries.containsKey(name.substring(0, name.length() - 5))) {
+                    file.delete();
+                }
+            }
+        }
+        evict();
+    }
+
+    private static long access(Map<String, ?> prefs, String name) {
+        Object access = prefs.get(name + SUFFIX_ACCESS);
+        return access instanceof Long ? (Long) access : 0;
+    }
+
+    private File getFile(String name) {
+        return new File(mDir, name + ".json");
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastRows;
+import com.example.android.sunshine.app.data.HourlyRows;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the forecast of every stored location at once.
+ *
+ * Fetches run on a bounded pool of threads shared by every engine in the process, no more than
+ * the engine's parallelism of them at a time, and no more than a set number of them talk to
+ * the same host at the same time.  Once all of them are done the results are written with a
+ * single {@link WeatherContract#METHOD_STORE_FORECASTS} call, which the provider applies in one
+ * transaction with one change notification per URI, or with
+ * {@link WeatherContract#METHOD_REPLACE_FORECAST} when only one location changed.  That is one
+ * transaction per fetchAll: the sync adapter fetches and persists the preferred location apart
+ * from the others, so that it is stored without waiting for them, and a sync that refreshes
+ * both writes twice.
+ *
+ * Every location takes a request of its own: OWM's group endpoint only answers with current
+ * weather, not the daily forecast stored here.  When the fetcher's rate limiter runs short of
+ * tokens, the locations it can't fetch in time come back throttled and are left for the next
+ * sync.
+ *
+ * Canceling the {@link #getCancellationSignal() signal} aborts the fetches under way, and
+ * fetchAll and persist throw OperationCanceledException without writing anything.
+ */
+public class ForecastSyncEngine {
+    private static final String LOG_TAG = ForecastSyncEngine.class.getSimpleName();
+
+    // How many locations are fetched at the same time.
+    public static final int DEFAULT_PARALLELISM = 4;
+    // The most an engine may fetch at the same time, the size of the shared pool.
+    public static final int MAX_PARALLELISM = 8;
+    // How long an idle fetch thread waits for the next sync before it ends.
+    static final long FETCH_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sFetchExecutor;
+
+    // How many of those may talk to the same host at the same time.
+    public static final int DEFAULT_PER_HOST_LIMIT = 4;
+
+    private final Context mContext;
+    private final ForecastFetcher mFetcher;
+    private final int mParallelism;
+    private final int mPerHostLimit;
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    public ForecastSyncEngine(Context context, ForecastFetcher fetcher) {
+        this(context, fetcher, DEFAULT_PARALLELISM, DEFAULT_PER_HOST_LIMIT);
+    }
+
+    public ForecastSyncEngine(Context context, ForecastFetcher fetcher,
+                              int parallelism, int perHostLimit) {
+        if (parallelism < 1 || perHostLimit < 1) {
+            throw new IllegalArgumentException("parallelism and perHostLimit must be positive");
+        }
+        if (parallelism > MAX_PARALLELISM) {
+            throw new IllegalArgumentException("parallelism is over " + MAX_PARALLELISM);
+        }
+        mContext = context;
+        mFetcher = fetcher;
+        mParallelism = parallelism;
+        mPerHostLimit = perHostLimit;
+    }
+
+    private static synchronized ExecutorService getFetchExecutor() {
+        if (sFetchExecutor == null) {
+            // Fetches mostly wait on the network.  The threads don't outlive the sync by long.
+            sFetchExecutor = new ThreadPoolExecutor(MAX_PARALLELISM, MAX_PARALLELISM,
+                    FETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            sFetchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sFetchExecutor;
+    }
+
+    /**
+     * Lists the locations to refresh: the preferred location first, followed by every other
+     * location in the location table.
+     *
+     * @param preferredLocation The location setting the user picked.
+     */
+    public List<ForecastFetcher.Location> loadLocations(String preferredLocation) {
+        ContentResolver resolver = mContext.getContentResolver();
+
+        // Which locations still have a forecast from today on?
+        Set<Long> locationsWithForecast = new HashSet<Long>();
+        Cursor weatherCursor = resolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY},
+                WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(
+                        WeatherContract.normalizeDate(System.currentTimeMillis()))},
+                null);
+        if (weatherCursor != null) {
+            while (weatherCursor.moveToNext()) {
+                locationsWithForecast.add(weatherCursor.getLong(0));
+            }
+            weatherCursor.close();
+        }
+
+        List<ForecastFetcher.Location> locations = new ArrayList<ForecastFetcher.Location>();
+        ForecastFetcher.Location preferred = null;
+        Cursor locationCursor = resolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{
+                        WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_PAYLOAD_HASH},
+                null,
+                null,
+                WeatherContract.LocationEntry._ID + " ASC");
+        if (locationCursor != null) {
+            while (locationCursor.moveToNext()) {
+                long id = locationCursor.getLong(0);
+                ForecastFetcher.Location location = new ForecastFetcher.Location(
+                        locationCursor.getString(1), id, locationsWithForecast.contains(id),
+                        locationCursor.getString(2));
+                if (location.setting.equals(preferredLocation)) {
+                    preferred = location;
+                } else {
+                    locations.add(location);
+                }
+            }
+            locationCursor.close();
+        }
+        if (preferred == null) {
+            // A new location doesn't get a row until we know its city name from the server.
+            preferred = new ForecastFetcher.Location(preferredLocation, -1, false, null);
+        }
+        locations.add(0, preferred);
+        return locations;
+    }
+
+    /**
+     * Stores the cached response of every location that has no forecast from today on, without
+     * the network: the preferred location, the other stored locations, and any location the
+     * payload cache knows that the location table has lost, e.g. to a schema upgrade.
+     *
+     * @return the number of weather rows written.
+     * @throws OperationCanceledException if the engine was canceled before the store.
+     */
+    public int restore(String preferredLocation) {
+        List<ForecastFetcher.Location> locations = loadLocations(preferredLocation);
+        Set<String> known = new HashSet<String>();
+        for (ForecastFetcher.Location location : locations) {
+            known.add(location.setting);
+        }
+        for (String setting : mFetcher.getCachedSettings()) {
+            if (known.add(setting)) {
+                locations.add(new ForecastFetcher.Location(setting, -1, false, null));
+            }
+        }
+
+        List<ForecastFetcher.Result> results = new ArrayList<ForecastFetcher.Result>();
+        for (ForecastFetcher.Location location : locations) {
+            if (location.hasForecast) {
+                continue;
+            }
+            ForecastFetcher.Result result = mFetcher.fetchCached(location);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        if (results.isEmpty()) {
+            return 0;
+        }
+        Log.d(LOG_TAG, "Restoring " + results.size() + " locations from the payload cache");
+        return persist(results);
+    }
+
+    /**
+     * @return the metrics of this engine's fetches and writes.
+     */
+    public SyncMetrics getMetrics() {
+        return mFetcher.getMetrics();
+    }
+
+    /**
+     * @return the signal that cancels this engine's work.
+     */
+    public CancellationSignal getCancellationSignal() {
+        return mFetcher.getCancellationSignal();
+    }
+
+    /**
+     * Fetches every location, running up to the configured number of fetches at the same time.
+     *
+     * @return the results, in the same order as the locations.
+     * @throws OperationCanceledException if the engine was canceled.
+     */
+    public List<ForecastFetcher.Result> fetchAll(List<ForecastFetcher.Location> locations)
+            throws InterruptedException {
+        getCancellationSignal().throwIfCanceled();
+        getMetrics().onLocations(locations.size());
+        List<ForecastFetcher.Result> results =
+                new ArrayList<ForecastFetcher.Result>(locations.size());
+        if (locations.isEmpty()) {
+            return results;
+        }
+
+        final List<ForecastFetcher.Location> pending = locations;
+        final ForecastFetcher.Result[] fetched = new ForecastFetcher.Result[locations.size()];
+        final AtomicInteger next = new AtomicInteger();
+        // Each worker takes the next location until there are none left, so this engine never
+        // has more fetches under way than its parallelism, whatever else the pool is running
+        Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                for (int i = next.getAndIncrement(); i < fetched.length;
+                        i = next.getAndIncrement()) {
+                    try {
+                        fetched[i] = fetchWithHostLimit(pending.get(i));
+                    } catch (OperationCanceledException e) {
+                        throw e;
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Error fetching " + pending.get(i).setting, e);
+                        fetched[i] = new ForecastFetcher.Result(pending.get(i));
+                    }
+                }
+                return null;
+            }
+        };
+
+        ExecutorService executor = getFetchExecutor();
+        int workers = Math.min(mParallelism, locations.size());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(worker));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof OperationCanceledException) {
+                        throw (OperationCanceledException) e.getCause();
+                    }
+                    // Only an Error, or an interrupt from the finally below, gets past a worker
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            // Also stops the fetches still under way, or waiting for a permit, when canceled
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+        Collections.addAll(results, fetched);
+        return results;
+    }
+
+    private ForecastFetcher.Result fetchWithHostLimit(ForecastFetcher.Location location)
+            throws InterruptedException {
+        Semaphore permits = getHostPermits(mFetcher.getHost());
+        permits.acquire();
+        try {
+            return mFetcher.fetch(location);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Semaphore getHostPermits(String host) {
+        if (host == null) host = "";
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(mPerHostLimit);
+            permits = mHostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Fetches the 3-hour forecast of a location into its result, for {@link #persist} to store
+     * along with the daily one.  Nothing is fetched for a location the daily fetch didn't get
+     * an answer for.
+     *
+     * @throws OperationCanceledException if the engine was canceled.
+     */
+    public void fetchHourly(ForecastFetcher.Result result) throws InterruptedException {
+        getCancellationSignal().throwIfCanceled();
+        if (result.status != SunshineSyncAdapter.LOCATION_STATUS_OK || result.throttled) {
+            return;
+        }
+        Semaphore permits = getHostPermits(mFetcher.getHost());
+        permits.acquire();
+        try {
+            result.hourly = mFetcher.fetchHourly(result.location);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Writes every changed forecast in one provider call, which also deletes the days before
+     * today so we don't build up an endless history.  The 3-hour forecasts of the results go
+     * in the same call, and the steps that are over are deleted along with the days.  When
+     * only one location changed, only that location's past days are deleted.
+     *
+     * New locations get their row first.  If the engine is canceled before the forecasts are
+     * stored those rows are deleted again; once the provider call has started it runs to the
+     * end, as its one transaction leaves either everything or nothing behind.  Until it has,
+     * the responses stay in the fetcher's journal for the next sync to store.
+     *
+     * @return the number of weather rows written.
+     * @throws OperationCanceledException if the engine was canceled before the store.
+     */
+    public int persist(List<ForecastFetcher.Result> results) {
+        getCancellationSignal().throwIfCanceled();
+        List<ForecastFetcher.Result> changed = new ArrayList<ForecastFetcher.Result>();
+        List<ForecastFetcher.Result> withHourly = new ArrayList<ForecastFetcher.Result>();
+        for (ForecastFetcher.Result result : results) {
+            if (result.changed) {
+                changed.add(result);
+            }
+            if (result.hourly != null && result.hourly.mRows.size() > 0) {
+                withHourly.add(result);
+            }
+        }
+
+        int rows = 0;
+        if (!changed.isEmpty() || !withHourly.isEmpty()) {
+            int count = changed.size();
+            long[] locationIds = new long[count];
+            ForecastRows[] forecasts = new ForecastRows[count];
+            String[] payloadHashes = new String[count];
+            List<Long> addedLocationIds = new ArrayList<Long>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    ForecastFetcher.Result result = changed.get(i);
+                    ForecastFetcher.Forecast forecast = result.forecast;
+                    long locationId = result.location.id;
+                    if (locationId == -1) {
+                        locationId = addLocation(result.location.setting, forecast.mCityName,
+                                forecast.mCityLatitude, forecast.mCityLongitude,
+                                addedLocationIds);
+                    }
+                    locationIds[i] = locationId;
+                    forecasts[i] = forecast.mRows;
+                    payloadHashes[i] = result.payloadHash;
+                }
+                getCancellationSignal().throwIfCanceled();
+            } catch (OperationCanceledException e) {
+                deleteLocations(addedLocationIds);
+                throw e;
+            }
+
+            List<Long> hourlyLocationIds = new ArrayList<Long>(withHourly.size());
+            List<HourlyRows> hourlyForecasts = new ArrayList<HourlyRows>(withHourly.size());
+            for (ForecastFetcher.Result result : withHourly) {
+                long locationId = result.location.id;
+                if (locationId == -1) {
+                    // Only has a row now if its daily forecast was just stored
+                    int index = changed.indexOf(result);
+                    if (index == -1) {
+                        continue;
+                    }
+                    locationId = locationIds[index];
+                }
+                hourlyLocationIds.add(locationId);
+                hourlyForecasts.add(result.hourly.mRows);
+            }
+            long[] hourlyIds = new long[hourlyLocationIds.size()];
+            for (int i = 0; i < hourlyIds.length; i++) {
+                hourlyIds[i] = hourlyLocationIds.get(i);
+            }
+
+            Time dayTime = new Time();
+            dayTime.setToNow();
+            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+            dayTime = new Time();
+
+            // A write to a single location replaces just its forecast, which only tells the
+            // observers of that location
+            boolean oneLocation = count == 1 && (hourlyIds.length == 0
+                    || (hourlyIds.length == 1 && hourlyIds[0] == locationIds[0]));
+            String method;
+            Bundle extras = new Bundle();
+            if (oneLocation) {
+                method = WeatherContract.METHOD_REPLACE_FORECAST;
+                extras.putLong(WeatherContract.EXTRA_LOCATION_ID, locationIds[0]);
+                extras.putParcelable(WeatherContract.EXTRA_FORECAST, forecasts[0]);
+                extras.putString(WeatherContract.EXTRA_PAYLOAD_HASH, payloadHashes[0]);
+                if (hourlyIds.length > 0) {
+                    extras.putParcelable(WeatherContract.EXTRA_HOURLY_FORECAST,
+                            hourlyForecasts.get(0));
+                }
+            } else {
+                method = WeatherContract.METHOD_STORE_FORECASTS;
+                extras.putLongArray(WeatherContract.EXTRA_LOCATION_IDS, locationIds);
+                extras.putParcelableArray(WeatherContract.EXTRA_FORECASTS, forecasts);
+                extras.putStringArray(WeatherContract.EXTRA_PAYLOAD_HASHES, payloadHashes);
+                extras.putLongArray(WeatherContract.EXTRA_HOURLY_LOCATION_IDS, hourlyIds);
+                extras.putParcelableArray(WeatherContract.EXTRA_HOURLY_FORECASTS,
+                        hourlyForecasts.toArray(new HourlyRows[hourlyForecasts.size()]));
+            }
+            extras.putLong(WeatherContract.EXTRA_PRUNE_THROUGH_DATE,
+                    dayTime.setJulianDay(julianStartDay - 1));
+            // The step under way is still worth showing
+            extras.putLong(WeatherContract.EXTRA_HOURLY_PRUNE_BEFORE, System.currentTimeMillis()
+                    - WeatherContract.HourlyEntry.STEP_MILLIS);
+            mFetcher.onStoring(changed);
+            Bundle stored = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    method, null, extras);
+            rows = stored.getInt(WeatherContract.EXTRA_ROW_COUNT);
+            if (hourlyIds.length > 0) {
+                Log.d(LOG_TAG, "Stored " + stored.getInt(WeatherContract.EXTRA_HOURLY_ROW_COUNT)
+                        + " 3-hour steps for " + hourlyIds.length + " locations");
+            }
+            getMetrics().onPersisted(rows,
+                    stored.getInt(WeatherContract.EXTRA_DELETED_ROW_COUNT),
+                    stored.getLong(WeatherContract.EXTRA_WRITE_MILLIS),
+                    stored.getLong(WeatherContract.EXTRA_DELETE_MILLIS));
+        }
+
+        // Only now that the forecasts are stored can later fetches rely on them.
+        for (ForecastFetcher.Result result : results) {
+            mFetcher.onStored(result);
+        }
+        return rows;
+    }
+
+    /**
+     * Helper method to handle insertion of a new location in the weather database.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName A human-readable city name, e.g "Mountain View"
+     * @param lat the latitude of the city
+     * @param lon the longitude of the city
+     * @return the row ID of the added location.
+     */
+    long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        return addLocation(locationSetting, cityName, lat, lon, null);
+    }
+
+    /**
+     * @param added Gets the row ID if a new row was inserted, or null.
+     */
+    private long addLocation(String locationSetting, String cityName, double lat, double lon,
+                             List<Long> added) {
+        long locationId;
+
+        // First, check if the location with this city name exists in the db
+        Cursor locationCursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+
+        if (locationCursor.moveToFirst()) {
+            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
+            locationId = locationCursor.getLong(locationIdIndex);
+        } else {
+            // Now that the content provider is set up, inserting rows of data is pretty simple.
+            // First create a ContentValues object to hold the data you want to insert.
+            ContentValues locationValues = new ContentValues();
+
+            // Then add the data, along with the corresponding name of the data type,
+            // so the content provider knows what kind of value is being inserted.
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+
+            // Finally, insert location data into the database.
+            Uri insertedUri = mContext.getContentResolver().insert(
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    locationValues
+            );
+
+            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
+            locationId = ContentUris.parseId(insertedUri);
+            if (added != null) {
+                added.add(locationId);
+            }
+        }
+
+        locationCursor.close();
+        // Wait, that worked?  Yes!
+        return locationId;
+    }
+
+    /**
+     * Takes back the location rows a canceled persist added.  None of them has weather rows
+     * yet, since those are only written after the last cancellation check.
+     */
+    private void deleteLocations(List<Long> locationIds) {
+        for (long locationId : locationIds) {
+            mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Remembers the HTTP validators (ETag and Last-Modified) of the last forecast we stored, so the
+ * next fetch of the same forecast can be made conditional.  When the server answers
+ * 304 Not Modified there is nothing to download, parse or write.
+ *
+ * Validators are kept per location query, units and day count, since each combination is a
+ * different response.
+ */
+public class ForecastValidatorCache {
+    static final String PREFS_NAME = "forecast_validators";
+
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String SUFFIX_ETAG = ".etag";
+    private static final String SUFFIX_LAST_MODIFIED = ".last_modified";
+
+    private final SharedPreferences mPrefs;
+
+    public ForecastValidatorCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the key validators for this combination of request parameters are stored under.
+     */
+    public static String key(String locationQuery, String units, int numDays) {
+        return locationQuery + "|" + units + "|" + numDays;
+    }
+
+    /**
+     * Adds If-None-Match / If-Modified-Since headers to a request that hasn't been sent yet.
+     *
+     * @return true if any validator was added, i.e. the server may answer 304.
+     */
+    public boolean applyTo(HttpURLConnection urlConnection, String key) {
+        String etag = mPrefs.getString(key + SUFFIX_ETAG, null);
+        String lastModified = mPrefs.getString(key + SUFFIX_LAST_MODIFIED, null);
+        if (etag != null) {
+            urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Stores the validators of a response.  Only call this once the response has been stored
+     * successfully, otherwise a later 304 would leave us without data.
+     */
+    public void store(String key, String etag, String lastModified) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (etag != null) {
+            editor.putString(key + SUFFIX_ETAG, etag);
+        } else {
+            editor.remove(key + SUFFIX_ETAG);
+        }
+        if (lastModified != null) {
+            editor.putString(key + SUFFIX_LAST_MODIFIED, lastModified);
+        } else {
+            editor.remove(key + SUFFIX_LAST_MODIFIED);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Forgets the validators for a key, so the next fetch downloads the whole response.
+     */
+    public void clear(String key) {
+        mPrefs.edit()
+                .remove(key + SUFFIX_ETAG)
+                .remove(key + SUFFIX_LAST_MODIFIED)
+                .commit();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Computes a 64 bit FNV-1a hash of every byte read through it, so a response body can be
+ * fingerprinted while it streams into the parser instead of being buffered first.
+ */
+public class HashingInputStream extends FilterInputStream {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long mHash = FNV_OFFSET_BASIS;
+    private long mByteCount;
+
+    public HashingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            mHash = (mHash ^ b) * FNV_PRIME;
+            mByteCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = in.read(buffer, offset, count);
+        for (int i = offset; i < offset + read; i++) {
+            mHash = (mHash ^ (buffer[i] & 0xff)) * FNV_PRIME;
+        }
+        if (read > 0) {
+            mByteCount += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        // Skipped bytes would not be hashed, so read them instead.
+        long skipped = 0;
+        while (skipped < byteCount && read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return the hash of the bytes read so far, as a hex string.
+     */
+    public String getHash() {
+        return Long.toHexString(mHash);
+    }
+
+    /**
+     * @return the number of bytes read so far.
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * @return the same hash of a string's UTF-8 bytes, e.g. to name a file after a location
+     * query, which can hold anything, slashes included.
+     */
+    public static String hash(String string) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : string.getBytes(Charset.forName("UTF-8"))) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return Long.toHexString(hash);
+    }
+}
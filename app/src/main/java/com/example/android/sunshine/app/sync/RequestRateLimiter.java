@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the requests made with an API key under the quota the server allows it.
+ *
+ * A token bucket: every request takes a token, tokens come back at the allowed rate, and the
+ * bucket holds at most a burst's worth of them.  A request that finds the bucket empty waits
+ * for its token, unless that would take longer than the caller is willing to wait, in which
+ * case it isn't sent at all.  When the server answers 429 anyway, nothing goes out again until
+ * the time it asked us to wait for has passed.
+ *
+ * There is one limiter per API key in the process, and its state is kept in shared
+ * preferences, so a restarted process doesn't start out with a full bucket.
+ */
+public class RequestRateLimiter {
+    static final String PREFS_NAME = "request_rate_limiter";
+
+    // OWM's free plan allows 60 calls a minute per key.
+    public static final int DEFAULT_REQUESTS_PER_MINUTE = 60;
+    // Requests that may go out back to back after a quiet spell.
+    public static final int DEFAULT_BURST = 10;
+    // How long a request waits for a token by default before giving up.
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 10 * 1000;
+
+    // How often a waiting request checks whether it was canceled.
+    private static final long WAIT_SLICE_MILLIS = 100;
+
+    private static final String KEY_TOKENS = ".tokens";
+    private static final String KEY_UPDATED_AT = ".updated_at";
+    private static final String KEY_BLOCKED_UNTIL = ".blocked_until";
+
+    private static final Map<String, RequestRateLimiter> sInstances =
+            new HashMap<String, RequestRateLimiter>();
+
+    private final SharedPreferences mPrefs;
+    private final String mKey;
+    private final double mTokensPerMilli;
+    private final int mBurst;
+
+    // Mirrors the preferences, which are only read once.
+    private double mTokens;
+    private long mUpdatedAt;
+    private long mBlockedUntil;
+
+    /**
+     * @return the limiter of an API key, shared by every request of the process.
+     */
+    public static RequestRateLimiter getInstance(Context context, String apiKey) {
+        synchronized (sInstances) {
+            RequestRateLimiter limiter = sInstances.get(apiKey);
+            if (limiter == null) {
+                limiter = new RequestRateLimiter(context.getApplicationContext(), apiKey,
+                        DEFAULT_REQUESTS_PER_MINUTE, DEFAULT_BURST);
+                sInstances.put(apiKey, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    RequestRateLimiter(Context context, String apiKey, int requestsPerMinute, int burst) {
+        if (requestsPerMinute < 1 || burst < 1) {
+            throw new IllegalArgumentException("requestsPerMinute and burst must be positive");
+        }
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        // Keeps the key itself out of the preferences file
+        mKey = Integer.toHexString(apiKey.hashCode());
+        mTokensPerMilli = requestsPerMinute / 60000.0;
+        mBurst = burst;
+        mTokens = mPrefs.getFloat(mKey + KEY_TOKENS, burst);
+        mUpdatedAt = mPrefs.getLong(mKey + KEY_UPDATED_AT, 0);
+        mBlockedUntil = mPrefs.getLong(mKey + KEY_BLOCKED_UNTIL, 0);
+    }
+
+    /**
+     * Takes a token, waiting for one if the bucket is empty.
+     *
+     * @param maxWaitMillis How long the caller is willing to wait.
+     * @param cancellation Ends the wait early, or null.
+     * @return how long the request waited, in milliseconds, or -1 if it would have had to wait
+     * longer than that and should not be sent.  No token is taken then.
+     * @throws android.os.OperationCanceledException if canceled while waiting.
+     */
+    public long acquire(long maxWaitMillis, CancellationSignal cancellation)
+            throws InterruptedException {
+        long wait = reserve(System.currentTimeMillis(), maxWaitMillis);
+        if (wait <= 0) {
+            return wait;
+        }
+        boolean waited = false;
+        try {
+            long until = System.currentTimeMillis() + wait;
+            long left;
+            while ((left = until - System.currentTimeMillis()) > 0) {
+                if (cancellation != null) {
+                    cancellation.throwIfCanceled();
+                }
+                Thread.sleep(Math.min(left, WAIT_SLICE_MILLIS));
+            }
+            waited = true;
+            return wait;
+        } finally {
+            if (!waited) {
+                // The request won't go out after all
+                refund();
+            }
+        }
+    }
+
+    /**
+     * Takes a token for a request to be sent once the returned wait has passed.  The bucket
+     * goes into debt for requests that have to wait, which queues them one rate interval apart.
+     *
+     * @return the wait in milliseconds, or -1 if it would exceed maxWaitMillis.
+     */
+    synchronized long reserve(long now, long maxWaitMillis) {
+        refill(now);
+        long wait = Math.max(mBlockedUntil - now, 0);
+        if (mTokens < 1) {
+            wait = Math.max(wait, (long) Math.ceil((1 - mTokens) / mTokensPerMilli));
+        }
+        if (wait > maxWaitMillis) {
+            return -1;
+        }
+        mTokens -= 1;
+        save();
+        return wait;
+    }
+
+    /**
+     * The server said the key is over its quota.  Empties the bucket and holds every request
+     * back until the time the server asked for.
+     *
+     * @param retryAfterMillis How long the server asked us to wait, or 0 if it didn't say, in
+     * which case the wait is however long the bucket takes to give out a token.
+     */
+    public synchronized void onRateLimited(long now, long retryAfterMillis) {
+        refill(now);
+        mTokens = Math.min(mTokens, 0);
+        mBlockedUntil = Math.max(mBlockedUntil, now + retryAfterMillis);
+        save();
+    }
+
+    /**
+     * @return how many requests could go out right now without waiting.  Negative while
+     * requests are queued for tokens.
+     */
+    public synchronized double getAvailableTokens(long now) {
+        refill(now);
+        return now < mBlockedUntil ? Math.min(mTokens, 0) : mTokens;
+    }
+
+    private synchronized void refund() {
+        mTokens = Math.min(mTokens + 1, mBurst);
+        save();
+    }
+
+    private void refill(long now) {
+        // The wall clock may have been set back since the last update
+        long elapsed = Math.max(now - mUpdatedAt, 0);
+        mTokens = Math.min(mTokens + elapsed * mTokensPerMilli, mBurst);
+        mUpdatedAt = now;
+    }
+
+    private void save() {
+        mPrefs.edit()
+                .putFloat(mKey + KEY_TOKENS, (float) mTokens)
+                .putLong(mKey + KEY_UPDATED_AT, mUpdatedAt)
+                .putLong(mKey + KEY_BLOCKED_UNTIL, mBlockedUntil)
+                .commit();
+    }
+}
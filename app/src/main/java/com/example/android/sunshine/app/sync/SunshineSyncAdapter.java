@@ -8,8 +8,6 @@ import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -17,40 +15,34 @@ import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -60,8 +52,23 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
+    // How many locations are fetched at the same time, and how many of those may talk to
+    // the same host at the same time.
+    public static final int SYNC_PARALLELISM = ForecastSyncEngine.DEFAULT_PARALLELISM;
+    public static final int SYNC_PER_HOST_LIMIT = ForecastSyncEngine.DEFAULT_PER_HOST_LIMIT;
+    // The first syncImmediately request for a location asks for a sync at once.  Requests
+    // within this window of that, or while the sync they asked for hasn't finished, become
+    // one more sync at most.
+    public static final long SYNC_DEBOUNCE_MILLIS = 1000;
+    // How long a requested sync may take to run before new requests stop attaching to it.
+    public static final long SYNC_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    // Sync extra holding the SyncWorkQueue priority of the preferred location.  Periodic syncs
+    // don't carry it.
+    public static final String SYNC_EXTRAS_PRIORITY = "sunshine_priority";
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // How long the notification waits for its art before falling back to the bundled icon.
+    private static final long NOTIFICATION_ART_TIMEOUT_MILLIS = 10 * 1000;
 
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
@@ -78,7 +85,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int INDEX_SHORT_DESC = 3;
 
     @Retention(RetentionPolicy.SOURCE)
-    @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
+    @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID, LOCATION_STATUS_SERVER_BACKOFF})
     public @interface LocationStatus {}
 
     public static final int LOCATION_STATUS_OK = 0;
@@ -86,6 +93,17 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_SERVER_INVALID = 2;
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
+    // The server kept failing, so syncs are paused for a while.  See SyncRetryPolicy.
+    public static final int LOCATION_STATUS_SERVER_BACKOFF = 5;
+
+    private static final SyncCoalescer<String, Void> sSyncRequests =
+            new SyncCoalescer<String, Void>(SYNC_DEBOUNCE_MILLIS, SYNC_REQUEST_TIMEOUT_MILLIS);
+
+    // What the syncs of this process still have to do, most urgent first.
+    private static final SyncWorkQueue sWorkQueue = new SyncWorkQueue();
+
+    // Canceled by onSyncCanceled.  Syncs of this adapter run one at a time.
+    private volatile CancellationSignal mCancellation;
 
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
@@ -93,269 +111,236 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        mCancellation = new CancellationSignal();
+        try {
+            performSync(extras, syncResult);
+        } finally {
+            mCancellation = null;
+        }
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    /**
+     * Called by the framework, e.g. when the network goes away, on a thread of its own.  Stops
+     * the sync at its next checkpoint and drops its connections, so the sync thread and the radio
+     * are free right away, then lets the default implementation interrupt the sync thread.
+     */
+    @Override
+    public void onSyncCanceled() {
+        CancellationSignal cancellation = mCancellation;
+        if (cancellation != null) {
+            cancellation.cancel();
+        }
+        super.onSyncCanceled();
+    }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+    private void performSync(Bundle extras, final SyncResult syncResult) {
+        Log.d(LOG_TAG, "Starting sync");
 
+        // Whatever the database lost, e.g. to a schema upgrade, comes back from the payload
+        // cache first, so there's a forecast to show before, or without, the network.
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+            syncResult.stats.numInserts += new ForecastSyncEngine(getContext(),
+                    new ForecastFetcher(getContext()))
+                    .restore(Utility.getPreferredLocation(getContext()));
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error restoring cached forecasts", e);
+            syncResult.databaseError = true;
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+        // Leave the server alone while it's known to be down
+        final SyncRetryPolicy retryPolicy = new SyncRetryPolicy(getContext());
+        final long now = System.currentTimeMillis();
+        if (!retryPolicy.allowRequest(now)) {
+            Log.d(LOG_TAG, "Server is down, skipping sync until " + retryPolicy.getRetryAt());
+            syncResult.delayUntil = retryPolicy.getRetryAt() / 1000;
+            sWorkQueue.clear();
+            return;
+        }
+
+        // The preferred location first, at the priority of whoever asked for the sync, then
+        // every other location we know about, if the network and battery allow.
+        sWorkQueue.offer(SyncWorkQueue.SCOPE_PREFERRED,
+                extras.getInt(SYNC_EXTRAS_PRIORITY, SyncWorkQueue.PRIORITY_PERIODIC));
+        sWorkQueue.offer(SyncWorkQueue.SCOPE_SECONDARY, SyncWorkQueue.PRIORITY_BACKGROUND);
+        final AdaptiveSyncScheduler scheduler = new AdaptiveSyncScheduler(getContext());
+        AdaptiveSyncScheduler.Conditions conditions = scheduler.captureConditions();
+        boolean backgroundAllowed = !conditions.metered || conditions.charging;
+        try {
+            sWorkQueue.drain(new SyncWorkQueue.Worker() {
+                @Override
+                public boolean run(SyncWorkQueue.Work work, CancellationSignal preemption)
+                        throws InterruptedException {
+                    return performWork(work, preemption, retryPolicy, now, scheduler,
+                            syncResult);
                 }
+            }, backgroundAllowed);
+            if (sWorkQueue.getPendingCount() > 0) {
+                Log.d(LOG_TAG, "Other locations deferred until unmetered or charging");
             }
+        } catch (OperationCanceledException e) {
+            // Whatever was stored before the cancel stays, and so does the location status
+            Log.d(LOG_TAG, "Sync canceled");
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Sync interrupted", e);
+            Thread.currentThread().interrupt();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error storing forecast", e);
+            syncResult.databaseError = true;
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Refreshes the locations of one piece of work through a pipeline of its own.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return false if the server is down and the sync should stop.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
-
+    private boolean performWork(SyncWorkQueue.Work work, CancellationSignal preemption,
+                                SyncRetryPolicy retryPolicy, long now,
+                                AdaptiveSyncScheduler scheduler, SyncResult syncResult)
+            throws InterruptedException {
+        boolean preferred = work.scope == SyncWorkQueue.SCOPE_PREFERRED;
+        String locationQuery = Utility.getPreferredLocation(getContext());
+        ForecastSyncEngine engine = new ForecastSyncEngine(getContext(),
+                new ForecastFetcher(getContext()), SYNC_PARALLELISM, SYNC_PER_HOST_LIMIT);
+        final SyncPipeline pipeline = new SyncPipeline(engine, getFanOutConsumers());
+        CancellationSignal.OnCancelListener cancelPipeline =
+                new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        pipeline.cancel();
+                    }
+                };
+        CancellationSignal cancellation = mCancellation;
+        preemption.setOnCancelListener(cancelPipeline);
+        cancellation.setOnCancelListener(cancelPipeline);
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            // The preferred location comes first.  A probe of a server that was down only asks
+            // for the preferred one.
+            List<ForecastFetcher.Location> locations = engine.loadLocations(locationQuery);
+            if (preferred) {
+                locations = locations.subList(0, 1);
+            } else if (retryPolicy.getState() == SyncRetryPolicy.STATE_HALF_OPEN
+                    || locations.size() == 1) {
+                return true;
+            } else {
+                locations = locations.subList(1, locations.size());
+            }
+            List<ForecastFetcher.Result> results = pipeline.fetch(locations);
+            if (preferred) {
+                // Only the detail view shows the 3-hour forecast, and only for this location
+                pipeline.fetchHourly(results.get(0));
+            }
+            // What the preferred location's forecast was, to see how much it moves
+            List<AdaptiveSyncScheduler.Day> before =
+                    preferred ? scheduler.snapshot(locationQuery) : null;
+            int inserted = pipeline.persist(results);
+            syncResult.stats.numInserts += inserted;
+
+            @LocationStatus int status = results.get(0).status;
+            boolean serverDown = isServerDown(results);
+            if (isThrottled(results)) {
+                // Not a word from the server either way; the next sync tries again
+                Log.d(LOG_TAG, "Every request was held back by the rate limit");
+            } else if (serverDown) {
+                long retryAt = retryPolicy.recordFailure(now);
+                syncResult.stats.numIoExceptions++;
+                syncResult.delayUntil = retryAt / 1000;
+                if (retryPolicy.getState() == SyncRetryPolicy.STATE_OPEN) {
+                    status = LOCATION_STATUS_SERVER_BACKOFF;
+                }
+                Log.d(LOG_TAG, "Server is down, " + retryPolicy.getConsecutiveFailures()
+                        + " failed syncs in a row, next attempt at " + retryAt);
+            } else {
+                retryPolicy.recordSuccess();
+                // The retry policy owns the schedule while the server is down
+                if (preferred) {
+                    scheduler.onSync(before,
+                            inserted > 0 ? scheduler.snapshot(locationQuery) : before);
                 }
             }
+            if (preferred) {
+                if (!results.get(0).throttled) {
+                    setLocationStatus(getContext(), status);
+                }
+                // Widgets, Muzei and the notification only show the preferred location.  They
+                // catch up on their own threads; the sync is done as soon as the forecasts are
+                // stored.
+                if (inserted > 0) {
+                    pipeline.fanOut();
+                }
+            }
+            pipeline.recordMetrics(getContext(), status);
+            Log.d(LOG_TAG, "Sync of " + (preferred ? "preferred" : "other") + " locations at "
+                    + "priority " + work.getPriority() + " complete. " + results.size()
+                    + " Locations, " + inserted + " Inserted, stages "
+                    + pipeline.getStageMillis());
+            return !serverDown;
+        } catch (OperationCanceledException e) {
+            Log.d(LOG_TAG, (preemption.isCanceled() ? "Preempted" : "Canceled") + ", stages "
+                    + pipeline.getStageMillis());
+            throw e;
+        } finally {
+            preemption.setOnCancelListener(null);
+            cancellation.setOnCancelListener(null);
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    /**
+     * A sync failed on the server's side when not a single location got an answer from it.
+     */
+    private static boolean isServerDown(List<ForecastFetcher.Result> results) {
+        for (ForecastFetcher.Result result : results) {
+            if (result.status != LOCATION_STATUS_SERVER_DOWN) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    private static boolean isThrottled(List<ForecastFetcher.Result> results) {
+        for (ForecastFetcher.Result result : results) {
+            if (!result.throttled) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+    private List<SyncPipeline.Consumer> getFanOutConsumers() {
+        return Arrays.<SyncPipeline.Consumer>asList(
+                new SyncPipeline.Consumer() {
+                    @Override
+                    public String getName() {
+                        return "widgets";
+                    }
 
-                cVVector.add(weatherValues);
-            }
+                    @Override
+                    public void consume() {
+                        updateWidgets();
+                    }
+                },
+                new SyncPipeline.Consumer() {
+                    @Override
+                    public String getName() {
+                        return "muzei";
+                    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+                    @Override
+                    public void consume() {
+                        updateMuzei();
+                    }
+                },
+                new SyncPipeline.Consumer() {
+                    @Override
+                    public String getName() {
+                        return "notification";
+                    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        }
+                    @Override
+                    public void consume() {
+                        notifyWeather();
+                    }
+                });
     }
 
     private void updateWidgets() {
@@ -428,8 +413,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                                 .asBitmap()
                                 .error(artResourceId)
                                 .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
+                                .into(largeIconWidth, largeIconHeight)
+                                .get(NOTIFICATION_ART_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException | ExecutionException | TimeoutException e) {
                         Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
                         largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                     }
@@ -484,57 +470,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
-    }
-
-    /**
-     * Helper method to schedule the sync adapter periodic execution
+     * Helper method to schedule the sync adapter periodic execution.  Calling it again replaces
+     * the schedule, which is how AdaptiveSyncScheduler moves it.
      */
     public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
         Account account = getSyncAccount(context);
@@ -553,13 +490,46 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately, for the user.  Calls for the same
+     * location that come in while a sync is already on its way are folded into that sync.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        syncImmediately(context, SyncWorkQueue.PRIORITY_USER);
+    }
+
+    /**
+     * Has the preferred location refreshed at the given SyncWorkQueue priority.  If a sync is
+     * already running, that sync picks the request up, ahead of any less urgent work it has
+     * left and preempting the refresh of the other locations; otherwise an expedited sync is
+     * requested from the framework.
+     */
+    public static void syncImmediately(Context context, final int priority) {
+        final Context appContext = context.getApplicationContext();
+        sSyncRequests.submit(Utility.getPreferredLocation(appContext),
+                new SyncCoalescer.AsyncWork<Void>() {
+                    @Override
+                    public void start(final SyncCoalescer.Completion<Void> completion) {
+                        SyncWorkQueue.Work work =
+                                sWorkQueue.offer(SyncWorkQueue.SCOPE_PREFERRED, priority);
+                        if (!sWorkQueue.isDraining()) {
+                            requestSync(appContext, priority);
+                        }
+                        work.whenDone(new Runnable() {
+                            @Override
+                            public void run() {
+                                completion.complete(null);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private static void requestSync(Context context, int priority) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putInt(SYNC_EXTRAS_PRIORITY, priority);
         ContentResolver.requestSync(getSyncAccount(context),
                 context.getString(R.string.content_authority), bundle);
     }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Collapses requests for the same key into a single piece of work.
+ *
+ * The first request of a burst starts its work at once.  A request that comes in within the
+ * debounce window of the last work for its key starting waits for the window to end, and the
+ * requests after it attach to it.  So does every request that arrives while work for the key
+ * is running.  Requests attached to the same work get the same Future.  Once the work is done
+ * the next request for the key starts over.
+ *
+ * Work says when it is done through its {@link Completion}, so work that waits on something
+ * else, such as a sync, doesn't hold a thread while it does.  Work that hasn't completed within
+ * the timeout is given up on: its Future fails with a TimeoutException.
+ *
+ * @param <K> what makes two requests the same, e.g. the location setting.
+ * @param <V> what the work produces.
+ */
+public class SyncCoalescer<K, V> {
+
+    /**
+     * Work that completes on its own time.
+     */
+    public interface AsyncWork<V> {
+        /**
+         * Starts the work, on the submitting thread, or on the coalescer's own for a request
+         * that waited out the debounce window.  Shouldn't block.
+         */
+        void start(Completion<V> completion) throws Exception;
+    }
+
+    /**
+     * Completes the Future of a piece of work.  Only the first call counts.
+     */
+    public interface Completion<V> {
+        void complete(V value);
+
+        void fail(Throwable error);
+    }
+
+    // A Request is only ever completed through its Completion, never run
+    private static final Runnable NEVER_RUN = new Runnable() {
+        @Override
+        public void run() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final long mDebounceMillis;
+    private final long mTimeoutMillis;
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService mRunner = Executors.newCachedThreadPool();
+    // Work that is waiting out its debounce window or running, by key.
+    private final Map<K, Request> mInFlight = new HashMap<K, Request>();
+    // When the last work for a key started, while its debounce window lasts.
+    private final Map<K, Long> mStartedAt = new HashMap<K, Long>();
+
+    private class Request extends FutureTask<V> implements Completion<V> {
+        final K mKey;
+        final AsyncWork<V> mWork;
+        Future<?> mTimeout;
+
+        Request(K key, AsyncWork<V> work) {
+            super(NEVER_RUN, null);
+            mKey = key;
+            mWork = work;
+        }
+
+        void start() {
+            synchronized (mInFlight) {
+                mStartedAt.put(mKey, SystemClock.elapsedRealtime());
+                if (mTimeoutMillis > 0 && !isDone()) {
+                    mTimeout = mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            fail(new TimeoutException("No result for " + mKey + " after "
+                                    + mTimeoutMillis + "ms"));
+                        }
+                    }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            try {
+                mWork.start(this);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void complete(V value) {
+            set(value);
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            setException(error);
+        }
+
+        @Override
+        protected void done() {
+            synchronized (mInFlight) {
+                if (mInFlight.get(mKey) == this) {
+                    mInFlight.remove(mKey);
+                }
+                if (mTimeout != null) {
+                    mTimeout.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param debounceMillis How long after work starts a new request for the key waits.
+     */
+    public SyncCoalescer(long debounceMillis) {
+        this(debounceMillis, 0);
+    }
+
+    /**
+     * @param timeoutMillis How long work may take before it is given up on, 0 for no limit.
+     */
+    public SyncCoalescer(long debounceMillis, long timeoutMillis) {
+        mDebounceMillis = debounceMillis;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Requests the work for a key, starting it unless it is already pending or running.
+     *
+     * @param work What to start if this request starts new work.  Ignored when it attaches.
+     * @return the Future shared by every request attached to the same work.
+     */
+    public Future<V> submit(K key, AsyncWork<V> work) {
+        final Request request;
+        long delay = 0;
+        synchronized (mInFlight) {
+            Request pending = mInFlight.get(key);
+            if (pending != null) {
+                return pending;
+            }
+            request = new Request(key, work);
+            mInFlight.put(key, request);
+            Long startedAt = mStartedAt.get(key);
+            if (startedAt != null) {
+                delay = startedAt + mDebounceMillis - SystemClock.elapsedRealtime();
+                if (delay <= 0) {
+                    mStartedAt.remove(key);
+                }
+            }
+        }
+
+        if (delay > 0) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    request.start();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } else {
+            request.start();
+        }
+        return request;
+    }
+
+    /**
+     * Requests work that runs on a thread of the coalescer's until it returns.
+     */
+    public Future<V> submit(K key, final Callable<V> work) {
+        return submit(key, new AsyncWork<V>() {
+            @Override
+            public void start(final Completion<V> completion) {
+                mRunner.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            completion.complete(work.call());
+                        } catch (Exception e) {
+                            completion.fail(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return whether work for the key is pending or running.
+     */
+    public boolean isInFlight(K key) {
+        synchronized (mInFlight) {
+            return mInFlight.containsKey(key);
+        }
+    }
+
+    /**
+     * Stops the threads.  Work that hasn't started yet is dropped.
+     */
+    public void shutdown() {
+        mScheduler.shutdownNow();
+        mRunner.shutdownNow();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A write-ahead journal of the forecasts a sync has fetched but not yet stored, so a sync
+ * process killed in between doesn't throw the download away.
+ *
+ * While a response streams into the parser it is also copied to a file.  Once it has parsed,
+ * the file is synced to disk and an entry with its validators and hash is recorded at
+ * {@link #STAGE_FETCHED}.  Before the forecasts are stored the entry moves to
+ * {@link #STAGE_STORING}, and once they are it is removed with its file.  The next sync finds
+ * whatever entries are left, and if they are recent enough fetches from the file instead of
+ * the network.  Whether a STORING entry made it into the database is told by its hash: the
+ * store writes it to the location row in the same transaction as the forecast.
+ *
+ * Entries are kept in shared preferences, keyed like the {@link ForecastValidatorCache}.
+ */
+public class SyncJournal {
+    private static final String LOG_TAG = SyncJournal.class.getSimpleName();
+
+    static final String PREFS_NAME = "sync_journal";
+    static final String DIR_NAME = "sync_journal";
+
+    // How old a fetched forecast may be and still be stored instead of fetched again.
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    // The response is on disk and parsed, but not stored.
+    public static final int STAGE_FETCHED = 1;
+    // The store of the response has started.  It may or may not have been committed.
+    public static final int STAGE_STORING = 2;
+
+    private static final String SUFFIX_STAGE = ".stage";
+    private static final String SUFFIX_FETCHED_AT = ".fetched_at";
+    private static final String SUFFIX_ETAG = ".etag";
+    private static final String SUFFIX_LAST_MODIFIED = ".last_modified";
+    private static final String SUFFIX_PAYLOAD_HASH = ".payload_hash";
+
+    /**
+     * What the journal knows about a forecast that was fetched but may not have been stored.
+     */
+    public static class Entry {
+        final String key;
+        final int stage;
+        final long fetchedAt;
+        final String etag;
+        final String lastModified;
+        final String payloadHash;
+        final File payload;
+
+        Entry(String key, int stage, long fetchedAt, String etag, String lastModified,
+              String payloadHash, File payload) {
+            this.key = key;
+            this.stage = stage;
+            this.fetchedAt = fetchedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.payloadHash = payloadHash;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Copies a response body to the journal's directory as it is read.  Nothing is journaled
+     * until {@link #commit} is called; {@link #abort} throws the copy away.
+     */
+    public class PayloadWriter extends FilterInputStream {
+        private final String mKey;
+        private final File mTempFile;
+        private FileOutputStream mOut;
+
+        PayloadWriter(String key, InputStream in) {
+            super(in);
+            mKey = key;
+            mTempFile = new File(mDir, HashingInputStream.hash(key) + ".tmp");
+            try {
+                mDir.mkdirs();
+                mOut = new FileOutputStream(mTempFile);
+            } catch (FileNotFoundException e) {
+                // Fetches work the same without the journal
+                Log.w(LOG_TAG, "Not journaling " + key, e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read > 0) {
+                write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            // Skipped bytes would be missing from the copy, so read them instead.
+            long skipped = 0;
+            while (skipped < byteCount && read() != -1) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Not journaling " + mKey, e);
+                abort();
+            }
+        }
+
+        /**
+         * Records the whole response, which must have been read to the end, at
+         * {@link #STAGE_FETCHED}.
+         */
+        public void commit(long fetchedAt, String etag, String lastModified, String payloadHash) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                // On disk before the entry that points at it
+                mOut.getFD().sync();
+                mOut.close();
+                mOut = null;
+                if (!mTempFile.renameTo(getPayloadFile(mKey))) {
+                    throw new IOException("Couldn't rename " + mTempFile);
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Not journaling " + mKey, e);
+                abort();
+                return;
+            }
+            mPrefs.edit()
+                    .putInt(mKey + SUFFIX_STAGE, STAGE_FETCHED)
+                    .putLong(mKey + SUFFIX_FETCHED_AT, fetchedAt)
+                    .putString(mKey + SUFFIX_ETAG, etag)
+                    .putString(mKey + SUFFIX_LAST_MODIFIED, lastModified)
+                    .putString(mKey + SUFFIX_PAYLOAD_HASH, payloadHash)
+                    .commit();
+        }
+
+        /**
+         * Throws the copy away, e.g. for a response that didn't parse or was already stored.
+         */
+        public void abort() {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    // deleted below either way
+                }
+                mOut = null;
+            }
+            mTempFile.delete();
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final File mDir;
+    private final long mMaxAgeMillis;
+
+    public SyncJournal(Context context) {
+        this(context, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    SyncJournal(Context context, long maxAgeMillis) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Starts journaling a response body.
+     *
+     * @return a stream to read the body through instead.
+     */
+    public PayloadWriter write(String key, InputStream body) {
+        return new PayloadWriter(key, body);
+    }
+
+    /**
+     * @return the entry for a key if it is recent enough to be stored, or null.  An entry that
+     * is too old, or whose payload is missing, is removed.
+     */
+    public Entry get(String key, long now) {
+        int stage = mPrefs.getInt(key + SUFFIX_STAGE, 0);
+        if (stage == 0) {
+            return null;
+        }
+        long fetchedAt = mPrefs.getLong(key + SUFFIX_FETCHED_AT, 0);
+        File payload = getPayloadFile(key);
+        // A wall clock set back makes the entry look newer than it is, so that counts as old
+        if (now - fetchedAt > mMaxAgeMillis || now < fetchedAt || !payload.isFile()) {
+            remove(key);
+            return null;
+        }
+        return new Entry(key, stage, fetchedAt,
+                mPrefs.getString(key + SUFFIX_ETAG, null),
+                mPrefs.getString(key + SUFFIX_LAST_MODIFIED, null),
+                mPrefs.getString(key + SUFFIX_PAYLOAD_HASH, null),
+                payload);
+    }
+
+    /**
+     * Moves an entry to {@link #STAGE_STORING}, before its forecast is stored.
+     */
+    public void markStoring(String key) {
+        if (mPrefs.contains(key + SUFFIX_STAGE)) {
+            mPrefs.edit().putInt(key + SUFFIX_STAGE, STAGE_STORING).commit();
+        }
+    }
+
+    /**
+     * Removes an entry and its payload, once its forecast is stored or it is no use.
+     */
+    public void remove(String key) {
+        if (!mPrefs.contains(key + SUFFIX_STAGE)) {
+            return;
+        }
+        // The entry goes first, so there is never an entry without its payload
+        removeEntry(key);
+        getPayloadFile(key).delete();
+    }
+
+    /**
+     * Removes an entry but leaves its payload, for the caller to move somewhere else or
+     * delete, e.g. into the {@link ForecastPayloadCache} once the forecast is stored.
+     *
+     * @return the entry, or null if there is none or its payload is missing.
+     */
+    public Entry detach(String key) {
+        int stage = mPrefs.getInt(key + SUFFIX_STAGE, 0);
+        if (stage == 0) {
+            return null;
+        }
+        Entry entry = new Entry(key, stage,
+                mPrefs.getLong(key + SUFFIX_FETCHED_AT, 0),
+                mPrefs.getString(key + SUFFIX_ETAG, null),
+                mPrefs.getString(key + SUFFIX_LAST_MODIFIED, null),
+                mPrefs.getString(key + SUFFIX_PAYLOAD_HASH, null),
+                getPayloadFile(key));
+        removeEntry(key);
+        return entry.payload.isFile() ? entry : null;
+    }
+
+    private void removeEntry(String key) {
+        mPrefs.edit()
+                .remove(key + SUFFIX_STAGE)
+                .remove(key + SUFFIX_FETCHED_AT)
+                .remove(key + SUFFIX_ETAG)
+                .remove(key + SUFFIX_LAST_MODIFIED)
+                .remove(key + SUFFIX_PAYLOAD_HASH)
+                .commit();
+    }
+
+    private File getPayloadFile(String key) {
+        return new File(mDir, HashingInputStream.hash(key) + ".json");
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
+import com.example.android.sunshine.app.net.SunshineHttpClient;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects how long the parts of one sync took, and how much it moved, for a row of the
+ * {@link MetricsEntry metrics table}.
+ *
+ * Fetches run in parallel and all add to the same counters, so the network and parse times
+ * are totals over every request rather than wall-clock time.
+ */
+public class SyncMetrics implements SunshineHttpClient.TransferListener {
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    private final long mStarted = System.currentTimeMillis();
+    private final long mStartedElapsed = SystemClock.elapsedRealtime();
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicLong mConnectNanos = new AtomicLong();
+    private final AtomicLong mFirstByteNanos = new AtomicLong();
+    private final AtomicLong mDownloadNanos = new AtomicLong();
+    private final AtomicLong mBodyNanos = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mThrottleMillis = new AtomicLong();
+    private final AtomicInteger mThrottled = new AtomicInteger();
+
+    private volatile int mLocations;
+    private volatile long mWriteMillis;
+    private volatile long mDeleteMillis;
+    private volatile int mRowsWritten;
+    private volatile int mRowsDeleted;
+    private volatile long mTotalMillis = -1;
+    private volatile long mFanOutMillis = -1;
+    private volatile double mRateTokens = Double.NaN;
+
+    /**
+     * A request was made.
+     *
+     * @param connectNanos How long it took to connect.
+     * @param firstByteNanos How long the response headers took to arrive after that.
+     */
+    void onRequest(long connectNanos, long firstByteNanos) {
+        mRequests.incrementAndGet();
+        mConnectNanos.addAndGet(connectNanos);
+        mFirstByteNanos.addAndGet(firstByteNanos);
+    }
+
+    @Override
+    public void onRead(int bytes, long nanos) {
+        mBytes.addAndGet(bytes);
+        mDownloadNanos.addAndGet(nanos);
+    }
+
+    /**
+     * A response body was read to the end.
+     *
+     * @param nanos How long it took to read, decompress and parse it.  Whatever of that was
+     * spent waiting on the network counts as download time, the rest as parse time.
+     */
+    void onBodyRead(long nanos) {
+        mBodyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * A request went through the rate limiter.
+     *
+     * @param waitedMillis How long it waited for a token.
+     * @param tokensLeft The tokens the limiter had left after it.
+     */
+    void onRateLimit(long waitedMillis, double tokensLeft) {
+        mThrottleMillis.addAndGet(waitedMillis);
+        mRateTokens = tokensLeft;
+    }
+
+    /**
+     * Requests weren't sent, or weren't served, because of the rate limit.
+     */
+    void onThrottled(int requests) {
+        mThrottled.addAndGet(requests);
+    }
+
+    void onLocations(int locations) {
+        mLocations = locations;
+    }
+
+    void onPersisted(int rowsWritten, int rowsDeleted, long writeMillis, long deleteMillis) {
+        mRowsWritten = rowsWritten;
+        mRowsDeleted = rowsDeleted;
+        mWriteMillis = writeMillis;
+        mDeleteMillis = deleteMillis;
+    }
+
+    /**
+     * The sync is complete, as far as whoever started it is concerned.
+     */
+    void onComplete() {
+        mTotalMillis = SystemClock.elapsedRealtime() - mStartedElapsed;
+    }
+
+    void onFanOut(long millis) {
+        mFanOutMillis = millis;
+    }
+
+    ContentValues toContentValues(@SunshineSyncAdapter.LocationStatus int outcome) {
+        long downloadMillis = TimeUnit.NANOSECONDS.toMillis(mDownloadNanos.get());
+        long bodyMillis = TimeUnit.NANOSECONDS.toMillis(mBodyNanos.get());
+
+        ContentValues values = new ContentValues();
+        values.put(MetricsEntry.COLUMN_STARTED, mStarted);
+        values.put(MetricsEntry.COLUMN_OUTCOME, outcome);
+        values.put(MetricsEntry.COLUMN_LOCATIONS, mLocations);
+        values.put(MetricsEntry.COLUMN_REQUESTS, mRequests.get());
+        values.put(MetricsEntry.COLUMN_TOTAL_MILLIS, mTotalMillis != -1 ? mTotalMillis
+                : SystemClock.elapsedRealtime() - mStartedElapsed);
+        values.put(MetricsEntry.COLUMN_CONNECT_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(mConnectNanos.get()));
+        values.put(MetricsEntry.COLUMN_FIRST_BYTE_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(mFirstByteNanos.get()));
+        values.put(MetricsEntry.COLUMN_DOWNLOAD_MILLIS, downloadMillis);
+        values.put(MetricsEntry.COLUMN_PARSE_MILLIS, Math.max(bodyMillis - downloadMillis, 0));
+        values.put(MetricsEntry.COLUMN_WRITE_MILLIS, mWriteMillis);
+        values.put(MetricsEntry.COLUMN_DELETE_MILLIS, mDeleteMillis);
+        if (mFanOutMillis != -1) {
+            values.put(MetricsEntry.COLUMN_FAN_OUT_MILLIS, mFanOutMillis);
+        } else {
+            values.putNull(MetricsEntry.COLUMN_FAN_OUT_MILLIS);
+        }
+        values.put(MetricsEntry.COLUMN_BYTES, mBytes.get());
+        values.put(MetricsEntry.COLUMN_ROWS_WRITTEN, mRowsWritten);
+        values.put(MetricsEntry.COLUMN_ROWS_DELETED, mRowsDeleted);
+        values.put(MetricsEntry.COLUMN_THROTTLE_MILLIS, mThrottleMillis.get());
+        values.put(MetricsEntry.COLUMN_THROTTLED, mThrottled.get());
+        if (!Double.isNaN(mRateTokens)) {
+            values.put(MetricsEntry.COLUMN_RATE_TOKENS, mRateTokens);
+        } else {
+            values.putNull(MetricsEntry.COLUMN_RATE_TOKENS);
+        }
+        return values;
+    }
+
+    /**
+     * Adds the sync to the metrics table.  Losing a metrics row isn't worth failing over, so
+     * database errors are only logged.
+     */
+    void record(Context context, @SunshineSyncAdapter.LocationStatus int outcome) {
+        ContentValues values = toContentValues(outcome);
+        try {
+            context.getContentResolver().insert(MetricsEntry.CONTENT_URI, values);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error recording sync metrics", e);
+        }
+        Log.d(LOG_TAG, "Sync metrics " + values);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a sync as a sequence of stages: fetch, the preferred location's hourly fetch, persist
+ * and fan-out.
+ *
+ * Fetch and persist run on the sync thread, one after the other.  Fan-out hands the stored
+ * forecasts to every {@link Consumer} (widgets, Muzei, the notification) at the same time, on
+ * an executor of its own, and returns without waiting for them, so a slow consumer such as an
+ * art download never holds up the sync.  A consumer still running after the fan-out timeout is
+ * interrupted.
+ *
+ * The time each stage and each consumer took is kept by name, see {@link #getStageMillis()}.
+ * Finer timings go into the engine's {@link SyncMetrics}, which {@link #recordMetrics} writes
+ * to the metrics table once the fan-out is over.
+ *
+ * {@link #cancel()} stops the sync wherever it is: every stage checks for it before it starts,
+ * the fetches under way are aborted, and consumers still running are interrupted.  The stage
+ * that notices throws OperationCanceledException.
+ */
+public class SyncPipeline {
+    private static final String LOG_TAG = SyncPipeline.class.getSimpleName();
+
+    // Downloading and parsing a forecast, which stream together.
+    public static final String STAGE_FETCH = "fetch";
+    // The 3-hour forecast of the preferred location.
+    public static final String STAGE_FETCH_HOURLY = "fetch-hourly";
+    public static final String STAGE_PERSIST = "persist";
+    // Prefix of a fan-out consumer's stage name, e.g. "fan-out:widgets".
+    public static final String STAGE_FAN_OUT_PREFIX = "fan-out:";
+
+    // How long a consumer may run before it is interrupted.
+    public static final long DEFAULT_FAN_OUT_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * Something that reacts to new forecasts having been stored.
+     */
+    public interface Consumer {
+        /**
+         * @return a short name for the stage, used in logs and timings.
+         */
+        String getName();
+
+        /**
+         * Called on a fan-out thread.  Should give up when the thread is interrupted.
+         */
+        void consume() throws Exception;
+    }
+
+    private static ExecutorService sFanOutExecutor;
+    private static ScheduledExecutorService sTimeoutScheduler;
+
+    private final ForecastSyncEngine mEngine;
+    private final List<Consumer> mConsumers;
+    private final ExecutorService mFanOutExecutor;
+    private final ScheduledExecutorService mTimeoutScheduler;
+    private final long mFanOutTimeoutMillis;
+    private final Map<String, Long> mStageMillis = new LinkedHashMap<String, Long>();
+    private volatile List<Future<?>> mFanOut = Collections.emptyList();
+    private long mFanOutStart;
+
+    /**
+     * Fans out on executors shared by every sync in the process.
+     */
+    public SyncPipeline(ForecastSyncEngine engine, List<Consumer> consumers) {
+        this(engine, consumers, getFanOutExecutor(), getTimeoutScheduler(),
+                DEFAULT_FAN_OUT_TIMEOUT_MILLIS);
+    }
+
+    SyncPipeline(ForecastSyncEngine engine, List<Consumer> consumers,
+                 ExecutorService fanOutExecutor, ScheduledExecutorService timeoutScheduler,
+                 long fanOutTimeoutMillis) {
+        mEngine = engine;
+        mConsumers = consumers;
+        mFanOutExecutor = fanOutExecutor;
+        mTimeoutScheduler = timeoutScheduler;
+        mFanOutTimeoutMillis = fanOutTimeoutMillis;
+    }
+
+    private static synchronized ExecutorService getFanOutExecutor() {
+        if (sFanOutExecutor == null) {
+            // Consumers mostly wait on the disk, the network or other processes, so they each
+            // get a thread rather than queueing behind one another.
+            sFanOutExecutor = Executors.newCachedThreadPool();
+        }
+        return sFanOutExecutor;
+    }
+
+    private static synchronized ScheduledExecutorService getTimeoutScheduler() {
+        if (sTimeoutScheduler == null) {
+            sTimeoutScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        return sTimeoutScheduler;
+    }
+
+    /**
+     * Cancels the sync.  Can be called from any thread.
+     */
+    public void cancel() {
+        mEngine.getCancellationSignal().cancel();
+        for (Future<?> future : mFanOut) {
+            future.cancel(true);
+        }
+    }
+
+    public boolean isCanceled() {
+        return mEngine.getCancellationSignal().isCanceled();
+    }
+
+    /**
+     * Fetch stage: downloads and parses the forecast of every location.
+     */
+    public List<ForecastFetcher.Result> fetch(List<ForecastFetcher.Location> locations)
+            throws InterruptedException {
+        mEngine.getCancellationSignal().throwIfCanceled();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            return mEngine.fetchAll(locations);
+        } finally {
+            recordStage(STAGE_FETCH, start);
+        }
+    }
+
+    /**
+     * Hourly fetch stage: downloads and parses the 3-hour forecast of a location that has been
+     * fetched, for the persist stage to store with it.
+     */
+    public void fetchHourly(ForecastFetcher.Result result) throws InterruptedException {
+        mEngine.getCancellationSignal().throwIfCanceled();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            mEngine.fetchHourly(result);
+        } finally {
+            recordStage(STAGE_FETCH_HOURLY, start);
+        }
+    }
+
+    /**
+     * Persist stage: stores the forecasts that changed.
+     *
+     * @return the number of weather rows written.
+     */
+    public int persist(List<ForecastFetcher.Result> results) {
+        mEngine.getCancellationSignal().throwIfCanceled();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            return mEngine.persist(results);
+        } finally {
+            recordStage(STAGE_PERSIST, start);
+        }
+    }
+
+    /**
+     * Fan-out stage: starts every consumer and returns straight away.
+     *
+     * @return one Future per consumer, in order, done once the consumer has finished, failed or
+     * timed out.
+     */
+    public List<Future<?>> fanOut() {
+        mEngine.getCancellationSignal().throwIfCanceled();
+        mFanOutStart = SystemClock.elapsedRealtime();
+        List<Future<?>> futures = new ArrayList<Future<?>>(mConsumers.size());
+        for (final Consumer consumer : mConsumers) {
+            final Future<?> future = mFanOutExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        consumer.consume();
+                    } catch (InterruptedException e) {
+                        Log.w(LOG_TAG, "Fan-out to " + consumer.getName() + " interrupted");
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Error in fan-out to " + consumer.getName(), e);
+                    } finally {
+                        recordStage(STAGE_FAN_OUT_PREFIX + consumer.getName(), start);
+                    }
+                }
+            });
+            mTimeoutScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.cancel(true)) {
+                        Log.w(LOG_TAG, "Fan-out to " + consumer.getName() + " timed out after "
+                                + mFanOutTimeoutMillis + " ms");
+                    }
+                }
+            }, mFanOutTimeoutMillis, TimeUnit.MILLISECONDS);
+            futures.add(future);
+        }
+        mFanOut = futures;
+        if (isCanceled()) {
+            // cancel came in while the consumers were being started
+            cancel();
+        }
+        return futures;
+    }
+
+    /**
+     * Marks the sync complete and records its metrics, with the given outcome.  If a fan-out
+     * was started the row is written once every consumer is done, on a fan-out thread, so this
+     * doesn't wait for it either.
+     */
+    public void recordMetrics(final Context context,
+                              @SunshineSyncAdapter.LocationStatus final int outcome) {
+        final SyncMetrics metrics = mEngine.getMetrics();
+        metrics.onComplete();
+        final List<Future<?>> fanOut = mFanOut;
+        if (fanOut.isEmpty()) {
+            metrics.record(context, outcome);
+            return;
+        }
+        final long fanOutStart = mFanOutStart;
+        mFanOutExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Future<?> future : fanOut) {
+                    try {
+                        future.get();
+                    } catch (CancellationException | ExecutionException e) {
+                        // Timed out or failed, which fanOut already logged
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                metrics.onFanOut(SystemClock.elapsedRealtime() - fanOutStart);
+                metrics.record(context, outcome);
+            }
+        });
+    }
+
+    /**
+     * @return how long each stage took, in milliseconds, by stage name in the order the stages
+     * finished.  Fan-out consumers show up as they finish.
+     */
+    public Map<String, Long> getStageMillis() {
+        synchronized (mStageMillis) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(mStageMillis));
+        }
+    }
+
+    private void recordStage(String stage, long start) {
+        long millis = SystemClock.elapsedRealtime() - start;
+        synchronized (mStageMillis) {
+            mStageMillis.put(stage, millis);
+        }
+        Log.d(LOG_TAG, "Stage " + stage + " took " + millis + " ms");
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Random;
+
+/**
+ * Decides when a sync may talk to the weather server again after it failed.
+ *
+ * Every sync that fails because the server is down pushes the next attempt back exponentially,
+ * with random jitter so that devices don't all come back at the same moment, and no sync touches
+ * the network before then.  After a number of failures in a row the circuit opens, and the
+ * first sync once the delay has passed is a half-open probe: if it succeeds the circuit closes,
+ * if it fails the circuit opens again with a longer delay.
+ *
+ * The state is kept in shared preferences, so it survives the sync process being killed.
+ */
+public class SyncRetryPolicy {
+    static final String PREFS_NAME = "sync_retry_policy";
+
+    // Failed syncs in a row after which the circuit opens.
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    // Delay after the first failure; it doubles with every failure after that.
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 30 * 1000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 6 * 60 * 60 * 1000;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface State {}
+
+    // Syncs run normally.
+    public static final int STATE_CLOSED = 0;
+    // Syncs are skipped until the retry time.
+    public static final int STATE_OPEN = 1;
+    // The retry time has passed and one sync is probing the server.
+    public static final int STATE_HALF_OPEN = 2;
+
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FAILURES = "consecutive_failures";
+    private static final String KEY_RETRY_AT = "retry_at";
+
+    private final SharedPreferences mPrefs;
+    private final int mFailureThreshold;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom;
+
+    public SyncRetryPolicy(Context context) {
+        this(context, DEFAULT_FAILURE_THRESHOLD, DEFAULT_BASE_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_MILLIS, new Random());
+    }
+
+    SyncRetryPolicy(Context context, int failureThreshold, long baseDelayMillis,
+                    long maxDelayMillis, Random random) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mFailureThreshold = failureThreshold;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mRandom = random;
+    }
+
+    /**
+     * Asks whether a sync starting now may talk to the server.  Nothing may before the time the
+     * last failure asked to wait for, whether the circuit has opened yet or not.  When the
+     * circuit is open and its delay has passed, this moves it to half-open and lets the caller
+     * through as the probe.
+     */
+    public synchronized boolean allowRequest(long now) {
+        if (now < getRetryAt()) {
+            return false;
+        }
+        if (getState() == STATE_OPEN) {
+            mPrefs.edit().putInt(KEY_STATE, STATE_HALF_OPEN).commit();
+        }
+        return true;
+    }
+
+    /**
+     * Records a sync in which the server answered.  Closes the circuit.
+     */
+    public synchronized void recordSuccess() {
+        mPrefs.edit()
+                .putInt(KEY_STATE, STATE_CLOSED)
+                .putInt(KEY_FAILURES, 0)
+                .putLong(KEY_RETRY_AT, 0)
+                .commit();
+    }
+
+    /**
+     * Records a sync that failed because the server is down or erroring.
+     *
+     * @return the time, in milliseconds since the epoch, before which the next sync shouldn't
+     * be attempted.
+     */
+    public synchronized long recordFailure(long now) {
+        int failures = getConsecutiveFailures() + 1;
+        long retryAt = now + jitter(backoff(failures));
+        int state = getState() == STATE_HALF_OPEN || failures >= mFailureThreshold
+                ? STATE_OPEN : STATE_CLOSED;
+        mPrefs.edit()
+                .putInt(KEY_STATE, state)
+                .putInt(KEY_FAILURES, failures)
+                .putLong(KEY_RETRY_AT, retryAt)
+                .commit();
+        return retryAt;
+    }
+
+    @SuppressWarnings("ResourceType")
+    public synchronized @State int getState() {
+        return mPrefs.getInt(KEY_STATE, STATE_CLOSED);
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return mPrefs.getInt(KEY_FAILURES, 0);
+    }
+
+    /**
+     * @return the time, in milliseconds since the epoch, the last failure asked to wait for, or
+     * 0 if the last sync succeeded.
+     */
+    public synchronized long getRetryAt() {
+        return mPrefs.getLong(KEY_RETRY_AT, 0);
+    }
+
+    // base * 2^(failures - 1), capped at the maximum delay.
+    long backoff(int failures) {
+        long delay = mBaseDelayMillis;
+        for (int i = 1; i < failures && delay < mMaxDelayMillis; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, mMaxDelayMillis);
+    }
+
+    // Somewhere between half the delay and the full delay.
+    long jitter(long delay) {
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the work of the sync by how much somebody is waiting for it.
+ *
+ * A sync is split into two pieces of work: the preferred location, which is what the user sees,
+ * and every other location.  The preferred location runs at the priority of whatever asked for
+ * the sync; the other locations always run at {@link #PRIORITY_BACKGROUND}, and only when the
+ * drain allows background work, i.e. on an unmetered network or while charging.  Otherwise they
+ * stay queued for a later sync.
+ *
+ * Work is drained on the sync thread, most urgent first.  Work offered while a drain is under
+ * way is picked up by that drain, and if it is more urgent than the work running, and for the
+ * other location scope, the running work is preempted through its {@link CancellationSignal}
+ * and queued again behind it.  A request for the same scope as work already queued joins it,
+ * taking the more urgent of the two priorities.
+ */
+public class SyncWorkQueue {
+    private static final String LOG_TAG = SyncWorkQueue.class.getSimpleName();
+
+    // Lower is more urgent.
+    // The user is waiting: a location change, the first launch.
+    public static final int PRIORITY_USER = 0;
+    // The server pushed a change.
+    public static final int PRIORITY_PUSH = 1;
+    // The periodic sync.
+    public static final int PRIORITY_PERIODIC = 2;
+    // Nobody is waiting.  Only runs on an unmetered network or while charging.
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    // What a piece of work refreshes.
+    public static final int SCOPE_PREFERRED = 0;
+    public static final int SCOPE_SECONDARY = 1;
+
+    /**
+     * A refresh of one scope, waiting or running.
+     */
+    public static class Work {
+        public final int scope;
+        final long mSequence;
+        final long mEnqueuedAt;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        // Earlier requests for the same scope that were folded into this one.
+        final List<Work> mJoined = new ArrayList<Work>();
+        // Run once the work is done.  Guarded by this.
+        private final List<Runnable> mListeners = new ArrayList<Runnable>();
+        volatile int mPriority;
+        volatile long mFinishedAt = -1;
+
+        Work(int scope, int priority, long sequence) {
+            this.scope = scope;
+            mPriority = priority;
+            mSequence = sequence;
+            mEnqueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Waits for the work to have run, or been dropped, or the timeout to pass.
+         *
+         * @return whether it ran or was dropped.
+         */
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            return mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Runs the listener once the work has run or been dropped, on the thread that finished
+         * it, or right away if it already has.  The listener shouldn't block.
+         */
+        public void whenDone(Runnable listener) {
+            synchronized (this) {
+                if (mDone.getCount() > 0) {
+                    mListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * @return how long it took from the first request to the work being done, in
+         * milliseconds, or -1 while it isn't.
+         */
+        public long getLatencyMillis() {
+            long finishedAt = mFinishedAt;
+            return finishedAt != -1 ? finishedAt - mEnqueuedAt : -1;
+        }
+
+        boolean isMoreUrgentThan(Work other) {
+            return mPriority < other.mPriority
+                    || (mPriority == other.mPriority && mSequence < other.mSequence);
+        }
+
+        void finish() {
+            List<Runnable> listeners;
+            synchronized (this) {
+                mFinishedAt = SystemClock.elapsedRealtime();
+                mDone.countDown();
+                listeners = new ArrayList<Runnable>(mListeners);
+                mListeners.clear();
+            }
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+            for (Work joined : mJoined) {
+                joined.finish();
+            }
+        }
+    }
+
+    /**
+     * Runs the work the drain takes off the queue.
+     */
+    public interface Worker {
+        /**
+         * Called on the draining thread.
+         *
+         * @param preemption Canceled when more urgent work comes in.  The worker should then
+         * stop with an OperationCanceledException.
+         * @return false to end the drain, leaving the rest of the work queued.
+         */
+        boolean run(Work work, CancellationSignal preemption) throws InterruptedException;
+    }
+
+    private final boolean mPreemptive;
+    private final Object mLock = new Object();
+    private final List<Work> mPending = new ArrayList<Work>();
+    private long mSequence;
+    private boolean mDraining;
+    private Work mRunning;
+    private CancellationSignal mPreemption;
+
+    public SyncWorkQueue() {
+        this(true);
+    }
+
+    /**
+     * @param preemptive Whether more urgent work preempts the running work.  Without it
+     * urgent work only jumps the queue.
+     */
+    SyncWorkQueue(boolean preemptive) {
+        mPreemptive = preemptive;
+    }
+
+    /**
+     * Asks for a scope to be refreshed.
+     *
+     * @return the queued work for the scope, which may be an earlier request's.
+     */
+    public Work offer(int scope, int priority) {
+        Work work = null;
+        CancellationSignal preempt = null;
+        synchronized (mLock) {
+            for (Work pending : mPending) {
+                if (pending.scope == scope) {
+                    work = pending;
+                    work.mPriority = Math.min(work.mPriority, priority);
+                    break;
+                }
+            }
+            if (work == null) {
+                work = new Work(scope, priority, mSequence++);
+                mPending.add(work);
+            }
+            if (mPreemptive && mRunning != null && mRunning.scope != scope
+                    && work.mPriority < mRunning.mPriority) {
+                Log.d(LOG_TAG, "Preempting scope " + mRunning.scope + " for scope " + scope);
+                preempt = mPreemption;
+            }
+        }
+        // Outside the lock, as it calls into the worker
+        if (preempt != null) {
+            preempt.cancel();
+        }
+        return work;
+    }
+
+    /**
+     * @return whether a drain is under way, and will pick up any work offered before it ends.
+     * Background work is the exception, as the drain may not allow it.
+     */
+    public boolean isDraining() {
+        synchronized (mLock) {
+            return mDraining;
+        }
+    }
+
+    /**
+     * @return the number of pieces of work waiting, including deferred background work.
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * Drops all queued work, e.g. while the server is known to be down, letting go of whoever
+     * waits on it.
+     */
+    public void clear() {
+        List<Work> dropped;
+        synchronized (mLock) {
+            dropped = new ArrayList<Work>(mPending);
+            mPending.clear();
+        }
+        for (Work work : dropped) {
+            work.finish();
+        }
+    }
+
+    /**
+     * Runs queued work, most urgent first, until there is none left that may run now.
+     *
+     * @param backgroundAllowed Whether background work may run.  If not it stays queued.
+     * @throws OperationCanceledException if the worker was canceled by something other than a
+     * preemption.  The work it was running is queued again.
+     */
+    public void drain(Worker worker, boolean backgroundAllowed) throws InterruptedException {
+        synchronized (mLock) {
+            if (mDraining) {
+                throw new IllegalStateException("Already draining");
+            }
+            mDraining = true;
+        }
+        try {
+            Work work;
+            while ((work = next(backgroundAllowed)) != null) {
+                CancellationSignal preemption;
+                synchronized (mLock) {
+                    preemption = mPreemption;
+                }
+                boolean done = false;
+                boolean carryOn;
+                try {
+                    carryOn = worker.run(work, preemption);
+                    done = true;
+                } catch (OperationCanceledException e) {
+                    if (!preemption.isCanceled()) {
+                        throw e;
+                    }
+                    // Run again once the more urgent work is done
+                    carryOn = true;
+                } finally {
+                    synchronized (mLock) {
+                        mRunning = null;
+                        mPreemption = null;
+                        if (!done) {
+                            requeue(work);
+                        }
+                    }
+                }
+                if (done) {
+                    work.finish();
+                }
+                if (!carryOn) {
+                    return;
+                }
+            }
+        } finally {
+            synchronized (mLock) {
+                mDraining = false;
+            }
+        }
+    }
+
+    /**
+     * Takes the most urgent work that may run off the queue and marks it running.
+     */
+    private Work next(boolean backgroundAllowed) {
+        synchronized (mLock) {
+            Work next = null;
+            for (Work pending : mPending) {
+                if (pending.mPriority == PRIORITY_BACKGROUND && !backgroundAllowed) {
+                    continue;
+                }
+                if (next == null || pending.isMoreUrgentThan(next)) {
+                    next = pending;
+                }
+            }
+            if (next == null) {
+                // Ends the drain as far as offer is concerned, in the same step as finding
+                // the queue empty.
+                mDraining = false;
+                return null;
+            }
+            mPending.remove(next);
+            mRunning = next;
+            mPreemption = new CancellationSignal();
+            return next;
+        }
+    }
+
+    private void requeue(Work work) {
+        // A newer request for the same scope may have come in meanwhile
+        for (Work pending : mPending) {
+            if (pending.scope == work.scope) {
+                pending.mPriority = Math.min(pending.mPriority, work.mPriority);
+                // Whoever waits on the preempted work now waits on this one
+                pending.mJoined.add(work);
+                return;
+            }
+        }
+        mPending.add(work);
+    }
+}
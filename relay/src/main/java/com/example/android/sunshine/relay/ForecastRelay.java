@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Relays forecast requests of the app to OpenWeatherMap, so devices share one cache and the
+ * API key stays on the server.
+ *
+ * GETs of the daily and the three-hour forecast, the only endpoints the app calls, are relayed
+ * with the relay's API key in place of whatever the device sent; any other path is a 404, so
+ * the key can't be used for the rest of the API.  The cache key is the path and the sorted query, APPID aside, so requests for the same
+ * location, units and day count share an entry whatever order their parameters come in.
+ * Concurrent misses on a key make one upstream request between them.  Only successful
+ * responses are cached; errors are passed on as they came.
+ *
+ * Responses are gzipped for clients that accept it, compressed once when they are cached, and
+ * carry an ETag so the app's conditional requests are answered with 304.
+ */
+public class ForecastRelay implements HttpHandler {
+    private static final Logger LOG = Logger.getLogger(ForecastRelay.class.getName());
+
+    static final String PATH_PREFIX = "/data/2.5/";
+    static final List<String> RELAYED_PATHS = Arrays.asList(
+            PATH_PREFIX + "forecast/daily",
+            PATH_PREFIX + "forecast");
+    static final String APPID_PARAM = "APPID";
+    static final String QUERY_PARAM = "q";
+    static final String ID_PARAM = "id";
+
+    static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    static final String HEADER_CONTENT_TYPE = "Content-Type";
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    static final String HEADER_VARY = "Vary";
+    static final String GZIP = "gzip";
+
+    public static final int DEFAULT_PORT = 8080;
+    // OWM updates its forecasts about every ten minutes.
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    static final int SHARD_COUNT = 16;
+    static final int MAX_ENTRIES_PER_SHARD = 4096;
+    static final int DEFAULT_THREADS = 64;
+
+    /**
+     * A cached response, in both encodings.
+     */
+    static class Forecast {
+        final int status;
+        final String contentType;
+        final byte[] body;
+        final byte[] gzipped;
+        final String etag;
+
+        Forecast(int status, String contentType, byte[] body) throws IOException {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+            this.gzipped = gzip(body);
+            this.etag = etag(body);
+        }
+    }
+
+    private final Upstream mUpstream;
+    private final String mApiKey;
+    private final ShardedCache<String, Forecast> mCache;
+    private final SingleFlight<String, Forecast> mInFlight = new SingleFlight<String, Forecast>();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    public ForecastRelay(Upstream upstream, String apiKey, long ttlMillis) {
+        mUpstream = upstream;
+        mApiKey = apiKey;
+        mCache = new ShardedCache<String, Forecast>(SHARD_COUNT, MAX_ENTRIES_PER_SHARD, ttlMillis);
+    }
+
+    /**
+     * Starts serving on the given address, port 0 for any free one.
+     *
+     * @param threads How many requests are handled at once.
+     */
+    public synchronized void start(InetSocketAddress address, int threads) throws IOException {
+        mServer = createServer(address);
+        mServer.createContext(PATH_PREFIX, this);
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    public synchronized void stop() {
+        if (mServer != null) {
+            mServer.stop(0);
+            mExecutor.shutdownNow();
+            mServer = null;
+        }
+    }
+
+    public synchronized int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendStatus(exchange, HttpURLConnection.HTTP_BAD_METHOD);
+                return;
+            }
+            String path = exchange.getRequestURI().getRawPath();
+            if (!RELAYED_PATHS.contains(path)) {
+                sendStatus(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            params.remove(APPID_PARAM);
+            if (!params.containsKey(QUERY_PARAM) && !params.containsKey(ID_PARAM)) {
+                sendStatus(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+                return;
+            }
+            final String key = path + "?" + buildQuery(params);
+
+            Forecast forecast = mCache.get(key, System.currentTimeMillis());
+            if (forecast != null) {
+                mHitCount.incrementAndGet();
+            } else {
+                try {
+                    forecast = mInFlight.run(key, new Callable<Forecast>() {
+                        @Override
+                        public Forecast call() throws Exception {
+                            return fetch(key);
+                        }
+                    });
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Upstream failed for " + key, e);
+                    sendStatus(exchange, HttpURLConnection.HTTP_BAD_GATEWAY);
+                    return;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            send(exchange, forecast);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Forecast fetch(String key) throws IOException {
+        // A call that finished while this one waited to start may have filled the cache
+        long now = System.currentTimeMillis();
+        Forecast forecast = mCache.get(key, now);
+        if (forecast != null) {
+            mHitCount.incrementAndGet();
+            return forecast;
+        }
+        mMissCount.incrementAndGet();
+        Upstream.Response response =
+                mUpstream.fetch(key + "&" + APPID_PARAM + "=" + encode(mApiKey));
+        forecast = new Forecast(response.status, response.contentType, response.body);
+        if (response.status == HttpURLConnection.HTTP_OK) {
+            mCache.put(key, forecast, now);
+        }
+        return forecast;
+    }
+
+    private void send(HttpExchange exchange, Forecast forecast) throws IOException {
+        boolean cacheable = forecast.status == HttpURLConnection.HTTP_OK;
+        if (cacheable) {
+            exchange.getResponseHeaders().set(HEADER_ETAG, forecast.etag);
+            exchange.getResponseHeaders().set(HEADER_CACHE_CONTROL,
+                    "max-age=" + mCache.getTtlMillis() / 1000);
+            if (forecast.etag.equals(exchange.getRequestHeaders().getFirst(HEADER_IF_NONE_MATCH))) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                return;
+            }
+        }
+        if (forecast.contentType != null) {
+            exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, forecast.contentType);
+        }
+        exchange.getResponseHeaders().set(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+        byte[] body = forecast.body;
+        String acceptEncoding = exchange.getRequestHeaders().getFirst(HEADER_ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains(GZIP)) {
+            exchange.getResponseHeaders().set(HEADER_CONTENT_ENCODING, GZIP);
+            body = forecast.gzipped;
+        }
+        exchange.sendResponseHeaders(forecast.status, body.length > 0 ? body.length : -1);
+        if (body.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    /**
+     * Creates an HTTP server with Nagle's algorithm off.  The server writes the headers and the
+     * body of a response separately, and with it on the body waits for the client's delayed
+     * ACK, some 40ms per response.
+     */
+    static HttpServer createServer(InetSocketAddress address) throws IOException {
+        // Read once, when the first server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        return HttpServer.create(address, 0);
+    }
+
+    private static void sendStatus(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * @return the parameters of the query, decoded and sorted by name.
+     */
+    static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new TreeMap<String, String>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            if (param.length() == 0) {
+                continue;
+            }
+            int equals = param.indexOf('=');
+            String name = equals < 0 ? param : param.substring(0, equals);
+            String value = equals < 0 ? "" : param.substring(equals + 1);
+            params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    static String buildQuery(Map<String, String> params) throws UnsupportedEncodingException {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(encode(param.getKey())).append('=').append(encode(param.getValue()));
+        }
+        return query.toString();
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(body);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    static String etag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+            StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < 8; i++) {
+                etag.append(String.format("%02x", digest[i]));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Usage: ForecastRelay [port]
+     *
+     * The API key is read from the OWM_API_KEY environment variable.  The system properties
+     * relay.upstream and relay.ttlMillis override the server relayed to and the cache TTL.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String apiKey = System.getenv("OWM_API_KEY");
+        if (apiKey == null || apiKey.length() == 0) {
+            System.err.println("OWM_API_KEY is not set");
+            System.exit(1);
+        }
+        ForecastRelay relay = new ForecastRelay(
+                new Upstream(System.getProperty("relay.upstream", Upstream.DEFAULT_URL)),
+                apiKey, Long.getLong("relay.ttlMillis", DEFAULT_TTL_MILLIS));
+        relay.start(new InetSocketAddress(port), DEFAULT_THREADS);
+        LOG.info("Relaying forecasts on port " + relay.getPort());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory cache split into shards, each with its own lock, so requests for different
+ * locations rarely wait on each other.  Every shard drops its least recently used entry once
+ * it is full, and entries expire a fixed time after they were put.
+ */
+public class ShardedCache<K, V> {
+
+    private static class Item<V> {
+        final V value;
+        final long expiresAt;
+
+        Item(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Shard<K, V> extends LinkedHashMap<K, Item<V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int mMaxEntries;
+
+        Shard(int maxEntries) {
+            super(16, 0.75f, true);
+            mMaxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest) {
+            return size() > mMaxEntries;
+        }
+    }
+
+    private final List<Shard<K, V>> mShards;
+    private final long mTtlMillis;
+
+    /**
+     * @param shardCount How many shards, and so locks, the entries are spread over.
+     * @param maxEntriesPerShard How many entries a shard keeps before dropping the least
+     * recently used one.
+     * @param ttlMillis How long an entry is returned after it was put.
+     */
+    public ShardedCache(int shardCount, int maxEntriesPerShard, long ttlMillis) {
+        if (shardCount < 1 || maxEntriesPerShard < 1) {
+            throw new IllegalArgumentException("Empty cache");
+        }
+        mShards = new ArrayList<Shard<K, V>>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            mShards.add(new Shard<K, V>(maxEntriesPerShard));
+        }
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * @param now The current time, in milliseconds.
+     * @return the value put for the key, or null if there is none or it expired.
+     */
+    public V get(K key, long now) {
+        Shard<K, V> shard = shardFor(key);
+        synchronized (shard) {
+            Item<V> entry = shard.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (now >= entry.expiresAt) {
+                shard.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * @param now The current time, in milliseconds.  The entry expires the TTL after it.
+     */
+    public void put(K key, V value, long now) {
+        Shard<K, V> shard = shardFor(key);
+        synchronized (shard) {
+            shard.put(key, new Item<V>(value, now + mTtlMillis));
+        }
+    }
+
+    /**
+     * @return the number of entries, expired ones included until they are next looked up.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    private Shard<K, V> shardFor(K key) {
+        int hash = key.hashCode();
+        // Spread the high bits, which String hashes of similar keys mostly differ in
+        hash ^= hash >>> 16;
+        return mShards.get((hash & Integer.MAX_VALUE) % mShards.size());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key: while one call runs, every other caller with
+ * its key waits for it and gets its result, or its exception, instead of making the call again.
+ * Once it has returned, the next caller makes a new call.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> mInFlight =
+            new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Makes the call on this thread, unless one for the key is already running.
+     *
+     * @return the result of the call made for the key.
+     * @throws Exception whatever that call threw.
+     */
+    public V run(K key, Callable<V> call) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> running = mInFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                mInFlight.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * @return the number of calls running.
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The OpenWeatherMap server, or whatever stands in for it.
+ */
+public class Upstream {
+
+    public static final String DEFAULT_URL = "http://api.openweathermap.org";
+
+    static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    /**
+     * One response of the server, read completely.
+     */
+    public static class Response {
+        public final int status;
+        public final String contentType;
+        public final byte[] body;
+
+        public Response(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    private final String mBaseUrl;
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * @param baseUrl Scheme and host of the server, without a trailing "/".
+     */
+    public Upstream(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    /**
+     * @param pathAndQuery Starting with "/".
+     * @throws IOException if the server couldn't be reached or the response not read.
+     */
+    public Response fetch(String pathAndQuery) throws IOException {
+        mRequestCount.incrementAndGet();
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mBaseUrl + pathAndQuery).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        try {
+            int status = connection.getResponseCode();
+            InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getInputStream() : connection.getErrorStream();
+            return new Response(status, connection.getContentType(), readAll(in));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the number of requests sent to the server so far.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test harness: runs the relay in front of an upstream stub with OWM-like latency, and
+ * reports throughput and latency percentiles as the number of concurrent clients grows.
+ *
+ * Every level starts with a cold relay, so its upstream request count shows how well the
+ * misses were coalesced.  Clients ask for a small set of locations, most of them for a few
+ * popular ones, the way devices in a region do.
+ *
+ * Usage: RelayLoadTest [seconds per level] [comma separated client counts]
+ */
+public class RelayLoadTest {
+    static final int LOCATION_COUNT = 200;
+    static final long UPSTREAM_LATENCY_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        String[] levels = (args.length > 1 ? args[1] : "1,2,4,8,16,32,64").split(",");
+
+        UpstreamStub upstream = new UpstreamStub(UPSTREAM_LATENCY_MILLIS);
+        upstream.start();
+        try {
+            System.out.println(String.format("%8s %10s %10s %10s %10s %9s",
+                    "clients", "req/s", "p50 ms", "p99 ms", "upstream", "errors"));
+            for (String level : levels) {
+                run(upstream, Integer.parseInt(level.trim()), seconds * 1000);
+            }
+        } finally {
+            upstream.shutdown();
+        }
+    }
+
+    static void run(UpstreamStub upstream, int clients, long durationMillis) throws Exception {
+        ForecastRelay relay = new ForecastRelay(new Upstream(upstream.getUrl()), "load-test",
+                ForecastRelay.DEFAULT_TTL_MILLIS);
+        relay.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                ForecastRelay.DEFAULT_THREADS);
+        int upstreamBefore = upstream.getRequestCount();
+        final String baseUrl = "http://127.0.0.1:" + relay.getPort()
+                + "/data/2.5/forecast/daily?mode=json&units=metric&cnt=14&q=";
+        final long deadline = System.nanoTime() + durationMillis * 1000000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<Client>> futures = new ArrayList<Future<Client>>();
+        for (int i = 0; i < clients; i++) {
+            final long seed = i;
+            futures.add(executor.submit(new Callable<Client>() {
+                @Override
+                public Client call() {
+                    Client client = new Client(new Random(seed));
+                    while (System.nanoTime() < deadline) {
+                        client.request(baseUrl);
+                    }
+                    return client;
+                }
+            }));
+        }
+
+        int count = 0;
+        int errors = 0;
+        for (Future<Client> future : futures) {
+            Client client = future.get();
+            count += client.mCount;
+            errors += client.mErrors;
+        }
+        long[] latencies = new long[count];
+        int offset = 0;
+        for (Future<Client> future : futures) {
+            Client client = future.get();
+            System.arraycopy(client.mLatencies, 0, latencies, offset, client.mCount);
+            offset += client.mCount;
+        }
+        executor.shutdown();
+        relay.stop();
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%8d %10.0f %10.2f %10.2f %10d %9d",
+                clients, count * 1000.0 / durationMillis,
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                upstream.getRequestCount() - upstreamBefore, errors));
+    }
+
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    /**
+     * One client thread, and the latencies of its requests in nanoseconds.
+     */
+    static class Client {
+        final Random mRandom;
+        final byte[] mBuffer = new byte[8192];
+        long[] mLatencies = new long[1024];
+        int mCount;
+        int mErrors;
+
+        Client(Random random) {
+            mRandom = random;
+        }
+
+        void request(String baseUrl) {
+            // Squaring skews the choice towards the first, popular, locations
+            double skewed = mRandom.nextDouble();
+            int location = (int) (skewed * skewed * LOCATION_COUNT);
+            long start = System.nanoTime();
+            try {
+                HttpURLConnection connection = (HttpURLConnection)
+                        new URL(baseUrl + (94000 + location)).openConnection();
+                connection.setRequestProperty(ForecastRelay.HEADER_ACCEPT_ENCODING,
+                        ForecastRelay.GZIP);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    mErrors++;
+                    connection.disconnect();
+                    return;
+                }
+                InputStream in = connection.getInputStream();
+                while (in.read(mBuffer) != -1) {
+                    // Drain the body so the connection can be reused
+                }
+                in.close();
+            } catch (IOException e) {
+                mErrors++;
+                return;
+            }
+            if (mCount == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+            }
+            mLatencies[mCount++] = System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+    Runs the relay in front of a local upstream stub and checks what goes through to it.
+ */
+public class TestForecastRelay {
+    static final String API_KEY = "relay-key";
+    static final String FORECAST_PATH = "/data/2.5/forecast/daily?";
+
+    UpstreamStub mUpstream;
+    ForecastRelay mRelay;
+
+    @Before
+    public void setUp() throws IOException {
+        mUpstream = new UpstreamStub(100);
+        mUpstream.start();
+        mRelay = new ForecastRelay(new Upstream(mUpstream.getUrl()), API_KEY, 60 * 1000);
+        mRelay.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 32);
+    }
+
+    @After
+    public void tearDown() {
+        mRelay.stop();
+        mUpstream.shutdown();
+    }
+
+    HttpURLConnection open(String query) throws IOException {
+        return openPath(FORECAST_PATH + query);
+    }
+
+    HttpURLConnection openPath(String pathAndQuery) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://127.0.0.1:" + mRelay.getPort() + pathAndQuery).openConnection();
+        connection.setRequestProperty(ForecastRelay.HEADER_ACCEPT_ENCODING, "identity");
+        return connection;
+    }
+
+    static String read(InputStream in) throws IOException {
+        return new String(Upstream.readAll(in), Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void concurrentMissesMakeOneUpstreamRequest() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        try {
+            List<Future<String>> bodies = new ArrayList<Future<String>>();
+            for (int i = 0; i < 20; i++) {
+                bodies.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        HttpURLConnection connection =
+                                open("q=94043&mode=json&units=metric&cnt=14");
+                        try {
+                            assertEquals(HttpURLConnection.HTTP_OK,
+                                    connection.getResponseCode());
+                            return read(connection.getInputStream());
+                        } finally {
+                            connection.disconnect();
+                        }
+                    }
+                }));
+            }
+            for (Future<String> body : bodies) {
+                assertEquals(UpstreamStub.forecast("94043"), body.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("Error: concurrent misses should have been coalesced",
+                1, mUpstream.getRequestCount());
+    }
+
+    @Test
+    public void equivalentQueriesShareAnEntry() throws Exception {
+        HttpURLConnection first = open("q=94043&units=metric&cnt=14&APPID=device-key");
+        assertEquals(HttpURLConnection.HTTP_OK, first.getResponseCode());
+        first.disconnect();
+        assertTrue("Error: the relay's key should replace the device's",
+                mUpstream.getLastQuery().endsWith("&APPID=" + API_KEY));
+        assertFalse(mUpstream.getLastQuery().contains("device-key"));
+
+        HttpURLConnection second = open("cnt=14&units=metric&q=94043");
+        assertEquals(HttpURLConnection.HTTP_OK, second.getResponseCode());
+        second.disconnect();
+        assertEquals(1, mUpstream.getRequestCount());
+
+        HttpURLConnection imperial = open("q=94043&units=imperial&cnt=14");
+        assertEquals(HttpURLConnection.HTTP_OK, imperial.getResponseCode());
+        imperial.disconnect();
+        assertEquals(2, mUpstream.getRequestCount());
+    }
+
+    @Test
+    public void responsesAreGzippedAndValidated() throws Exception {
+        HttpURLConnection connection = open("q=94043&units=metric&cnt=14");
+        connection.setRequestProperty(ForecastRelay.HEADER_ACCEPT_ENCODING, "gzip");
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        assertEquals("gzip", connection.getHeaderField(ForecastRelay.HEADER_CONTENT_ENCODING));
+        assertTrue(connection.getContentLength() < UpstreamStub.forecast("94043").length() / 2);
+        assertEquals(UpstreamStub.forecast("94043"),
+                read(new GZIPInputStream(connection.getInputStream())));
+        String etag = connection.getHeaderField(ForecastRelay.HEADER_ETAG);
+        assertNotNull(etag);
+        connection.disconnect();
+
+        connection = open("q=94043&units=metric&cnt=14");
+        connection.setRequestProperty(ForecastRelay.HEADER_IF_NONE_MATCH, etag);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, connection.getResponseCode());
+        connection.disconnect();
+    }
+
+    @Test
+    public void errorsAreNotCached() throws Exception {
+        mUpstream.setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+        HttpURLConnection connection = open("q=94043&units=metric&cnt=14");
+        assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, connection.getResponseCode());
+        connection.disconnect();
+
+        mUpstream.setStatus(HttpURLConnection.HTTP_OK);
+        connection = open("q=94043&units=metric&cnt=14");
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        connection.disconnect();
+        assertEquals(2, mUpstream.getRequestCount());
+    }
+
+    @Test
+    public void requestsWithoutLocationAreRejected() throws Exception {
+        HttpURLConnection connection = open("units=metric&cnt=14");
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+        connection.disconnect();
+        assertEquals(0, mUpstream.getRequestCount());
+    }
+
+    @Test
+    public void onlyTheAppsEndpointsAreRelayed() throws Exception {
+        HttpURLConnection hourly = openPath("/data/2.5/forecast?q=94043&units=metric");
+        assertEquals(HttpURLConnection.HTTP_OK, hourly.getResponseCode());
+        hourly.disconnect();
+        assertEquals(1, mUpstream.getRequestCount());
+
+        for (String path : new String[]{"/data/2.5/weather", "/data/2.5/group",
+                "/data/2.5/forecast/daily/../../uvi", "/data/2.5/"}) {
+            HttpURLConnection connection = openPath(path + "?q=94043&units=metric");
+            assertEquals("Error: " + path + " shouldn't be relayed",
+                    HttpURLConnection.HTTP_NOT_FOUND, connection.getResponseCode());
+            connection.disconnect();
+        }
+        assertEquals(1, mUpstream.getRequestCount());
+    }
+}
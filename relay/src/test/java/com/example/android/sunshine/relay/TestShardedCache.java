@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardedCache {
+
+    @Test
+    public void entriesExpireAfterTheirTtl() {
+        ShardedCache<String, String> cache = new ShardedCache<String, String>(4, 16, 1000);
+        cache.put("94043", "forecast", 0);
+        assertEquals("forecast", cache.get("94043", 999));
+        assertNull("Error: the entry should have expired", cache.get("94043", 1000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void everyShardIsBounded() {
+        ShardedCache<Integer, Integer> cache = new ShardedCache<Integer, Integer>(1, 2, 1000);
+        cache.put(1, 1, 0);
+        cache.put(2, 2, 0);
+        // 1 is now used more recently than 2
+        cache.get(1, 0);
+        cache.put(3, 3, 0);
+        assertEquals(Integer.valueOf(1), cache.get(1, 0));
+        assertNull("Error: the least recently used entry should have been dropped",
+                cache.get(2, 0));
+        assertEquals(Integer.valueOf(3), cache.get(3, 0));
+    }
+
+    @Test
+    public void keysAreSpreadOverShards() {
+        ShardedCache<String, String> cache = new ShardedCache<String, String>(16, 8, 1000);
+        for (int i = 0; i < 100; i++) {
+            cache.put("/data/2.5/forecast/daily?cnt=14&q=" + (94000 + i) + "&units=metric",
+                    "forecast", 0);
+        }
+        // All 100 would not fit if most keys landed in a few shards
+        assertTrue(cache.size() > 90);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSingleFlight {
+    static final int CALLERS = 16;
+
+    final SingleFlight<String, Integer> mFlight = new SingleFlight<String, Integer>();
+    final AtomicInteger mCalls = new AtomicInteger();
+
+    /**
+     * Has CALLERS threads run the same key while the first call is held open, so all of
+     * them arrive while it runs.
+     */
+    List<Future<Integer>> runConcurrently(final Callable<Integer> call) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> held = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                mCalls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return call.call();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return mFlight.run("94043", held);
+                    }
+                }));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // Give the other callers time to join the running call
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<Integer> result : results) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                } catch (Exception ignored) {
+                    // Checked by the caller
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    @Test
+    public void concurrentCallsShareOneResult() throws Exception {
+        List<Future<Integer>> results = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 42;
+            }
+        });
+        assertEquals(1, mCalls.get());
+        for (Future<Integer> result : results) {
+            assertEquals(Integer.valueOf(42), result.get());
+        }
+        assertEquals(0, mFlight.getInFlightCount());
+
+        // Once it returned, the next call is made again
+        mFlight.run("94043", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                mCalls.incrementAndGet();
+                return 43;
+            }
+        });
+        assertEquals(2, mCalls.get());
+    }
+
+    @Test
+    public void concurrentCallsShareOneException() throws Exception {
+        List<Future<Integer>> results = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw new IOException("upstream down");
+            }
+        });
+        assertEquals(1, mCalls.get());
+        for (Future<Integer> result : results) {
+            try {
+                result.get();
+                fail("Error: every caller should have gotten the exception");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+}
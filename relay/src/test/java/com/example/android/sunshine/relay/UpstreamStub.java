@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.relay;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for OpenWeatherMap: answers every request with a 14 day forecast for the city in
+ * "q", after a fixed latency.
+ */
+class UpstreamStub implements HttpHandler {
+
+    private final long mLatencyMillis;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private volatile int mStatus = HttpURLConnection.HTTP_OK;
+    private volatile String mLastQuery;
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    UpstreamStub(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    void start() throws IOException {
+        mServer = ForecastRelay.createServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mServer.createContext("/", this);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    void shutdown() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    String getLastQuery() {
+        return mLastQuery;
+    }
+
+    void setStatus(int status) {
+        mStatus = status;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        mRequestCount.incrementAndGet();
+        mLastQuery = exchange.getRequestURI().getRawQuery();
+        try {
+            Thread.sleep(mLatencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String city = String.valueOf(ForecastRelay.parseQuery(mLastQuery).get("q"));
+        byte[] body = (mStatus == HttpURLConnection.HTTP_OK
+                ? forecast(city) : "{\"cod\":" + mStatus + ",\"message\":\"stub\"}")
+                .getBytes(Charset.forName("UTF-8"));
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(mStatus, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    static String forecast(String city) {
+        StringBuilder json = new StringBuilder("{\"city\":{\"id\":5375480,\"name\":\"")
+                .append(city).append("\",\"coord\":{\"lon\":-122.0838,\"lat\":37.386},")
+                .append("\"country\":\"US\"},\"cod\":\"200\",\"message\":0.01,\"cnt\":14,")
+                .append("\"list\":[");
+        for (int day = 0; day < 14; day++) {
+            if (day > 0) {
+                json.append(',');
+            }
+            json.append("{\"dt\":").append(1450728000 + day * 86400)
+                    .append(",\"temp\":{\"day\":12.5,\"min\":").append(4 + day % 3)
+                    .append(",\"max\":").append(14 + day % 5)
+                    .append(",\"night\":6.1,\"eve\":10.2,\"morn\":5.3},\"pressure\":1010.42,")
+                    .append("\"humidity\":").append(60 + day)
+                    .append(",\"weather\":[{\"id\":800,\"main\":\"Clear\",")
+                    .append("\"description\":\"sky is clear\",\"icon\":\"01d\"}],")
+                    .append("\"speed\":2.31,\"deg\":273,\"clouds\":0}");
+        }
+        return json.append("]}").toString();
+    }
+}